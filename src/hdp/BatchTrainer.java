@@ -0,0 +1,203 @@
+package hdp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+
+import hdp.data.CategoricalReader;
+import hdp.data.Encoder;
+
+/**
+ * Trains the trees of a whole network (one ProbabilityTree per conditional
+ * distribution p(target | parents), e.g. for a k-dependence Bayesian network
+ * classifier) over the same dataset:
+ * <ul>
+ * <li>all the trees count the data in a single pass (each column of a text
+ * dataset is encoded once, with an Encoder shared by the trees);</li>
+ * <li>the trees are then smoothed on a bounded work-stealing pool, largest
+ * first.</li>
+ * </ul>
+ */
+public class BatchTrainer {
+
+	/**
+	 * target of each tree, and its parents (in the order of the tree levels)
+	 */
+	private final ArrayList<int[]> variablesOfTrees = new ArrayList<>();
+
+	private Supplier<ProbabilityTree> treeFactory = ProbabilityTree::new;
+	private int nThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Adds a tree estimating p(target | parents)
+	 *
+	 * @param target  column of the conditioned variable
+	 * @param parents columns of the conditioning variables, from the root of
+	 *                the tree to the leaves
+	 * @return the index of the tree in the array returned by train
+	 */
+	public int addTree(int target, int... parents) {
+		int[] variables = new int[parents.length + 1];
+		variables[0] = target;
+		System.arraycopy(parents, 0, variables, 1, parents.length);
+		variablesOfTrees.add(variables);
+		return variablesOfTrees.size() - 1;
+	}
+
+	/**
+	 * @param treeFactory creates the (empty) trees, with their parameters
+	 *                    (number of iterations, tying strategy, training
+	 *                    mode...); the default constructor by default
+	 */
+	public void setTreeFactory(Supplier<ProbabilityTree> treeFactory) {
+		this.treeFactory = treeFactory;
+	}
+
+	/**
+	 * @param nThreads max number of trees smoothed at the same time
+	 */
+	public void setNThreads(int nThreads) {
+		this.nThreads = nThreads;
+	}
+
+	/**
+	 * Trains the trees over an integer dataset
+	 *
+	 * @param data rows of values indexed from 0, one column per variable
+	 * @return the smoothed trees, in the order they were added
+	 */
+	public ProbabilityTree[] train(int[][] data) {
+		ProbabilityTree[] trees = createTrees();
+		int[][] datapoints = createDatapoints();
+		for (int[] row : data) {
+			for (int t = 0; t < trees.length; t++) {
+				int[] variables = variablesOfTrees.get(t);
+				for (int j = 0; j < variables.length; j++) {
+					datapoints[t][j] = row[variables[j]];
+				}
+				trees[t].addObservationGrowingArities(datapoints[t]);
+			}
+		}
+		smoothAll(trees, data.length);
+		return trees;
+	}
+
+	/**
+	 * Trains the trees over a text dataset streamed in a single pass; the trees
+	 * share the same Encoder, whose attributes are the variables of the reader
+	 *
+	 * @param reader the dataset; the columns of the trees are the indices of the
+	 *               variables of the reader
+	 * @return the smoothed trees, in the order they were added
+	 * @throws IOException if reading fails
+	 */
+	public ProbabilityTree[] train(CategoricalReader reader) throws IOException {
+		int nVariables = reader.getNVariables();
+		Encoder encoder = new Encoder();
+		for (int j = 0; j < nVariables; j++) {
+			encoder.addAttribute(reader.getVariableName(j));
+			String[] declared = reader.getDeclaredValues(j);
+			if (declared != null) {
+				for (String val : declared) {
+					encoder.getDictionary(j).getOrAdd(val);
+				}
+			}
+		}
+
+		ProbabilityTree[] trees = createTrees();
+		for (int t = 0; t < trees.length; t++) {
+			trees[t].setEncoder(encoder, variablesOfTrees.get(t));
+		}
+		int[][] datapoints = createDatapoints();
+		String[] row = new String[nVariables];
+		int[] encodedRow = new int[nVariables];
+		int nRows = 0;
+		while (reader.next(row)) {
+			// each column is encoded once for all the trees
+			for (int j = 0; j < nVariables; j++) {
+				encodedRow[j] = encoder.getDictionary(j).getOrAdd(row[j]);
+			}
+			for (int t = 0; t < trees.length; t++) {
+				int[] variables = variablesOfTrees.get(t);
+				for (int j = 0; j < variables.length; j++) {
+					datapoints[t][j] = encodedRow[variables[j]];
+				}
+				trees[t].addObservationGrowingArities(datapoints[t]);
+			}
+			nRows++;
+		}
+		// values declared but never seen
+		for (int t = 0; t < trees.length; t++) {
+			int[] variables = variablesOfTrees.get(t);
+			trees[t].nValuesConditionedVariable = Math.max(1, encoder.getNValues(variables[0]));
+			for (int j = 1; j < variables.length; j++) {
+				trees[t].nValuesContioningVariables[j - 1] = Math.max(1, encoder.getNValues(variables[j]));
+			}
+		}
+		smoothAll(trees, nRows);
+		return trees;
+	}
+
+	private ProbabilityTree[] createTrees() {
+		if (variablesOfTrees.isEmpty()) {
+			throw new RuntimeException("No tree to train");
+		}
+		ProbabilityTree[] trees = new ProbabilityTree[variablesOfTrees.size()];
+		for (int t = 0; t < trees.length; t++) {
+			trees[t] = treeFactory.get();
+			trees[t].startCounting(variablesOfTrees.get(t).length);
+		}
+		return trees;
+	}
+
+	private int[][] createDatapoints() {
+		int[][] datapoints = new int[variablesOfTrees.size()][];
+		for (int t = 0; t < datapoints.length; t++) {
+			datapoints[t] = new int[variablesOfTrees.get(t).length];
+		}
+		return datapoints;
+	}
+
+	/**
+	 * Smoothes the trees on a work-stealing pool, the most expensive ones (number
+	 * of nodes x number of values of the target) first
+	 */
+	private void smoothAll(ProbabilityTree[] trees, int nRows) {
+		long[] costs = new long[trees.length];
+		Integer[] order = new Integer[trees.length];
+		for (int t = 0; t < trees.length; t++) {
+			trees[t].finishCounting();
+			costs[t] = (long) trees[t].root.countNodes() * trees[t].nValuesConditionedVariable;
+			order[t] = t;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(costs[b], costs[a]));
+
+		// FIFO mode: the trees are started in the order of submission
+		ForkJoinPool pool = new ForkJoinPool(Math.min(nThreads, trees.length),
+				ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		try {
+			ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+			for (int t : order) {
+				ProbabilityTree tree = trees[t];
+				// each tree gets its own cache of log Stirling numbers: a cache costs
+				// its max n x max k, so a cache shared by trees of different shapes
+				// grows to the union of their needs (measured several times slower).
+				// The cache is released once the tree is smoothed, so that only the
+				// trees being smoothed hold one (smoothTree creates it again).
+				tasks.add(pool.submit(() -> {
+					tree.setLogStirlingCache(ProbabilityTree.newLogStirlingGenerator(nRows, 0.0));
+					tree.smooth();
+					tree.setLogStirlingCache(null);
+				}));
+			}
+			for (ForkJoinTask<?> task : tasks) {
+				task.join();
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -1,10 +1,12 @@
 package hdp;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.math3.distribution.BetaDistribution;
 import org.apache.commons.math3.distribution.GammaDistribution;
 import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.special.Gamma;
 import org.apache.commons.math3.util.FastMath;
 
 import static mltools.MathUtils.*;
@@ -112,18 +114,77 @@ public class Concentration {
 	 * about sampling concentration (Chapter 5 - Section 4.3)
 	 */
 	public void sample(RandomGenerator rng) {
-		double rate = priorRate;
+		double sumLogInvQ = 0.0;
 		int sumTk = 0;
 		for (ProbabilityNode node : tiedNodes) {
+			if (node.marginal_nk == 0) {
+				// q ~ Beta(c,0) is 1: no contribution (e.g. all data removed)
+				continue;
+			}
 			BetaDistribution betaD = new BetaDistribution(rng, this.c, node.marginal_nk);
 			double q = Math.max(1e-75, betaD.sample());
-			rate += FastMath.log(1.0 / q);
+			sumLogInvQ += FastMath.log(1.0 / q);
 			sumTk += node.marginal_tk;
 		}
-		double scale = 1.0 / rate;
 		// marginal nk here is \sum_{child}child.marginal_tk
+		this.setConcentration(sampleFromSufficientStatistics(rng, sumLogInvQ, sumTk));
+	}
+
+	/**
+	 * Stochastic version of sample for minibatches: the sufficient statistics are
+	 * computed on a subset of the tied nodes and scaled to the whole set, and the
+	 * concentration only moves towards the sample by a step size.
+	 * 
+	 * @param nodes    subset of the tied nodes
+	 * @param stepSize in (0,1]; 1 sets the concentration to the sample
+	 */
+	public void sampleStochastic(RandomGenerator rng, List<ProbabilityNode> nodes, double stepSize) {
+		double sumLogInvQ = 0.0;
+		int sumTk = 0;
+		for (ProbabilityNode node : nodes) {
+			if (node.marginal_nk == 0) {
+				continue;
+			}
+			BetaDistribution betaD = new BetaDistribution(rng, this.c, node.marginal_nk);
+			double q = Math.max(1e-75, betaD.sample());
+			sumLogInvQ += FastMath.log(1.0 / q);
+			sumTk += node.marginal_tk;
+		}
+		double scale = (double) tiedNodes.size() / nodes.size();
+		double sampled = sampleFromSufficientStatistics(rng, scale * sumLogInvQ, scale * sumTk);
+		this.setConcentration((1.0 - stepSize) * c + stepSize * sampled);
+	}
+
+	/**
+	 * Samples a concentration from the sufficient statistics of the tied nodes
+	 * 
+	 * @param sumLogInvQ sum of log(1/q) over the nodes, q being the auxiliary
+	 *                   variables ~ Beta(c, marginal_nk)
+	 * @param sumTk      sum of marginal_tk over the nodes
+	 * @return a sample of the concentration
+	 */
+	public double sampleFromSufficientStatistics(RandomGenerator rng, double sumLogInvQ, double sumTk) {
+		double scale = 1.0 / (priorRate + sumLogInvQ);
 		GammaDistribution gammaD = new GammaDistribution(rng, sumTk + priorShape, scale);
-		this.setConcentration(gammaD.sample());
+		return gammaD.sample();
+	}
+
+	/**
+	 * Sets the concentration to its fixed-point estimate given the tks of the
+	 * tied nodes (mode of the posterior under the Gamma prior): <br/>
+	 * c = (sum(T) + shape - 1) / (rate + sum(psi(c+N) - psi(c)))
+	 */
+	public void estimate() {
+		double digammaC = Gamma.digamma(c);
+		double sumDigamma = 0.0;
+		int sumTk = 0;
+		for (ProbabilityNode node : tiedNodes) {
+			if (node.marginal_nk > 0) {
+				sumDigamma += Gamma.digamma(c + node.marginal_nk) - digammaC;
+			}
+			sumTk += node.marginal_tk;
+		}
+		this.setConcentration((sumTk + priorShape - 1.0) / (priorRate + sumDigamma));
 	}
 
 	public String toString() {
@@ -0,0 +1,220 @@
+package hdp;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts observations sent by many threads at once, to be estimated later by a
+ * ProbabilityTree: children are installed with compare-and-set and the counts
+ * of the leaves are LongAdders, so that writers never lock.
+ *
+ * snapshot() freezes the counts received so far into a new ProbabilityTree,
+ * ready to be smoothed, while writers carry on in a new generation of counts;
+ * the trees already published are never touched by the writers.
+ */
+public class ConcurrentCountTree {
+
+	/**
+	 * Padding between the writer counters of the stripes (in ints), so that
+	 * they are on different cache lines
+	 */
+	private static final int PADDING = 16;
+	private static final int N_STRIPES = Integer.highestOneBit(Math.max(1,
+			Runtime.getRuntime().availableProcessors() * 2 - 1)) * 2;
+
+	private final int nValuesConditionedVariable;
+	private final int[] nValuesConditioningVariables;
+
+	/**
+	 * Generation receiving the observations
+	 */
+	private final AtomicReference<Generation> current;
+	/**
+	 * Counts of the generations frozen by the previous snapshots (only accessed
+	 * under the snapshot lock)
+	 */
+	private final CountNode frozen;
+	private final Object snapshotLock = new Object();
+
+	/**
+	 * @param nValuesConditionedVariable   number of values of the target
+	 * @param nValuesConditioningVariables numbers of values of the conditioning
+	 *                                     variables
+	 */
+	public ConcurrentCountTree(int nValuesConditionedVariable, int[] nValuesConditioningVariables) {
+		this.nValuesConditionedVariable = nValuesConditionedVariable;
+		this.nValuesConditioningVariables = nValuesConditioningVariables.clone();
+		this.current = new AtomicReference<>(new Generation());
+		this.frozen = new CountNode(0);
+	}
+
+	public void addObservation(int[] datapoint) {
+		addObservation(datapoint, 1L);
+	}
+
+	/**
+	 * Adds an observation; can be called by any number of threads at once
+	 *
+	 * @param datapoint the values, the first being for the conditioned variable
+	 * @param count     number of times the datapoint has been observed
+	 */
+	public void addObservation(int[] datapoint, long count) {
+		int stripe = (int) (Thread.currentThread().getId() & (N_STRIPES - 1)) * PADDING;
+		while (true) {
+			Generation generation = current.get();
+			generation.nWriters.incrementAndGet(stripe);
+			// a snapshot may have frozen the generation in the meantime
+			if (current.get() == generation) {
+				try {
+					generation.root.add(datapoint, count);
+				} finally {
+					generation.nWriters.decrementAndGet(stripe);
+				}
+				return;
+			}
+			generation.nWriters.decrementAndGet(stripe);
+		}
+	}
+
+	/**
+	 * Freezes the counts received so far into a tree created with the default
+	 * parameters
+	 *
+	 * @return a tree holding all the observations added before the call, to be
+	 *         smoothed with smoothTree()
+	 */
+	public ProbabilityTree snapshot() {
+		return snapshot(new ProbabilityTree(nValuesConditionedVariable, nValuesConditioningVariables, false));
+	}
+
+	/**
+	 * Freezes the counts received so far into an empty tree; the observations
+	 * added while the snapshot is taken go to the next one
+	 *
+	 * @param tree an empty tree created with the numbers of values of the
+	 *             variables (and any other parameters)
+	 * @return the tree, holding all the observations added before the call, to
+	 *         be smoothed with smoothTree()
+	 */
+	public ProbabilityTree snapshot(ProbabilityTree tree) {
+		synchronized (snapshotLock) {
+			Generation old = current.getAndSet(new Generation());
+			// waits for the writers that entered the old generation before the swap
+			for (int s = 0; s < N_STRIPES; s++) {
+				while (old.nWriters.get(s * PADDING) != 0) {
+					Thread.yield();
+				}
+			}
+			frozen.merge(old.root);
+
+			int[] datapoint = new int[nValuesConditioningVariables.length + 1];
+			frozen.addTo(tree, datapoint);
+		}
+		return tree;
+	}
+
+	/**
+	 * Observations received between two snapshots
+	 */
+	private final class Generation {
+		final CountNode root = new CountNode(0);
+		/**
+		 * number of writers in the generation, by stripe
+		 */
+		final AtomicIntegerArray nWriters = new AtomicIntegerArray(N_STRIPES * PADDING);
+	}
+
+	private final class CountNode {
+		/**
+		 * index of the conditioning variable of the children (= depth)
+		 */
+		final int depth;
+		/**
+		 * children, for the intermediate nodes
+		 */
+		final AtomicReferenceArray<CountNode> children;
+		/**
+		 * counts of each value of the target, for the leaves
+		 */
+		final LongAdder[] counts;
+
+		CountNode(int depth) {
+			this.depth = depth;
+			if (depth < nValuesConditioningVariables.length) {
+				children = new AtomicReferenceArray<>(nValuesConditioningVariables[depth]);
+				counts = null;
+			} else {
+				children = null;
+				counts = new LongAdder[nValuesConditionedVariable];
+				for (int k = 0; k < counts.length; k++) {
+					counts[k] = new LongAdder();
+				}
+			}
+		}
+
+		void add(int[] datapoint, long count) {
+			CountNode node = this;
+			while (node.children != null) {
+				node = node.getOrCreateChild(datapoint[node.depth + 1]);
+			}
+			node.counts[datapoint[0]].add(count);
+		}
+
+		CountNode getOrCreateChild(int value) {
+			CountNode child = children.get(value);
+			if (child == null) {
+				CountNode created = new CountNode(depth + 1);
+				if (children.compareAndSet(value, null, created)) {
+					child = created;
+				} else {
+					// another thread installed it first
+					child = children.get(value);
+				}
+			}
+			return child;
+		}
+
+		/**
+		 * Adds the counts of a frozen subtree (no writer must be using either)
+		 */
+		void merge(CountNode other) {
+			if (children == null) {
+				for (int k = 0; k < counts.length; k++) {
+					long count = other.counts[k].sum();
+					if (count != 0) {
+						counts[k].add(count);
+					}
+				}
+			} else {
+				for (int v = 0; v < children.length(); v++) {
+					CountNode otherChild = other.children.get(v);
+					if (otherChild != null) {
+						getOrCreateChild(v).merge(otherChild);
+					}
+				}
+			}
+		}
+
+		void addTo(ProbabilityTree tree, int[] datapoint) {
+			if (children == null) {
+				for (int k = 0; k < counts.length; k++) {
+					long count = counts[k].sum();
+					if (count != 0) {
+						datapoint[0] = k;
+						tree.addObservation(datapoint, count);
+					}
+				}
+			} else {
+				for (int v = 0; v < children.length(); v++) {
+					CountNode child = children.get(v);
+					if (child != null) {
+						datapoint[depth + 1] = v;
+						child.addTo(tree, datapoint);
+					}
+				}
+			}
+		}
+	}
+}
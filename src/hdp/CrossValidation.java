@@ -0,0 +1,118 @@
+package hdp;
+
+import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
+
+/**
+ * k-fold cross-validation of a ProbabilityTree without rebuilding it for each
+ * fold: the tree is trained once on the whole dataset, then for each fold the
+ * held-out rows are removed, the tree is smoothed again from its current state
+ * (warm start), the held-out rows are scored and added back.
+ *
+ * The same tree can be evaluated with several settings (e.g. each
+ * TyingStrategy) by calling logLoss after each change.
+ */
+public class CrossValidation {
+
+	private final int[][] data;
+	private final int nFolds;
+	/**
+	 * rows of each fold
+	 */
+	private final int[][] foldRows;
+
+	private int nIterationsWarmStart = 500;
+
+	/**
+	 * @param data   the dataset, first value being for the conditioned variable
+	 * @param nFolds number of folds
+	 * @param seed   seed for the random assignment of the rows to the folds
+	 */
+	public CrossValidation(int[][] data, int nFolds, long seed) {
+		if (nFolds < 2 || nFolds > data.length) {
+			throw new IllegalArgumentException("Cannot make " + nFolds + " folds from " + data.length + " rows");
+		}
+		this.data = data;
+		this.nFolds = nFolds;
+
+		// shuffled rows, dealt to the folds in turn
+		RandomGenerator rng = new MersenneTwister(seed);
+		int[] rows = new int[data.length];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = i;
+		}
+		for (int i = rows.length - 1; i > 0; i--) {
+			int j = rng.nextInt(i + 1);
+			int tmp = rows[i];
+			rows[i] = rows[j];
+			rows[j] = tmp;
+		}
+		foldRows = new int[nFolds][];
+		for (int f = 0; f < nFolds; f++) {
+			foldRows[f] = new int[(data.length - f + nFolds - 1) / nFolds];
+		}
+		for (int i = 0; i < rows.length; i++) {
+			foldRows[i % nFolds][i / nFolds] = rows[i];
+		}
+	}
+
+	/**
+	 * @param nIterations number of iterations of the sampler after removing a
+	 *                    fold (see ProbabilityTree.smoothWarmStart)
+	 */
+	public void setNIterationsWarmStart(int nIterations) {
+		this.nIterationsWarmStart = nIterations;
+	}
+
+	public int getNFolds() {
+		return nFolds;
+	}
+
+	/**
+	 * Computes the log-loss of each fold. The tree must hold the whole dataset
+	 * (e.g. trained with addDataset(data)); it holds it again at the end, but its
+	 * parameters are those of the last fold until it is smoothed again.
+	 *
+	 * @param tree a tree trained on the whole dataset
+	 * @return the mean of -log p(y|x) over the held-out rows of each fold
+	 */
+	public double[] logLossPerFold(ProbabilityTree tree) {
+		double[] logLoss = new double[nFolds];
+		int nXs = tree.getNXs();
+		int[] sample = new int[nXs];
+		for (int f = 0; f < nFolds; f++) {
+			for (int row : foldRows[f]) {
+				tree.removeObservation(data[row]);
+			}
+			tree.smoothWarmStart(nIterationsWarmStart);
+
+			double sum = 0.0;
+			for (int row : foldRows[f]) {
+				System.arraycopy(data[row], 1, sample, 0, nXs);
+				double[] probs = tree.query(sample);
+				sum -= Math.log(probs[data[row][0]]);
+			}
+			logLoss[f] = sum / foldRows[f].length;
+
+			for (int row : foldRows[f]) {
+				tree.addObservation(data[row]);
+			}
+		}
+		return logLoss;
+	}
+
+	/**
+	 * @param tree a tree trained on the whole dataset
+	 * @return the mean of -log p(y|x) over all the rows, each being scored by
+	 *         the tree trained without its fold
+	 * @see #logLossPerFold(ProbabilityTree)
+	 */
+	public double logLoss(ProbabilityTree tree) {
+		double[] logLossPerFold = logLossPerFold(tree);
+		double sum = 0.0;
+		for (int f = 0; f < nFolds; f++) {
+			sum += logLossPerFold[f] * foldRows[f].length;
+		}
+		return sum / data.length;
+	}
+}
@@ -0,0 +1,502 @@
+package hdp;
+
+import java.util.ArrayList;
+
+import org.apache.commons.math3.distribution.BetaDistribution;
+import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.util.FastMath;
+
+import hdp.logStirling.LogStirlingGenerator;
+
+/**
+ * Engine for full trees (a node for every combination of values of the
+ * conditioning variables, as ProbabilityTree with createFullTree) without node
+ * objects: the nodes of level d are numbered in mixed radix by the values of
+ * the first d conditioning variables, so that the children of node i of level
+ * d are the nodes i * nValues[d] + v of level d+1 (and the parent of node j of
+ * level d+1 is j / nValues[d]). The counts, tables and probabilities of a
+ * level are flat arrays indexed by node * nValuesTarget + k.
+ *
+ * The estimation is the collapsed Gibbs sampling of ProbabilityTree (GIBBS
+ * mode), visiting the nodes and drawing the random numbers in the same order:
+ * with the same data and parameters, both give the same probabilities.
+ */
+public class DenseProbabilityTree {
+
+	private final int nValuesTarget;
+	private final int[] nValuesConditioning;
+	/**
+	 * number of nodes of each level, the root being level 0
+	 */
+	private final int[] nNodes;
+	private final int nLevels;
+
+	private int nIterGibbs;
+	private int nBurnIn;
+	private int frequencySamplingC = 5;
+	private TyingStrategy tyingStrategy;
+	protected RandomGenerator rng = new MersenneTwister(3071980);
+	private LogStirlingGenerator lgCache;
+	private int nDatapoints;
+
+	/**
+	 * counts and tables of the nodes of each level, [level][node * nValuesTarget
+	 * + k]; the counts of the intermediate levels are the sums of the tables of
+	 * their children once the tables are initialized
+	 */
+	int[][] nk;
+	int[][] tk;
+	/**
+	 * sums over k of nk and tk, [level][node]
+	 */
+	int[][] marginalNk;
+	int[][] marginalTk;
+	/**
+	 * current and averaged probabilities, [level][node * nValuesTarget + k]
+	 */
+	double[][] pk;
+	double[][] pkAveraged;
+	private int nPkAccumulated;
+
+	/**
+	 * concentrations of the nodes of each level: one per node (NONE), per parent
+	 * (SAME_PARENT) or per level (LEVEL, SINGLE); see getConcentration
+	 */
+	private Concentration[][] concentrations;
+	private Concentration rootConcentration;
+	/**
+	 * the concentrations to sample with the nodes they are tied to, in the order
+	 * of ProbabilityTree
+	 */
+	private ArrayList<TiedNodes> concentrationsToSample;
+
+	/**
+	 * Nodes [from,to) of the levels firstLevel down to lastLevel (all the nodes of
+	 * the levels if to is -1)
+	 */
+	private static final class TiedNodes {
+		final Concentration c;
+		final int firstLevel, lastLevel, from, to;
+
+		TiedNodes(Concentration c, int firstLevel, int lastLevel, int from, int to) {
+			this.c = c;
+			this.firstLevel = firstLevel;
+			this.lastLevel = lastLevel;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	public DenseProbabilityTree(int nValuesTarget, int[] nValuesConditioning) {
+		this(nValuesTarget, nValuesConditioning, 5000, TyingStrategy.LEVEL);
+	}
+
+	/**
+	 * @param nValuesTarget       number of values of the conditioned variable
+	 * @param nValuesConditioning numbers of values of the conditioning variables,
+	 *                            from the root to the leaves
+	 * @param m_Iterations        number of Gibbs sampling iterations
+	 * @param m_Tying             tying strategy of the concentrations
+	 */
+	public DenseProbabilityTree(int nValuesTarget, int[] nValuesConditioning, int m_Iterations,
+			TyingStrategy m_Tying) {
+		this.nValuesTarget = nValuesTarget;
+		this.nValuesConditioning = nValuesConditioning.clone();
+		this.nLevels = nValuesConditioning.length + 1;
+		this.nIterGibbs = m_Iterations;
+		this.nBurnIn = Math.min(1000, nIterGibbs / 10);
+		this.tyingStrategy = m_Tying;
+
+		nNodes = new int[nLevels];
+		nNodes[0] = 1;
+		for (int d = 1; d < nLevels; d++) {
+			long n = (long) nNodes[d - 1] * nValuesConditioning[d - 1];
+			if (n * nValuesTarget > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Too many nodes at level " + d + " for a full tree: " + n);
+			}
+			nNodes[d] = (int) n;
+		}
+		nk = new int[nLevels][];
+		tk = new int[nLevels][];
+		marginalNk = new int[nLevels][];
+		marginalTk = new int[nLevels][];
+		for (int d = 0; d < nLevels; d++) {
+			nk[d] = new int[nNodes[d] * nValuesTarget];
+			tk[d] = new int[nNodes[d] * nValuesTarget];
+			marginalNk[d] = new int[nNodes[d]];
+			marginalTk[d] = new int[nNodes[d]];
+		}
+	}
+
+	/**
+	 * @return the index of the leaf of a datapoint (values from 1 on)
+	 */
+	private int leafIndex(int[] datapoint) {
+		int leaf = 0;
+		for (int j = 0; j < nValuesConditioning.length; j++) {
+			leaf = leaf * nValuesConditioning[j] + datapoint[j + 1];
+		}
+		return leaf;
+	}
+
+	public void addObservation(int[] datapoint) {
+		addObservation(datapoint, 1);
+	}
+
+	/**
+	 * @param datapoint the values, the first being for the conditioned variable
+	 * @param count     number of times the datapoint has been observed
+	 */
+	public void addObservation(int[] datapoint, int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Negative count " + count);
+		}
+		int leaf = leafIndex(datapoint);
+		nk[nLevels - 1][leaf * nValuesTarget + datapoint[0]] += count;
+		marginalNk[nLevels - 1][leaf] += count;
+		nDatapoints += count;
+	}
+
+	/**
+	 * Adds the data and smoothes the tree
+	 *
+	 * @param data a dataset; first value is the value for the conditioned
+	 *             variable; other values are for the conditioning variables
+	 */
+	public void addDataset(int[][] data) {
+		if (data == null || data.length == 0) {
+			throw new RuntimeException("Data is empty");
+		}
+		for (int[] datapoint : data) {
+			addObservation(datapoint, 1);
+		}
+		smooth();
+	}
+
+	/**
+	 * Estimates the parameters of the tree from the counts of the leaves
+	 *
+	 * @return the log likelihood of the optimized tree
+	 */
+	public double smooth() {
+		if (lgCache == null || lgCache.getMaxN() < nDatapoints) {
+			setLogStirlingCache(ProbabilityTree.newLogStirlingGenerator(nDatapoints, 0.0));
+		}
+		tieConcentrations();
+		rootConcentration = new Concentration();
+		prepareForSamplingTk();
+
+		pkAveraged = null;
+		nPkAccumulated = 0;
+		for (int iter = 0; iter < nIterGibbs; iter++) {
+			// sample tks once, from the leaves up
+			for (int d = nLevels - 1; d >= 0; d--) {
+				for (int i = 0; i < nNodes[d]; i++) {
+					sampleTks(d, i);
+				}
+			}
+
+			// sample c
+			if ((iter + frequencySamplingC / 2) % frequencySamplingC == 0) {
+				for (TiedNodes tied : concentrationsToSample) {
+					sampleConcentration(tied);
+				}
+			}
+
+			if (iter >= nBurnIn) {
+				computeProbabilities();
+				recordAndAverageProbabilities();
+			}
+		}
+		return logScore(0, 0);
+	}
+
+	public void setLogStirlingCache(LogStirlingGenerator cache) {
+		ProbabilityTree.closeLogStirlingCache(lgCache);
+		this.lgCache = cache;
+	}
+
+	/**
+	 * Creates the concentrations following the tying strategy, in the order in
+	 * which ProbabilityTree creates them
+	 */
+	private void tieConcentrations() {
+		concentrations = new Concentration[nLevels][];
+		concentrationsToSample = new ArrayList<>();
+		switch (tyingStrategy) {
+		case NONE:
+			for (int d = nLevels - 1; d >= 0; d--) {
+				concentrations[d] = new Concentration[nNodes[d]];
+				for (int i = 0; i < nNodes[d]; i++) {
+					concentrations[d][i] = new Concentration();
+					concentrationsToSample.add(new TiedNodes(concentrations[d][i], d, d, i, i + 1));
+				}
+			}
+			break;
+		case SAME_PARENT:
+			concentrations[0] = new Concentration[0];
+			for (int d = nLevels - 2; d >= 0; d--) {
+				int nValues = nValuesConditioning[d];
+				concentrations[d + 1] = new Concentration[nNodes[d]];
+				for (int p = 0; p < nNodes[d]; p++) {
+					concentrations[d + 1][p] = new Concentration();
+					concentrationsToSample
+							.add(new TiedNodes(concentrations[d + 1][p], d + 1, d + 1, p * nValues, (p + 1) * nValues));
+				}
+			}
+			break;
+		case SINGLE:
+			Concentration c = new Concentration();
+			concentrationsToSample.add(new TiedNodes(c, nLevels - 1, 1, 0, -1));
+			for (int d = 0; d < nLevels; d++) {
+				concentrations[d] = new Concentration[] { c };
+			}
+			break;
+		case LEVEL:
+		default:
+			for (int d = nLevels - 1; d >= 0; d--) {
+				concentrations[d] = new Concentration[] { new Concentration() };
+				concentrationsToSample.add(new TiedNodes(concentrations[d][0], d, d, 0, -1));
+			}
+			break;
+		}
+	}
+
+	/**
+	 * @return the concentration of node i of level d (the one of the root is not
+	 *         sampled)
+	 */
+	private Concentration getConcentration(int d, int i) {
+		if (d == 0) {
+			return rootConcentration;
+		}
+		switch (tyingStrategy) {
+		case NONE:
+			return concentrations[d][i];
+		case SAME_PARENT:
+			return concentrations[d][i / nValuesConditioning[d - 1]];
+		default:
+			return concentrations[d][0];
+		}
+	}
+
+	/**
+	 * Sets the counts of the intermediate nodes to the sums of the tables of
+	 * their children, and the tables to their expected values
+	 */
+	private void prepareForSamplingTk() {
+		for (int d = nLevels - 1; d >= 0; d--) {
+			if (d < nLevels - 1) {
+				int nValues = nValuesConditioning[d];
+				int[] nkLevel = nk[d], tkChildren = tk[d + 1];
+				for (int i = 0; i < nNodes[d]; i++) {
+					int marginal = 0;
+					for (int k = 0; k < nValuesTarget; k++) {
+						int sum = 0;
+						for (int v = 0; v < nValues; v++) {
+							sum += tkChildren[(i * nValues + v) * nValuesTarget + k];
+						}
+						nkLevel[i * nValuesTarget + k] = sum;
+						marginal += sum;
+					}
+					marginalNk[d][i] = marginal;
+				}
+			}
+			for (int i = 0; i < nNodes[d]; i++) {
+				int marginal = 0;
+				double concentration = getConcentration(d, i).getConcentration();
+				for (int k = 0; k < nValuesTarget; k++) {
+					int index = i * nValuesTarget + k;
+					int n = nk[d][index];
+					tk[d][index] = (d == 0) ? ((n == 0) ? 0 : 1) : ProbabilityNode.initialTk(n, concentration);
+					marginal += tk[d][index];
+				}
+				marginalTk[d][i] = marginal;
+			}
+		}
+	}
+
+	/**
+	 * Sets tk and updates the counts of the parent
+	 */
+	private void setTk(int d, int i, int k, int val) {
+		int index = i * nValuesTarget + k;
+		int incVal = val - tk[d][index];
+		if (incVal == 0) {
+			return;
+		}
+		tk[d][index] += incVal;
+		marginalTk[d][i] += incVal;
+		if (d > 0) {
+			int parent = i / nValuesConditioning[d - 1];
+			nk[d - 1][parent * nValuesTarget + k] += incVal;
+			marginalNk[d - 1][parent] += incVal;
+		}
+	}
+
+	/**
+	 * Samples the tks of node i of level d
+	 */
+	private void sampleTks(int d, int i) {
+		if (d == 0) {
+			// root: t is either 0 or 1
+			for (int k = 0; k < nValuesTarget; k++) {
+				setTk(d, i, k, (nk[d][i * nValuesTarget + k] == 0) ? 0 : 1);
+			}
+			return;
+		}
+		int parent = i / nValuesConditioning[d - 1];
+		Concentration c = getConcentration(d, i);
+		Concentration parentC = getConcentration(d - 1, parent);
+		for (int k = 0; k < nValuesTarget; k++) {
+			int index = i * nValuesTarget + k;
+			int parentIndex = parent * nValuesTarget + k;
+			setTk(d, i, k, ProbabilityNode.sampleTk(rng, lgCache, nk[d][index], tk[d][index], marginalTk[d][i], c,
+					nk[d - 1][parentIndex], tk[d - 1][parentIndex], marginalNk[d - 1][parent], parentC));
+		}
+	}
+
+	/**
+	 * Same as Concentration.sample, over the nodes tied to the concentration
+	 */
+	private void sampleConcentration(TiedNodes tied) {
+		Concentration c = tied.c;
+		double sumLogInvQ = 0.0;
+		int sumTk = 0;
+		for (int d = tied.firstLevel; d >= tied.lastLevel; d--) {
+			int to = (tied.to < 0) ? nNodes[d] : tied.to;
+			for (int i = tied.from; i < to; i++) {
+				if (marginalNk[d][i] == 0) {
+					continue;
+				}
+				BetaDistribution betaD = new BetaDistribution(rng, c.getConcentration(), marginalNk[d][i]);
+				double q = Math.max(1e-75, betaD.sample());
+				sumLogInvQ += FastMath.log(1.0 / q);
+				sumTk += marginalTk[d][i];
+			}
+		}
+		c.setConcentration(c.sampleFromSufficientStatistics(rng, sumLogInvQ, sumTk));
+	}
+
+	/**
+	 * Computes the probabilities of all the nodes from the current tks, from the
+	 * root down
+	 */
+	private void computeProbabilities() {
+		if (pk == null) {
+			pk = new double[nLevels][];
+			for (int d = 0; d < nLevels; d++) {
+				pk[d] = new double[nNodes[d] * nValuesTarget];
+			}
+		}
+		for (int d = 0; d < nLevels; d++) {
+			double[] pkLevel = pk[d];
+			for (int i = 0; i < nNodes[d]; i++) {
+				double concentration = getConcentration(d, i).getConcentration();
+				int parentOffset = (d == 0) ? 0 : (i / nValuesConditioning[d - 1]) * nValuesTarget;
+				ProbabilityNode.computeProbabilities(nk[d], i * nValuesTarget, marginalNk[d][i], concentration,
+						(d == 0) ? null : pk[d - 1], parentOffset, pkLevel, i * nValuesTarget, nValuesTarget);
+			}
+		}
+	}
+
+	/**
+	 * Accumulates the pks of all the nodes in their running mean
+	 */
+	private void recordAndAverageProbabilities() {
+		if (pkAveraged == null) {
+			pkAveraged = new double[nLevels][];
+			for (int d = 0; d < nLevels; d++) {
+				pkAveraged[d] = new double[nNodes[d] * nValuesTarget];
+			}
+			nPkAccumulated = 1;
+		}
+		for (int d = 0; d < nLevels; d++) {
+			double[] averaged = pkAveraged[d], current = pk[d];
+			for (int offset = 0; offset < averaged.length; offset += nValuesTarget) {
+				double sum = 0.0;
+				for (int k = 0; k < nValuesTarget; k++) {
+					averaged[offset + k] += (current[offset + k] - averaged[offset + k]) / nPkAccumulated;
+					sum += averaged[offset + k];
+				}
+				for (int k = 0; k < nValuesTarget; k++) {
+					averaged[offset + k] /= sum;
+				}
+			}
+		}
+		nPkAccumulated++;
+	}
+
+	/**
+	 * @return the log likelihood of the subtree of node i of level d
+	 */
+	private double logScore(int d, int i) {
+		Concentration c = getConcentration(d, i);
+		double res = Concentration.logPochhammerSymbol(c, 0.0, marginalTk[d][i]);
+		res -= c.logGammaRatioForConcentration(marginalNk[d][i]);
+		for (int k = 0; k < nValuesTarget; k++) {
+			res += ProbabilityNode.logStirling(lgCache, nk[d][i * nValuesTarget + k], tk[d][i * nValuesTarget + k]);
+		}
+		if (d < nLevels - 1) {
+			int nValues = nValuesConditioning[d];
+			for (int v = 0; v < nValues; v++) {
+				res += logScore(d + 1, i * nValues + v);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Get the probability estimated by the HDP process, backing off to the
+	 * deepest node reached by the known values
+	 *
+	 * @param sample a datapoint (without the target variable); negative or
+	 *               unknown values end the path
+	 * @param out    where to write the distribution over the target variable
+	 */
+	public void query(int[] sample, double[] out) {
+		if (pkAveraged == null) {
+			throw new IllegalStateException("The tree has not been smoothed");
+		}
+		int d = 0, i = 0;
+		for (; d < sample.length && d < nValuesConditioning.length; d++) {
+			if (sample[d] < 0 || sample[d] >= nValuesConditioning[d]) {
+				break;
+			}
+			i = i * nValuesConditioning[d] + sample[d];
+		}
+		System.arraycopy(pkAveraged[d], i * nValuesTarget, out, 0, nValuesTarget);
+	}
+
+	/**
+	 * @param sample a datapoint (without the target variable)
+	 * @return its probability distribution over the target variable
+	 * @see #query(int[], double[])
+	 */
+	public double[] query(int[] sample) {
+		double[] out = new double[nValuesTarget];
+		query(sample, out);
+		return out;
+	}
+
+	public void setFrequencySamplingC(int frequencySamplingC) {
+		this.frequencySamplingC = frequencySamplingC;
+	}
+
+	public int getNValuesConditionedVariable() {
+		return nValuesTarget;
+	}
+
+	/**
+	 * @return the number of nodes of the tree (all the combinations of values of
+	 *         the prefixes of the conditioning variables)
+	 */
+	public long getNNodes() {
+		long n = 0;
+		for (int d = 0; d < nLevels; d++) {
+			n += nNodes[d];
+		}
+		return n;
+	}
+}
@@ -0,0 +1,919 @@
+package hdp;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.commons.math3.distribution.BetaDistribution;
+import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.util.FastMath;
+
+import hdp.logStirling.LogStirlingGenerator;
+
+/**
+ * Engine for trees whose leaves don't fit in the heap: the intermediate levels
+ * are flat arrays on the heap, while the counts and tables of the leaves, and
+ * their final probabilities, are records in memory-mapped files.
+ *
+ * The datapoints must be added in the lexicographic order of their
+ * conditioning values (e.g. sorted on disk beforehand), so that the nodes of
+ * each level, and the leaves in their file, are numbered in the order of their
+ * paths: the children of a node are consecutive, and the sampler sweeps the
+ * leaves sequentially, parent by parent. Only the observed paths have nodes.
+ *
+ * The estimation is the collapsed Gibbs sampling of DenseProbabilityTree (LEVEL
+ * or SINGLE tying): with the same data and parameters, the probabilities of the
+ * observed paths are the same.
+ *
+ * Files of the directory: leafCounts.bin holds a record per leaf (value of the
+ * last conditioning variable, marginal nk, marginal tk, then nk and tk for each
+ * value of the target, as ints); leafProbabilities.bin holds the averaged
+ * probabilities of the leaves (doubles), in the same order.
+ */
+public class OutOfCoreProbabilityTree implements AutoCloseable {
+
+	/**
+	 * Maximum number of bytes mapped at once (a MappedByteBuffer is indexed by
+	 * int)
+	 */
+	private static final long MAX_CHUNK_BYTES = 1L << 30;
+	/**
+	 * fields of the records of leafCounts.bin (nk and tk follow)
+	 */
+	private static final int VALUE = 0, MARGINAL_NK = 1, MARGINAL_TK = 2, NK = 3;
+
+	private final int nValuesTarget;
+	private final int[] nValuesConditioning;
+	/**
+	 * number of levels on the heap (the root's down to the parents of the
+	 * leaves); the leaves are level nXs
+	 */
+	private final int nXs;
+
+	private int nIterGibbs;
+	private int nBurnIn;
+	private int frequencySamplingC = 5;
+	private final TyingStrategy tyingStrategy;
+	protected RandomGenerator rng = new MersenneTwister(3071980);
+	private LogStirlingGenerator lgCache;
+	private long nDatapoints;
+
+	/**
+	 * number of nodes of each intermediate level, the root being level 0
+	 */
+	private final int[] nNodes;
+	/**
+	 * value of the node in its parent's branching variable and index of its
+	 * parent, [level][node] (from level 1)
+	 */
+	private final int[][] values;
+	private final int[][] parents;
+	/**
+	 * index of the first child of each node in the next level (the leaves for
+	 * the last one), [level][node]; the children of node i are [firstChild[i],
+	 * firstChild[i+1])
+	 */
+	private final int[][] firstChild;
+	private int nLeaves;
+
+	/**
+	 * counts, tables and probabilities of the intermediate levels, as in
+	 * DenseProbabilityTree
+	 */
+	int[][] nk;
+	int[][] tk;
+	int[][] marginalNk;
+	int[][] marginalTk;
+	double[][] pk;
+	double[][] pkAveraged;
+	private int nPkAccumulated;
+
+	private final MappedRecords leafCounts;
+	private final MappedRecords leafProbabilities;
+
+	/**
+	 * concentrations of the nodes of each level (one per level, or the same for
+	 * all with SINGLE), the leaves included; the one of the root is not sampled
+	 */
+	private Concentration[] concentrations;
+	private Concentration rootConcentration;
+
+	/**
+	 * conditioning values and nodes of the path of the last datapoint added
+	 */
+	private final int[] lastPath;
+	private final int[] lastNodes;
+
+	/**
+	 * Records of fixed size in a file, mapped in chunks of whole records; the
+	 * last chunk is mapped again, larger, as records are added (which extends
+	 * the file)
+	 */
+	private static final class MappedRecords {
+		private final FileChannel channel;
+		private final int recordBytes;
+		private final int recordsPerChunk;
+		private final ArrayList<MappedByteBuffer> chunks = new ArrayList<>();
+		private long capacity;
+
+		MappedRecords(Path file, int recordBytes) throws IOException {
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.recordBytes = recordBytes;
+			this.recordsPerChunk = (int) (MAX_CHUNK_BYTES / recordBytes);
+		}
+
+		void ensureCapacity(long nRecords) throws IOException {
+			while (capacity < nRecords) {
+				int last = chunks.size() - 1;
+				long inLast = (last < 0) ? recordsPerChunk : chunks.get(last).capacity() / recordBytes;
+				if (inLast < recordsPerChunk) {
+					// doubling the last chunk
+					long records = Math.min(recordsPerChunk, Math.max(2 * inLast, nRecords - capacity + inLast));
+					chunks.set(last, map(last, records));
+					capacity += records - inLast;
+				} else {
+					long records = Math.min(recordsPerChunk, Math.max(1024, nRecords - capacity));
+					chunks.add(map(last + 1, records));
+					capacity += records;
+				}
+			}
+		}
+
+		private MappedByteBuffer map(int chunk, long records) throws IOException {
+			return channel.map(FileChannel.MapMode.READ_WRITE, (long) chunk * recordsPerChunk * recordBytes,
+					records * recordBytes);
+		}
+
+		int getInt(long record, int field) {
+			return chunks.get((int) (record / recordsPerChunk))
+					.getInt((int) (record % recordsPerChunk) * recordBytes + 4 * field);
+		}
+
+		void putInt(long record, int field, int value) {
+			chunks.get((int) (record / recordsPerChunk)).putInt((int) (record % recordsPerChunk) * recordBytes + 4 * field,
+					value);
+		}
+
+		double getDouble(long record, int field) {
+			return chunks.get((int) (record / recordsPerChunk))
+					.getDouble((int) (record % recordsPerChunk) * recordBytes + 8 * field);
+		}
+
+		void putDouble(long record, int field, double value) {
+			chunks.get((int) (record / recordsPerChunk))
+					.putDouble((int) (record % recordsPerChunk) * recordBytes + 8 * field, value);
+		}
+
+		void close() throws IOException {
+			for (MappedByteBuffer chunk : chunks) {
+				chunk.force();
+			}
+			chunks.clear();
+			channel.close();
+		}
+	}
+
+	public OutOfCoreProbabilityTree(int nValuesTarget, int[] nValuesConditioning, Path directory)
+			throws IOException {
+		this(nValuesTarget, nValuesConditioning, directory, 5000, TyingStrategy.LEVEL);
+	}
+
+	/**
+	 * @param nValuesTarget       number of values of the conditioned variable
+	 * @param nValuesConditioning numbers of values of the conditioning variables,
+	 *                            from the root to the leaves
+	 * @param directory           where to create the files of the leaves
+	 * @param m_Iterations        number of Gibbs sampling iterations
+	 * @param m_Tying             tying strategy of the concentrations, LEVEL or
+	 *                            SINGLE
+	 * @throws IOException if the files cannot be created
+	 */
+	public OutOfCoreProbabilityTree(int nValuesTarget, int[] nValuesConditioning, Path directory, int m_Iterations,
+			TyingStrategy m_Tying) throws IOException {
+		if (nValuesConditioning.length == 0) {
+			throw new IllegalArgumentException("An out-of-core tree needs at least one conditioning variable");
+		}
+		if (m_Tying != TyingStrategy.LEVEL && m_Tying != TyingStrategy.SINGLE) {
+			throw new IllegalArgumentException("Out-of-core trees support the LEVEL and SINGLE tyings, not " + m_Tying);
+		}
+		this.nValuesTarget = nValuesTarget;
+		this.nValuesConditioning = nValuesConditioning.clone();
+		this.nXs = nValuesConditioning.length;
+		this.nIterGibbs = m_Iterations;
+		this.nBurnIn = Math.min(1000, nIterGibbs / 10);
+		this.tyingStrategy = m_Tying;
+
+		nNodes = new int[nXs];
+		values = new int[nXs][16];
+		parents = new int[nXs][16];
+		firstChild = new int[nXs][16];
+		nNodes[0] = 1;
+		lastPath = new int[nXs];
+		lastNodes = new int[nXs];
+
+		leafCounts = new MappedRecords(directory.resolve("leafCounts.bin"), 4 * (NK + 2 * nValuesTarget));
+		leafProbabilities = new MappedRecords(directory.resolve("leafProbabilities.bin"), 8 * nValuesTarget);
+	}
+
+	public void addObservation(int[] datapoint) throws IOException {
+		addObservation(datapoint, 1);
+	}
+
+	/**
+	 * Adds a datapoint; its conditioning values must come after (or be the same
+	 * as) those of the previous datapoint in lexicographic order. Datapoints can
+	 * be added after a smoothing, the new nodes being taken into account by the
+	 * next one.
+	 *
+	 * @param datapoint the values, the first being for the conditioned variable
+	 * @param count     number of times the datapoint has been observed
+	 * @throws IOException if the file of the leaves cannot be extended
+	 */
+	public void addObservation(int[] datapoint, int count) throws IOException {
+		if (count < 0) {
+			throw new IllegalArgumentException("Negative count " + count);
+		}
+		if (datapoint[0] < 0 || datapoint[0] >= nValuesTarget) {
+			throw new IllegalArgumentException("Value " + datapoint[0] + " out of range for the target");
+		}
+		// first level where the path leaves the one of the previous datapoint
+		int level = 0;
+		if (nLeaves > 0) {
+			while (level < nXs && datapoint[level + 1] == lastPath[level]) {
+				level++;
+			}
+			if (level < nXs && datapoint[level + 1] < lastPath[level]) {
+				throw new IllegalArgumentException("Datapoints must be added in the order of their conditioning values: "
+						+ Arrays.toString(datapoint) + " after " + Arrays.toString(lastPath));
+			}
+		}
+		if (nLeaves == 0 || level < nXs) {
+			for (int j = level; j < nXs; j++) {
+				if (datapoint[j + 1] < 0 || datapoint[j + 1] >= nValuesConditioning[j]) {
+					throw new IllegalArgumentException(
+							"Value " + datapoint[j + 1] + " out of range for conditioning variable " + j);
+				}
+				lastPath[j] = datapoint[j + 1];
+			}
+			for (int d = level + 1; d < nXs; d++) {
+				lastNodes[d] = appendNode(d, lastNodes[d - 1], datapoint[d]);
+			}
+			appendLeaf(datapoint[nXs]);
+		}
+		int leaf = nLeaves - 1;
+		leafCounts.putInt(leaf, NK + datapoint[0], leafCounts.getInt(leaf, NK + datapoint[0]) + count);
+		leafCounts.putInt(leaf, MARGINAL_NK, leafCounts.getInt(leaf, MARGINAL_NK) + count);
+		nDatapoints += count;
+	}
+
+	/**
+	 * Appends a node to an intermediate level; its children will be the next
+	 * nodes appended to the level below
+	 */
+	private int appendNode(int d, int parent, int value) {
+		int node = nNodes[d];
+		ensureNodeCapacity(d, node + 1);
+		values[d][node] = value;
+		parents[d][node] = parent;
+		firstChild[d][node] = (d + 1 < nXs) ? nNodes[d + 1] : nLeaves;
+		nNodes[d]++;
+		return node;
+	}
+
+	/**
+	 * Grows the arrays of the nodes of level d (which keep the same capacity) to
+	 * hold at least n nodes
+	 */
+	private void ensureNodeCapacity(int d, int n) {
+		if (n > values[d].length) {
+			int capacity = Math.max(n, 2 * values[d].length);
+			values[d] = Arrays.copyOf(values[d], capacity);
+			parents[d] = Arrays.copyOf(parents[d], capacity);
+			firstChild[d] = Arrays.copyOf(firstChild[d], capacity);
+		}
+	}
+
+	private void appendLeaf(int value) throws IOException {
+		if (nLeaves == Integer.MAX_VALUE) {
+			throw new IllegalStateException("Too many leaves");
+		}
+		leafCounts.ensureCapacity(nLeaves + 1L);
+		// the file is extended with zeros
+		leafCounts.putInt(nLeaves, VALUE, value);
+		nLeaves++;
+	}
+
+	/**
+	 * Adds the data and smoothes the tree; the data is sorted first (on the
+	 * heap)
+	 *
+	 * @param data a dataset; first value is the value for the conditioned
+	 *             variable; other values are for the conditioning variables
+	 * @throws IOException if the file of the leaves cannot be extended
+	 */
+	public void addDataset(int[][] data) throws IOException {
+		if (data == null || data.length == 0) {
+			throw new RuntimeException("Data is empty");
+		}
+		addRows(data);
+		smooth();
+	}
+
+	/**
+	 * Adds datapoints in any order (sorted on the heap)
+	 */
+	void addRows(int[][] data) throws IOException {
+		int[][] sorted = data.clone();
+		Arrays.sort(sorted, (a, b) -> {
+			for (int j = 1; j <= nXs; j++) {
+				if (a[j] != b[j]) {
+					return Integer.compare(a[j], b[j]);
+				}
+			}
+			return 0;
+		});
+		for (int[] datapoint : sorted) {
+			addObservation(datapoint, 1);
+		}
+	}
+
+	/**
+	 * Estimates the parameters of the tree from the counts of the leaves
+	 *
+	 * @return the log likelihood of the optimized tree
+	 */
+	public double smooth() {
+		prepareSmoothing();
+		for (int iter = 0; iter < nIterGibbs; iter++) {
+			// sample tks once, from the leaves up
+			sampleTksBelowRoot();
+			sampleTks(0, 0);
+
+			// sample c
+			if (isConcentrationIteration(iter)) {
+				if (tyingStrategy == TyingStrategy.SINGLE) {
+					sampleConcentration(concentrations[nXs], nXs, 1);
+				} else {
+					for (int d = nXs; d >= 0; d--) {
+						sampleConcentration(concentrations[d], d, d);
+					}
+				}
+			}
+
+			if (iter >= nBurnIn) {
+				computeProbabilities();
+				recordAndAverageProbabilities();
+			}
+		}
+		return logScore();
+	}
+
+	/**
+	 * Completes the structure of the tree, ties the concentrations and
+	 * initializes the tks, before the iterations of the sampler
+	 */
+	void prepareSmoothing() {
+		if (nLeaves == 0) {
+			throw new IllegalStateException("No data has been added");
+		}
+		try {
+			leafProbabilities.ensureCapacity(nLeaves);
+		} catch (IOException e) {
+			System.err.println("Cannot map the probabilities of the leaves " + e.getMessage());
+			System.err.println("Throws as RuntimeException");
+			throw new RuntimeException(e);
+		}
+		for (int d = 0; d < nXs; d++) {
+			// the children of the last node end with the level below; the slot is
+			// overwritten if a node is appended after the smoothing
+			ensureNodeCapacity(d, nNodes[d] + 1);
+			firstChild[d][nNodes[d]] = (d + 1 < nXs) ? nNodes[d + 1] : nLeaves;
+		}
+		if (lgCache == null || lgCache.getMaxN() < nDatapoints) {
+			setLogStirlingCache(ProbabilityTree.newLogStirlingGenerator(nDatapoints, 0.0));
+		}
+		tieConcentrations();
+		rootConcentration = new Concentration();
+		prepareForSamplingTk();
+
+		pkAveraged = null;
+		nPkAccumulated = 0;
+	}
+
+	/**
+	 * @return true if the concentrations are sampled at this iteration
+	 */
+	boolean isConcentrationIteration(int iter) {
+		return (iter + frequencySamplingC / 2) % frequencySamplingC == 0;
+	}
+
+	/**
+	 * Samples the tks of all the nodes but the root, from the leaves up
+	 */
+	void sampleTksBelowRoot() {
+		sampleLeavesTks();
+		for (int d = nXs - 1; d >= 1; d--) {
+			for (int i = 0; i < nNodes[d]; i++) {
+				sampleTks(d, i);
+			}
+		}
+	}
+
+	/**
+	 * @return the sums of the tks of the children of the root, for each value of
+	 *         the target
+	 */
+	int[] getRootChildrenTables() {
+		int[] res = new int[nValuesTarget];
+		if (nXs == 1) {
+			for (int leaf = 0; leaf < nLeaves; leaf++) {
+				for (int k = 0; k < nValuesTarget; k++) {
+					res[k] += leafCounts.getInt(leaf, NK + nValuesTarget + k);
+				}
+			}
+		} else {
+			for (int index = 0; index < tk[1].length; index++) {
+				res[index % nValuesTarget] += tk[1][index];
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Sets the counts of the root (the sums of the tks of the children of the
+	 * root over all the shards of a sharded training) and its tks
+	 */
+	void setRootCounts(int[] counts) {
+		int marginal = 0;
+		for (int k = 0; k < nValuesTarget; k++) {
+			nk[0][k] = counts[k];
+			marginal += counts[k];
+		}
+		marginalNk[0][0] = marginal;
+		sampleTks(0, 0);
+	}
+
+	public void setLogStirlingCache(LogStirlingGenerator cache) {
+		ProbabilityTree.closeLogStirlingCache(lgCache);
+		this.lgCache = cache;
+	}
+
+	/**
+	 * Creates the concentrations in the order of DenseProbabilityTree (the root
+	 * level has one, which is sampled but not used, as in ProbabilityTree)
+	 */
+	private void tieConcentrations() {
+		concentrations = new Concentration[nXs + 1];
+		if (tyingStrategy == TyingStrategy.SINGLE) {
+			Arrays.fill(concentrations, new Concentration());
+		} else {
+			for (int d = nXs; d >= 0; d--) {
+				concentrations[d] = new Concentration();
+			}
+		}
+	}
+
+	/**
+	 * @return the concentration of the nodes of level d
+	 */
+	private Concentration getConcentration(int d) {
+		return (d == 0) ? rootConcentration : concentrations[d];
+	}
+
+	/**
+	 * Sets the counts of the intermediate nodes to the sums of the tables of
+	 * their children, and the tables to their expected values
+	 */
+	private void prepareForSamplingTk() {
+		nk = new int[nXs][];
+		tk = new int[nXs][];
+		marginalNk = new int[nXs][];
+		marginalTk = new int[nXs][];
+		for (int d = 0; d < nXs; d++) {
+			nk[d] = new int[nNodes[d] * nValuesTarget];
+			tk[d] = new int[nNodes[d] * nValuesTarget];
+			marginalNk[d] = new int[nNodes[d]];
+			marginalTk[d] = new int[nNodes[d]];
+		}
+
+		// leaves, parent by parent
+		double leafConcentration = getConcentration(nXs).getConcentration();
+		int[] parentNk = nk[nXs - 1];
+		for (int p = 0; p < nNodes[nXs - 1]; p++) {
+			for (int leaf = firstChild[nXs - 1][p]; leaf < firstChild[nXs - 1][p + 1]; leaf++) {
+				int marginal = 0;
+				for (int k = 0; k < nValuesTarget; k++) {
+					int t = ProbabilityNode.initialTk(leafCounts.getInt(leaf, NK + k), leafConcentration);
+					leafCounts.putInt(leaf, NK + nValuesTarget + k, t);
+					parentNk[p * nValuesTarget + k] += t;
+					marginal += t;
+				}
+				leafCounts.putInt(leaf, MARGINAL_TK, marginal);
+				marginalNk[nXs - 1][p] += marginal;
+			}
+		}
+
+		for (int d = nXs - 1; d >= 0; d--) {
+			double concentration = getConcentration(d).getConcentration();
+			for (int i = 0; i < nNodes[d]; i++) {
+				int marginal = 0;
+				for (int k = 0; k < nValuesTarget; k++) {
+					int index = i * nValuesTarget + k;
+					int n = nk[d][index];
+					tk[d][index] = (d == 0) ? ((n == 0) ? 0 : 1) : ProbabilityNode.initialTk(n, concentration);
+					if (d > 0) {
+						nk[d - 1][parents[d][i] * nValuesTarget + k] += tk[d][index];
+					}
+					marginal += tk[d][index];
+				}
+				marginalTk[d][i] = marginal;
+				if (d > 0) {
+					marginalNk[d - 1][parents[d][i]] += marginal;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Samples the tks of the leaves, sweeping their file in order
+	 */
+	private void sampleLeavesTks() {
+		Concentration c = getConcentration(nXs);
+		int[] counts = new int[2 * nValuesTarget];
+		for (int p = 0; p < nNodes[nXs - 1]; p++) {
+			for (int leaf = firstChild[nXs - 1][p]; leaf < firstChild[nXs - 1][p + 1]; leaf++) {
+				for (int j = 0; j < counts.length; j++) {
+					counts[j] = leafCounts.getInt(leaf, NK + j);
+				}
+				int marginal = leafCounts.getInt(leaf, MARGINAL_TK);
+				int sampled = sampleTks(counts, 0, counts, nValuesTarget, marginal, c, nXs - 1, p);
+				// only the pages of the leaves that changed are dirtied
+				for (int k = 0; k < nValuesTarget; k++) {
+					if (leafCounts.getInt(leaf, NK + nValuesTarget + k) != counts[nValuesTarget + k]) {
+						leafCounts.putInt(leaf, NK + nValuesTarget + k, counts[nValuesTarget + k]);
+					}
+				}
+				if (sampled != marginal) {
+					leafCounts.putInt(leaf, MARGINAL_TK, sampled);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Samples the tks of node i of an intermediate level
+	 */
+	private void sampleTks(int d, int i) {
+		int offset = i * nValuesTarget;
+		if (d == 0) {
+			// root: t is either 0 or 1
+			int marginal = 0;
+			for (int k = 0; k < nValuesTarget; k++) {
+				tk[0][offset + k] = (nk[0][offset + k] == 0) ? 0 : 1;
+				marginal += tk[0][offset + k];
+			}
+			marginalTk[0][i] = marginal;
+			return;
+		}
+		marginalTk[d][i] = sampleTks(nk[d], offset, tk[d], offset, marginalTk[d][i], getConcentration(d), d - 1,
+				parents[d][i]);
+	}
+
+	/**
+	 * Samples the tks of a node (not the root) whose counts are at
+	 * nkNode[nkOffset + k] and tkNode[tkOffset + k], updating the counts of its
+	 * parent
+	 *
+	 * @param marginalTkNode the sum of the tks of the node
+	 * @param c              the concentration of the node
+	 * @param pd             the level of the parent
+	 * @param p              the index of the parent in its level
+	 * @return the new sum of the tks of the node
+	 */
+	private int sampleTks(int[] nkNode, int nkOffset, int[] tkNode, int tkOffset, int marginalTkNode, Concentration c,
+			int pd, int p) {
+		Concentration parentC = getConcentration(pd);
+		for (int k = 0; k < nValuesTarget; k++) {
+			int parentIndex = p * nValuesTarget + k;
+			int t = ProbabilityNode.sampleTk(rng, lgCache, nkNode[nkOffset + k], tkNode[tkOffset + k], marginalTkNode,
+					c, nk[pd][parentIndex], tk[pd][parentIndex], marginalNk[pd][p], parentC);
+			marginalTkNode += moveTk(tkNode, tkOffset + k, t, pd, p, k);
+		}
+		return marginalTkNode;
+	}
+
+	/**
+	 * Sets a tk and updates the counts of the parent
+	 *
+	 * @return the change of the tk
+	 */
+	private int moveTk(int[] tkNode, int index, int val, int pd, int p, int k) {
+		int incVal = val - tkNode[index];
+		if (incVal != 0) {
+			tkNode[index] = val;
+			nk[pd][p * nValuesTarget + k] += incVal;
+			marginalNk[pd][p] += incVal;
+		}
+		return incVal;
+	}
+
+	/**
+	 * Same as Concentration.sample, over the nodes of the levels firstLevel down
+	 * to lastLevel
+	 */
+	private void sampleConcentration(Concentration c, int firstLevel, int lastLevel) {
+		double[] statistics = new double[2];
+		for (int d = firstLevel; d >= lastLevel; d--) {
+			addConcentrationStatistics(d, statistics);
+		}
+		c.setConcentration(c.sampleFromSufficientStatistics(rng, statistics[0], statistics[1]));
+	}
+
+	/**
+	 * Adds the sufficient statistics of the concentration of level d, with the
+	 * auxiliary variables q ~ Beta(c, marginal nk) of its nodes: the sum of
+	 * log(1/q) to statistics[0] and the sum of the marginal tks to statistics[1]
+	 */
+	void addConcentrationStatistics(int d, double[] statistics) {
+		Concentration c = concentrations[d];
+		int nNodesLevel = (d == nXs) ? nLeaves : nNodes[d];
+		for (int i = 0; i < nNodesLevel; i++) {
+			int marginalNkNode = (d == nXs) ? leafCounts.getInt(i, MARGINAL_NK) : marginalNk[d][i];
+			if (marginalNkNode == 0) {
+				continue;
+			}
+			BetaDistribution betaD = new BetaDistribution(rng, c.getConcentration(), marginalNkNode);
+			double q = Math.max(1e-75, betaD.sample());
+			statistics[0] += FastMath.log(1.0 / q);
+			statistics[1] += (d == nXs) ? leafCounts.getInt(i, MARGINAL_TK) : marginalTk[d][i];
+		}
+	}
+
+	/**
+	 * Sets the concentration of the nodes of level d (of all the levels with
+	 * SINGLE)
+	 */
+	void setConcentration(int d, double c) {
+		concentrations[d].setConcentration(c);
+	}
+
+	/**
+	 * Computes the probabilities of the intermediate nodes from the current tks,
+	 * from the root down (the ones of the leaves are computed when recorded)
+	 */
+	void computeProbabilities() {
+		if (pk == null) {
+			pk = new double[nXs][];
+		}
+		for (int d = 0; d < nXs; d++) {
+			if (pk[d] == null || pk[d].length != nNodes[d] * nValuesTarget) {
+				pk[d] = new double[nNodes[d] * nValuesTarget];
+			}
+			double concentration = getConcentration(d).getConcentration();
+			for (int i = 0; i < nNodes[d]; i++) {
+				int parentOffset = (d == 0) ? 0 : parents[d][i] * nValuesTarget;
+				ProbabilityNode.computeProbabilities(nk[d], i * nValuesTarget, marginalNk[d][i], concentration,
+						(d == 0) ? null : pk[d - 1], parentOffset, pk[d], i * nValuesTarget, nValuesTarget);
+			}
+		}
+	}
+
+	/**
+	 * Accumulates the pks of all the nodes in their running mean; the ones of the
+	 * leaves are computed and averaged into their file, sweeping it in order
+	 */
+	void recordAndAverageProbabilities() {
+		if (pkAveraged == null) {
+			pkAveraged = new double[nXs][];
+			for (int d = 0; d < nXs; d++) {
+				pkAveraged[d] = new double[nNodes[d] * nValuesTarget];
+			}
+			nPkAccumulated = 1;
+		}
+		for (int d = 0; d < nXs; d++) {
+			double[] averaged = pkAveraged[d], current = pk[d];
+			for (int offset = 0; offset < averaged.length; offset += nValuesTarget) {
+				average(current, offset, averaged, offset);
+			}
+		}
+
+		double concentration = getConcentration(nXs).getConcentration();
+		int[] counts = new int[nValuesTarget];
+		double[] current = new double[nValuesTarget];
+		double[] averaged = new double[nValuesTarget];
+		for (int p = 0; p < nNodes[nXs - 1]; p++) {
+			for (int leaf = firstChild[nXs - 1][p]; leaf < firstChild[nXs - 1][p + 1]; leaf++) {
+				for (int k = 0; k < nValuesTarget; k++) {
+					counts[k] = leafCounts.getInt(leaf, NK + k);
+					// the file holds the probabilities of the previous smoothing
+					averaged[k] = (nPkAccumulated == 1) ? 0.0 : leafProbabilities.getDouble(leaf, k);
+				}
+				ProbabilityNode.computeProbabilities(counts, 0, leafCounts.getInt(leaf, MARGINAL_NK), concentration,
+						pk[nXs - 1], p * nValuesTarget, current, 0, nValuesTarget);
+				average(current, 0, averaged, 0);
+				for (int k = 0; k < nValuesTarget; k++) {
+					leafProbabilities.putDouble(leaf, k, averaged[k]);
+				}
+			}
+		}
+		nPkAccumulated++;
+	}
+
+	private void average(double[] current, int currentOffset, double[] averaged, int offset) {
+		double sum = 0.0;
+		for (int k = 0; k < nValuesTarget; k++) {
+			averaged[offset + k] += (current[currentOffset + k] - averaged[offset + k]) / nPkAccumulated;
+			sum += averaged[offset + k];
+		}
+		for (int k = 0; k < nValuesTarget; k++) {
+			averaged[offset + k] /= sum;
+		}
+	}
+
+	/**
+	 * @return the log likelihood of the tree
+	 */
+	double logScore() {
+		double res = 0.0;
+		for (int d = 0; d < nXs; d++) {
+			Concentration c = getConcentration(d);
+			for (int i = 0; i < nNodes[d]; i++) {
+				res += Concentration.logPochhammerSymbol(c, 0.0, marginalTk[d][i]);
+				res -= c.logGammaRatioForConcentration(marginalNk[d][i]);
+				for (int k = 0; k < nValuesTarget; k++) {
+					res += ProbabilityNode.logStirling(lgCache, nk[d][i * nValuesTarget + k],
+							tk[d][i * nValuesTarget + k]);
+				}
+			}
+		}
+		Concentration c = getConcentration(nXs);
+		for (int leaf = 0; leaf < nLeaves; leaf++) {
+			res += Concentration.logPochhammerSymbol(c, 0.0, leafCounts.getInt(leaf, MARGINAL_TK));
+			res -= c.logGammaRatioForConcentration(leafCounts.getInt(leaf, MARGINAL_NK));
+			for (int k = 0; k < nValuesTarget; k++) {
+				res += ProbabilityNode.logStirling(lgCache, leafCounts.getInt(leaf, NK + k),
+						leafCounts.getInt(leaf, NK + nValuesTarget + k));
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Get the probability estimated by the HDP process, backing off to the
+	 * deepest node reached by the known values
+	 *
+	 * @param sample a datapoint (without the target variable); negative,
+	 *               unknown or unobserved values end the path
+	 * @param out    where to write the distribution over the target variable
+	 */
+	public void query(int[] sample, double[] out) {
+		if (pkAveraged == null) {
+			throw new IllegalStateException("The tree has not been smoothed");
+		}
+		int d = 0, i = 0;
+		for (; d < sample.length && d < nXs; d++) {
+			int from = firstChild[d][i], to = firstChild[d][i + 1];
+			if (d + 1 < nXs) {
+				int child = Arrays.binarySearch(values[d + 1], from, to, sample[d]);
+				if (child < 0) {
+					break;
+				}
+				i = child;
+			} else {
+				int leaf = findLeaf(from, to, sample[d]);
+				if (leaf < 0) {
+					break;
+				}
+				for (int k = 0; k < nValuesTarget; k++) {
+					out[k] = leafProbabilities.getDouble(leaf, k);
+				}
+				return;
+			}
+		}
+		System.arraycopy(pkAveraged[d], i * nValuesTarget, out, 0, nValuesTarget);
+	}
+
+	/**
+	 * @return the leaf in [from,to) for the value, or -1
+	 */
+	private int findLeaf(int from, int to, int value) {
+		int low = from, high = to - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midValue = leafCounts.getInt(mid, VALUE);
+			if (midValue < value) {
+				low = mid + 1;
+			} else if (midValue > value) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Receives the averaged probabilities of the nodes of a tree
+	 */
+	interface DistributionVisitor {
+		/**
+		 * @param depth         level of the node (0 for the root)
+		 * @param path          values of the conditioning variables down to the
+		 *                      node (the first depth ones)
+		 * @param probabilities distribution of the node (only valid during the
+		 *                      call)
+		 */
+		void visit(int depth, int[] path, double[] probabilities) throws IOException;
+	}
+
+	/**
+	 * Visits the averaged probabilities of all the nodes, depth first, parents
+	 * before their children
+	 */
+	void visitDistributions(DistributionVisitor visitor) throws IOException {
+		if (pkAveraged == null) {
+			throw new IllegalStateException("The tree has not been smoothed");
+		}
+		visitDistributions(visitor, 0, 0, new int[nXs], new double[nValuesTarget]);
+	}
+
+	private void visitDistributions(DistributionVisitor visitor, int d, int i, int[] path, double[] buffer)
+			throws IOException {
+		System.arraycopy(pkAveraged[d], i * nValuesTarget, buffer, 0, nValuesTarget);
+		visitor.visit(d, path, buffer);
+		for (int child = firstChild[d][i]; child < firstChild[d][i + 1]; child++) {
+			if (d + 1 < nXs) {
+				path[d] = values[d + 1][child];
+				visitDistributions(visitor, d + 1, child, path, buffer);
+			} else {
+				path[d] = leafCounts.getInt(child, VALUE);
+				for (int k = 0; k < nValuesTarget; k++) {
+					buffer[k] = leafProbabilities.getDouble(child, k);
+				}
+				visitor.visit(nXs, path, buffer);
+			}
+		}
+	}
+
+	/**
+	 * @param sample a datapoint (without the target variable)
+	 * @return its probability distribution over the target variable
+	 * @see #query(int[], double[])
+	 */
+	public double[] query(int[] sample) {
+		double[] out = new double[nValuesTarget];
+		query(sample, out);
+		return out;
+	}
+
+	public void setFrequencySamplingC(int frequencySamplingC) {
+		this.frequencySamplingC = frequencySamplingC;
+	}
+
+	int getNIterations() {
+		return nIterGibbs;
+	}
+
+	int getNBurnIn() {
+		return nBurnIn;
+	}
+
+	public int getNValuesConditionedVariable() {
+		return nValuesTarget;
+	}
+
+	/**
+	 * @return the number of observed paths
+	 */
+	public int getNLeaves() {
+		return nLeaves;
+	}
+
+	/**
+	 * @return the number of nodes of the tree, the leaves included
+	 */
+	public long getNNodes() {
+		long n = nLeaves;
+		for (int d = 0; d < nXs; d++) {
+			n += nNodes[d];
+		}
+		return n;
+	}
+
+	/**
+	 * Flushes the files of the leaves and closes them; the tree can't be used
+	 * afterwards
+	 */
+	@Override
+	public void close() throws IOException {
+		setLogStirlingCache(null);
+		leafCounts.close();
+		leafProbabilities.close();
+	}
+}
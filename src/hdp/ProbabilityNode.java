@@ -4,19 +4,18 @@ import java.util.ArrayList;
 import java.util.Arrays;
 
 import org.apache.commons.math3.random.RandomDataGenerator;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.special.Gamma;
+import org.apache.commons.math3.util.FastMath;
 
+import hdp.logStirling.LogStirlingGenerator;
 import hdp.logStirling.LogStirlingGenerator.CacheExtensionException;
 import mltools.MathUtils;
 
 public class ProbabilityNode {
 
 	/**
-	 * Max value for sampling TK
-	 */
-	public static final int MAX_TK = 10000;
-
-	/**
-	 * True count
+	 * True count (null for a leaf whose counts are packed, see counts8)
 	 */
 	int[] nk;
 	/**
@@ -25,7 +24,7 @@ public class ProbabilityNode {
 	int marginal_nk;
 
 	/**
-	 * Simulated count
+	 * Simulated count (null for a leaf whose counts are packed, see counts8)
 	 */
 	int[] tk;
 	/**
@@ -33,6 +32,17 @@ public class ProbabilityNode {
 	 */
 	int marginal_tk;
 
+	/**
+	 * Counts of a leaf packed in the narrowest width that holds them: nk in
+	 * [0,K) then tk in [K,2K), as unsigned bytes (counts8) or unsigned shorts
+	 * (counts16). The storage is promoted to the next width (up to nk and tk)
+	 * when a count overflows. Intermediate nodes, whose nks are sums over their
+	 * subtree, always use nk and tk. Read and write the counts through getNk,
+	 * getTk, addNk and putTk.
+	 */
+	byte[] counts8;
+	short[] counts16;
+
 	/**
 	 * contains the parameters calculated as a function of (c,d,nk,tk)
 	 */
@@ -42,6 +52,33 @@ public class ProbabilityNode {
 	 * contains the accumulated pk for several runs of Gibbs sampling
 	 */
 	double[] pkAveraged;
+	/**
+	 * pkAveraged in single precision, once the distributions have been finalised
+	 * in float (pkAveraged is then null); see
+	 * ProbabilityTree.finalizeDistributions
+	 */
+	float[] pkAveragedFloat;
+	/**
+	 * sum of the squared deviations of the recorded pks from their mean
+	 * (Welford), if the tree tracks the posterior variance
+	 */
+	double[] pkM2;
+	/**
+	 * pkHistogram[k * nBins + b] is the number of recorded pk[k] in [b/nBins,
+	 * (b+1)/nBins), if the tree keeps posterior histograms
+	 */
+	int[] pkHistogram;
+	/**
+	 * Node standing for any value of the branching variable, for the queries
+	 * with missing values: its distributions are the averages of those of the
+	 * children, weighted by their number of datapoints (see
+	 * ProbabilityTree.computeMarginals); null if not computed
+	 */
+	ProbabilityNode marginalChild;
+	/**
+	 * number of datapoints in the subtree, set with the marginal children
+	 */
+	long nDatapointsBelow;
 	/**
 	 * contains the number of pks that have been accumulated in the pkSum
 	 */
@@ -51,12 +88,44 @@ public class ProbabilityNode {
 
 	int varNumberForBanchingChildren;
 
+	/**
+	 * Minimum half-width of the window for sampling tk; nodes with few customers
+	 * enumerate all their possible values, nodes with many get a window sized from
+	 * the spread of their number of tables
+	 */
 	public static int windowForSamplingTk = 10;
-	double[] probabilityForWindowTk = new double[2 * windowForSamplingTk + 1];
+	/**
+	 * Maximum half-width of the window for sampling tk
+	 */
+	public static int maxWindowForSamplingTk = 500;
+	/**
+	 * Scratch space for the posterior of tk over the sampling window (one per
+	 * thread rather than one per node)
+	 */
+	private static final ThreadLocal<double[]> windowBuffer = ThreadLocal
+			.withInitial(() -> new double[2 * windowForSamplingTk + 1]);
+	private static final ThreadLocal<float[]> stirlingRowBuffer = ThreadLocal
+			.withInitial(() -> new float[2 * windowForSamplingTk + 1]);
 
 	ProbabilityNode parent;
 	ProbabilityNode[] children;
 	ProbabilityTree tree;
+	/**
+	 * true if the node has been made a leaf by pruning, above the level of the
+	 * leaves: it holds the counts of the data of its former subtree
+	 */
+	boolean truncated;
+	/**
+	 * true if the last child is the "other" leaf holding the data of the pruned
+	 * branches (after the values of the variable)
+	 */
+	boolean hasOtherChild;
+
+	/**
+	 * Last minibatch iteration in which this node was selected (stochastic
+	 * training mode)
+	 */
+	int lastMinibatch = -1;
 
 	public ProbabilityNode(ProbabilityTree probabilityTree, int varNumberForBanchingChildren) {
 		this(probabilityTree, varNumberForBanchingChildren, false);
@@ -66,10 +135,9 @@ public class ProbabilityNode {
 		this.tree = probabilityTree;
 		int nValuesY = tree.nValuesConditionedVariable;
 		int[] nValuesXs = tree.nValuesContioningVariables;
-		nk = new int[nValuesY];
-		tk = new int[nValuesY];
 		parent = null;
 		this.varNumberForBanchingChildren = varNumberForBanchingChildren;
+		allocateCounts(nValuesY);
 		if (createFullTree && varNumberForBanchingChildren + 1 <= tree.getNXs()) {
 			children = new ProbabilityNode[nValuesXs[varNumberForBanchingChildren]];
 			for (int i = 0; i < children.length; i++) {
@@ -88,9 +156,8 @@ public class ProbabilityNode {
 		this.tree = parent.tree;
 		int nValuesY = tree.nValuesConditionedVariable;
 		int[] nValuesXs = tree.nValuesContioningVariables;
-		nk = new int[nValuesY];
-		tk = new int[nValuesY];
 		this.varNumberForBanchingChildren = varNumberForBanchingChildren;
+		allocateCounts(nValuesY);
 
 		if (createFullTree && varNumberForBanchingChildren + 1 <= tree.getNXs()) {
 			children = new ProbabilityNode[nValuesXs[varNumberForBanchingChildren]];
@@ -102,6 +169,138 @@ public class ProbabilityNode {
 
 	}
 
+	/**
+	 * Allocates empty counts: packed bytes for the leaves, ints for the
+	 * intermediate nodes
+	 */
+	private void allocateCounts(int nValuesY) {
+		if (varNumberForBanchingChildren >= tree.getNXs()) {
+			counts8 = new byte[2 * nValuesY];
+		} else {
+			nk = new int[nValuesY];
+			tk = new int[nValuesY];
+		}
+	}
+
+	/**
+	 * @return the number of values of the target covered by the counts
+	 */
+	int getNValuesCounts() {
+		if (nk != null) {
+			return nk.length;
+		}
+		return ((counts8 != null) ? counts8.length : counts16.length) >> 1;
+	}
+
+	int getNk(int k) {
+		if (nk != null) {
+			return nk[k];
+		}
+		return (counts8 != null) ? counts8[k] & 0xFF : counts16[k] & 0xFFFF;
+	}
+
+	int getTk(int k) {
+		if (tk != null) {
+			return tk[k];
+		}
+		return (counts8 != null) ? counts8[(counts8.length >> 1) + k] & 0xFF
+				: counts16[(counts16.length >> 1) + k] & 0xFFFF;
+	}
+
+	void addNk(int k, int delta) {
+		if (nk != null) {
+			nk[k] += delta;
+		} else {
+			putPackedCount(k, getNk(k) + delta);
+		}
+	}
+
+	/**
+	 * Sets tk[k] without updating marginal_tk nor the parent (see setTk)
+	 */
+	private void putTk(int k, int val) {
+		if (tk != null) {
+			tk[k] = val;
+		} else {
+			putPackedCount(getNValuesCounts() + k, val);
+		}
+	}
+
+	/**
+	 * Stores a packed count, promoting the storage to a wider type if the value
+	 * doesn't fit (or is negative)
+	 * 
+	 * @param index k for nk[k], K+k for tk[k]
+	 */
+	private void putPackedCount(int index, int val) {
+		if (counts8 != null) {
+			if ((val & ~0xFF) == 0) {
+				counts8[index] = (byte) val;
+				return;
+			}
+			widenCounts(val);
+		} else if ((val & ~0xFFFF) != 0) {
+			widenCounts(val);
+		}
+		if (counts16 != null) {
+			counts16[index] = (short) val;
+		} else if (index < nk.length) {
+			nk[index] = val;
+		} else {
+			tk[index - nk.length] = val;
+		}
+	}
+
+	/**
+	 * Moves the packed counts to shorts, or to ints if val doesn't fit in a short
+	 */
+	private void widenCounts(int val) {
+		int nValues = getNValuesCounts();
+		int[] counts = new int[2 * nValues];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = (counts8 != null) ? counts8[i] & 0xFF : counts16[i] & 0xFFFF;
+		}
+		counts8 = null;
+		counts16 = null;
+		if ((val & ~0xFFFF) == 0) {
+			counts16 = new short[counts.length];
+			for (int i = 0; i < counts.length; i++) {
+				counts16[i] = (short) counts[i];
+			}
+		} else {
+			nk = Arrays.copyOf(counts, nValues);
+			tk = Arrays.copyOfRange(counts, nValues, counts.length);
+		}
+	}
+
+	/**
+	 * @return the nks (a copy if they are packed)
+	 */
+	int[] getNks() {
+		if (nk != null) {
+			return nk;
+		}
+		int[] res = new int[getNValuesCounts()];
+		for (int k = 0; k < res.length; k++) {
+			res[k] = getNk(k);
+		}
+		return res;
+	}
+
+	/**
+	 * @return the tks (a copy if they are packed)
+	 */
+	int[] getTks() {
+		if (tk != null || nk != null) {
+			return tk;
+		}
+		int[] res = new int[getNValuesCounts()];
+		for (int k = 0; k < res.length; k++) {
+			res[k] = getTk(k);
+		}
+		return res;
+	}
+
 	/**
 	 * Add observation to the leaves in the associated subtree
 	 * 
@@ -111,29 +310,375 @@ public class ProbabilityNode {
 	 *                    covariate is at index 1
 	 */
 	public void addObservation(int[] values, int xIndexToUse) {
+		addObservation(values, xIndexToUse, 1);
+	}
+
+	/**
+	 * Add an observation seen several times to the leaves in the associated
+	 * subtree
+	 * 
+	 * @param values      the set of values for the observation; the first is the
+	 *                    target (y)
+	 * @param xIndexToUse the index of the covariate to use in values; first
+	 *                    covariate is at index 1
+	 * @param count       number of times the observation has been seen
+	 */
+	public void addObservation(int[] values, int xIndexToUse, int count) {
+		if (values[0] >= getNValuesCounts()) {
+			// new value of the target discovered while streaming
+			growTarget();
+		}
 		if (isLeaf()) {
 			// if at the leaf, then count the data
-			nk[values[0]]++;
-			marginal_nk++;
+			addNk(values[0], count);
+			marginal_nk += count;
 		} else {
-			nk[values[0]]++;
-			marginal_nk++;
+			addNk(values[0], count);
+			marginal_nk += count;
 			// else just call recursively
 			if (children == null) {
 				// -1 because values here has y as well
 				children = new ProbabilityNode[tree.nValuesContioningVariables[xIndexToUse - 1]];
 			}
 
-			if (children[values[xIndexToUse]] == null) {
-				children[values[xIndexToUse]] = new ProbabilityNode(this, xIndexToUse);
+			ProbabilityNode child = getChild(values[xIndexToUse]);
+			if (child == null) {
+				if (values[xIndexToUse] >= getNValuesBranching()) {
+					// new value of the covariate discovered while streaming
+					growChildren(tree.nValuesContioningVariables[xIndexToUse - 1]);
+				}
+				child = new ProbabilityNode(this, xIndexToUse);
+				children[values[xIndexToUse]] = child;
 			}
 
-			children[values[xIndexToUse]].addObservation(values, xIndexToUse + 1);
+			child.addObservation(values, xIndexToUse + 1, count);
+		}
+	}
+
+	/**
+	 * Removes an observation seen several times from the counts of the
+	 * subtree; mirror of addObservation, for a tree whose tks have not been
+	 * initialized yet (every node holds the counts of the data). The path must
+	 * exist and hold at least count observations.
+	 * 
+	 * @param values      the set of values for the observation; the first is the
+	 *                    target (y)
+	 * @param xIndexToUse the index of the covariate to use in values; first
+	 *                    covariate is at index 1
+	 * @param count       number of times the observation is removed
+	 */
+	public void removeObservation(int[] values, int xIndexToUse, int count) {
+		addNk(values[0], -count);
+		marginal_nk -= count;
+		if (!isLeaf()) {
+			getChild(values[xIndexToUse]).removeObservation(values, xIndexToUse + 1, count);
 		}
 	}
 
+	/**
+	 * Returns the leaf of the subtree on the path of an observation
+	 * 
+	 * @param values      the set of values for the observation; the first is the
+	 *                    target (y)
+	 * @param xIndexToUse the index of the covariate to use in values; first
+	 *                    covariate is at index 1
+	 * @param create      true to create the missing nodes of the path (with no
+	 *                    counts)
+	 * @return the leaf, or null if the path does not exist and create is false
+	 */
+	public ProbabilityNode getLeaf(int[] values, int xIndexToUse, boolean create) {
+		if (isLeaf()) {
+			return this;
+		}
+		int value = values[xIndexToUse];
+		ProbabilityNode child = getChild(value);
+		if (child == null) {
+			if (!create) {
+				return null;
+			}
+			int nValuesX = tree.nValuesContioningVariables[xIndexToUse - 1];
+			if (children == null) {
+				children = new ProbabilityNode[nValuesX];
+			} else if (value >= getNValuesBranching()) {
+				growChildren(nValuesX);
+			}
+			child = new ProbabilityNode(this, xIndexToUse);
+			children[value] = child;
+		}
+		return child.getLeaf(values, xIndexToUse + 1, create);
+	}
+
+	/**
+	 * Adds observations of value k to this leaf once the tks are initialized: a
+	 * table is opened on the nodes of the path that had none for k, so that 1 <=
+	 * tk <= nk still holds and the nk of a node is still the sum of the tks of
+	 * its children.
+	 * 
+	 * @param k     the value of the target
+	 * @param count number of observations to add
+	 */
+	public void addObservationToTables(int k, int count) {
+		addNk(k, count);
+		marginal_nk += count;
+		openTableIfNeeded(k);
+	}
+
+	/**
+	 * Removes observations of value k from this leaf once the tks are
+	 * initialized: the tks that become larger than their nks are lowered, up the
+	 * path, so that 1 <= tk <= nk still holds (tk = 0 when nk = 0) and the nk of a
+	 * node is still the sum of the tks of its children.
+	 * 
+	 * @param k     the value of the target
+	 * @param count number of observations to remove (at most nk[k])
+	 */
+	public void removeObservationFromTables(int k, int count) {
+		addNk(k, -count);
+		marginal_nk -= count;
+		closeTablesIfNeeded(k);
+	}
+
+	private void openTableIfNeeded(int k) {
+		if (getTk(k) == 0 && getNk(k) > 0) {
+			setTk(k, 1);
+			if (parent != null) {
+				parent.openTableIfNeeded(k);
+			}
+		}
+	}
+
+	private void closeTablesIfNeeded(int k) {
+		// the root has a single table per value
+		int maxTk = (parent == null) ? Math.min(1, getNk(k)) : getNk(k);
+		if (getTk(k) > maxTk) {
+			setTk(k, maxTk);
+			if (parent != null) {
+				parent.closeTablesIfNeeded(k);
+			}
+		}
+	}
+
+	/**
+	 * Adds the counts of another tree (built over other data for the same
+	 * variables) to the subtree; subtrees that only exist in the other tree are
+	 * moved to this one.
+	 * 
+	 * @param other root of the subtree to merge, at the same position in its tree
+	 */
+	public void mergeCounts(ProbabilityNode other) {
+		int nValues = getNValuesCounts();
+		for (int k = 0; k < nValues; k++) {
+			addNk(k, other.getNk(k));
+		}
+		marginal_nk += other.marginal_nk;
+
+		if (other.children != null) {
+			if (children == null) {
+				children = new ProbabilityNode[other.children.length];
+			} else if (children.length < other.children.length) {
+				children = Arrays.copyOf(children, other.children.length);
+			}
+			for (int c = 0; c < other.children.length; c++) {
+				ProbabilityNode otherChild = other.children[c];
+				if (otherChild == null) {
+					continue;
+				}
+				if (children[c] == null) {
+					otherChild.parent = this;
+					children[c] = otherChild;
+				} else {
+					children[c].mergeCounts(otherChild);
+				}
+			}
+		}
+	}
+
+	private void growTarget() {
+		int nValuesY = tree.nValuesConditionedVariable;
+		if (nk != null) {
+			nk = Arrays.copyOf(nk, nValuesY);
+			tk = Arrays.copyOf(tk, nValuesY);
+			return;
+		}
+		int nValues = getNValuesCounts();
+		if (counts8 != null) {
+			byte[] grown = new byte[2 * nValuesY];
+			System.arraycopy(counts8, 0, grown, 0, nValues);
+			System.arraycopy(counts8, nValues, grown, nValuesY, nValues);
+			counts8 = grown;
+		} else {
+			short[] grown = new short[2 * nValuesY];
+			System.arraycopy(counts16, 0, grown, 0, nValues);
+			System.arraycopy(counts16, nValues, grown, nValuesY, nValues);
+			counts16 = grown;
+		}
+	}
+
+	/**
+	 * Grows the counts and children of the subtree to the current numbers of
+	 * values of the variables (which can grow while streaming the data)
+	 */
+	public void growToArities() {
+		if (getNValuesCounts() < tree.nValuesConditionedVariable) {
+			growTarget();
+		}
+		if (!isLeaf()) {
+			int nValuesX = tree.nValuesContioningVariables[varNumberForBanchingChildren];
+			if (children == null && tree.createFullTree) {
+				children = new ProbabilityNode[nValuesX];
+			} else if (children != null && getNValuesBranching() < nValuesX) {
+				growChildren(nValuesX);
+			}
+			if (children != null) {
+				for (int c = 0; c < children.length; c++) {
+					if (children[c] == null && tree.createFullTree && !hasOtherChild) {
+						children[c] = new ProbabilityNode(this, varNumberForBanchingChildren + 1, true);
+					} else if (children[c] != null) {
+						children[c].growToArities();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of nodes of the subtree
+	 */
+	public int countNodes() {
+		int n = 1;
+		if (children != null) {
+			for (int c = 0; c < children.length; c++) {
+				if (children[c] != null) {
+					n += children[c].countNodes();
+				}
+			}
+		}
+		return n;
+	}
+
 	public boolean isLeaf() {
-		return varNumberForBanchingChildren >= tree.getNXs();
+		return truncated || varNumberForBanchingChildren >= tree.getNXs();
+	}
+
+	/**
+	 * @return the child for a value of the branching variable, the "other" leaf
+	 *         if the value has no child and branches have been pruned, or null
+	 */
+	ProbabilityNode getChild(int value) {
+		if (children == null) {
+			return null;
+		}
+		if (value < getNValuesBranching() && children[value] != null) {
+			return children[value];
+		}
+		return hasOtherChild ? children[children.length - 1] : null;
+	}
+
+	/**
+	 * @return the number of values of the branching variable that have a slot in
+	 *         children
+	 */
+	int getNValuesBranching() {
+		return hasOtherChild ? children.length - 1 : children.length;
+	}
+
+	/**
+	 * Grows children to a new number of values of the branching variable, the
+	 * "other" leaf staying last
+	 */
+	private void growChildren(int nValuesX) {
+		if (hasOtherChild) {
+			ProbabilityNode other = children[children.length - 1];
+			children[children.length - 1] = null;
+			children = Arrays.copyOf(children, nValuesX + 1);
+			children[nValuesX] = other;
+		} else {
+			children = Arrays.copyOf(children, nValuesX);
+		}
+	}
+
+	/**
+	 * Collects the leaves of the subtree, truncated ones included
+	 */
+	protected void collectLeaves(ArrayList<ProbabilityNode> leaves) {
+		if (isLeaf()) {
+			leaves.add(this);
+		} else if (children != null) {
+			for (int c = 0; c < children.length; c++) {
+				if (children[c] != null) {
+					children[c].collectLeaves(leaves);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prunes the subtree (see ProbabilityTree.setMinCountPerBranch): the children
+	 * with fewer than minCount datapoints are merged into the "other" leaf, and
+	 * the chains of single children are cut at their top, which becomes a leaf
+	 * holding their data. The tks must be prepared again afterwards.
+	 * 
+	 * @param minCount min number of datapoints of a branch
+	 * @return the counts of the data of the subtree for each value of the target
+	 */
+	protected int[] prune(int minCount) {
+		if (isLeaf() || children == null) {
+			return getNks();
+		}
+		int[] counts = new int[nk.length];
+		ProbabilityNode other = hasOtherChild ? children[children.length - 1] : null;
+		int nValues = getNValuesBranching();
+		for (int c = 0; c < nValues; c++) {
+			if (children[c] == null) {
+				continue;
+			}
+			int[] childCounts = children[c].prune(minCount);
+			long childTotal = 0;
+			for (int k = 0; k < counts.length; k++) {
+				counts[k] += childCounts[k];
+				childTotal += childCounts[k];
+			}
+			if (childTotal < minCount) {
+				if (other == null) {
+					other = new ProbabilityNode(this, varNumberForBanchingChildren + 1);
+					other.truncated = true;
+					children = Arrays.copyOf(children, children.length + 1);
+					children[children.length - 1] = other;
+					hasOtherChild = true;
+				}
+				for (int k = 0; k < counts.length; k++) {
+					other.addNk(k, childCounts[k]);
+				}
+				other.marginal_nk += childTotal;
+				children[c] = null;
+			}
+		}
+		if (other != null) {
+			for (int k = 0; k < counts.length; k++) {
+				counts[k] += other.getNk(k);
+			}
+		}
+
+		// a node whose subtree is a single chain becomes a leaf
+		ProbabilityNode onlyChild = null;
+		int nChildren = 0;
+		for (int c = 0; c < children.length; c++) {
+			if (children[c] != null) {
+				onlyChild = children[c];
+				nChildren++;
+			}
+		}
+		if (parent != null && nChildren == 1 && onlyChild.isLeaf()) {
+			nk = counts;
+			marginal_nk = 0;
+			for (int k = 0; k < counts.length; k++) {
+				marginal_nk += counts[k];
+			}
+			children = null;
+			hasOtherChild = false;
+			truncated = true;
+		}
+		return counts;
 	}
 
 	/**
@@ -165,7 +710,7 @@ public class ProbabilityNode {
 			for (int c = 0; children != null && c < children.length; c++) {
 				if (children[c] != null) {
 					for (int k = 0; k < nk.length; k++) {
-						int tkChild = children[c].tk[k];
+						int tkChild = children[c].getTk(k);
 						nk[k] += tkChild;
 						marginal_nk += tkChild;
 					}
@@ -175,24 +720,85 @@ public class ProbabilityNode {
 
 		// Now nks are set for current node; let's initialize the tks
 
+		marginal_tk = 0;
+		int nValues = getNValuesCounts();
 		if (parent == null) {
-			for (int k = 0; k < nk.length; k++) {
-				tk[k] = (nk[k] == 0) ? 0 : 1;
-				marginal_tk += tk[k];
+			for (int k = 0; k < nValues; k++) {
+				int t = (getNk(k) == 0) ? 0 : 1;
+				putTk(k, t);
+				marginal_tk += t;
 			}
 		} else {
 			double concentration = getConcentration();
-			for (int k = 0; k < nk.length; k++) {
-				if (nk[k] <= 1) {
-					tk[k] = nk[k];
-				} else {
-					tk[k] = (int) Math.max(1, Math.floor(
-							concentration * (tree.digamma(concentration + nk[k]) - tree.digamma(concentration))));
+			for (int k = 0; k < nValues; k++) {
+				int t = initialTk(getNk(k), concentration);
+				putTk(k, t);
+				marginal_tk += t;
+			}
+		}
+	}
 
+	/**
+	 * Sets the tks of the subtree to their expected values under their
+	 * conditional posteriors given the rest of the tree (evaluated over the same
+	 * window as for sampling, rounded). Children are processed first, so that the
+	 * nks of the intermediate nodes are the sums of the tks of their children.
+	 * 
+	 * @return true if any tk of the subtree changed
+	 */
+	public boolean setExpectedTks() {
+		boolean changed = false;
+		if (children != null) {
+			for (int c = 0; c < children.length; c++) {
+				if (children[c] != null) {
+					changed |= children[c].setExpectedTks();
 				}
-				marginal_tk += tk[k];
 			}
 		}
+
+		// parent's nk are updated through setTk
+		int nValues = getNValuesCounts();
+		for (int k = 0; k < nValues; k++) {
+			int n = getNk(k);
+			int t;
+			if (parent == null) {
+				t = (n == 0) ? 0 : 1;
+			} else if (n <= 1) {
+				t = n;
+			} else {
+				int lowerTk = getLowerTk(getTk(k), parent.nk[k], parent.tk[k]);
+				int upperTk = (int) Math.min(n, tree.getMaxTkLogStirling());
+				if (upperTk < lowerTk) {
+					continue;
+				}
+				int window = getWindowForSamplingTk(getConcentration(), n);
+				boolean enumerate = n <= 2 * window + 1;
+				int minTk = enumerate ? lowerTk : Math.max(lowerTk, getTk(k) - window);
+				int maxTk = enumerate ? upperTk : Math.min(upperTk, getTk(k) + window);
+
+				double[] posterior = getWindowBuffer(maxTk - minTk + 1);
+				logPosteriorWindowTk(k, minTk, maxTk, posterior);
+				double max = Double.NEGATIVE_INFINITY;
+				for (int i = 0; i <= maxTk - minTk; i++) {
+					max = Math.max(max, posterior[i]);
+				}
+				if (max == Double.NEGATIVE_INFINITY) {
+					continue;
+				}
+				double sum = 0.0, sumT = 0.0;
+				for (int i = 0; i <= maxTk - minTk; i++) {
+					double p = FastMath.exp(posterior[i] - max);
+					sum += p;
+					sumT += p * (minTk + i);
+				}
+				t = (int) Math.round(sumT / sum);
+			}
+			if (t != getTk(k)) {
+				setTk(k, t);
+				changed = true;
+			}
+		}
+		return changed;
 	}
 
 	/**
@@ -207,12 +813,13 @@ public class ProbabilityNode {
 		res -= c.logGammaRatioForConcentration(marginal_nk);
 
 		// Now nks are set for current node; let's initialize the tks
-		for (int k = 0; k < nk.length; k++) {
+		int nValues = getNValuesCounts();
+		for (int k = 0; k < nValues; k++) {
 
 			try {
-				res += tree.logStirling(0.0, nk[k], tk[k]);
+				res += tree.logStirling(0.0, getNk(k), getTk(k));
 			} catch (CacheExtensionException e) {
-				System.err.println("Cannot extends the cache to querry S(" + nk[k] + ", " + tk[k] + ")");
+				System.err.println("Cannot extends the cache to querry S(" + getNk(k) + ", " + getTk(k) + ")");
 				e.printStackTrace();
 				System.exit(1);
 			}
@@ -236,7 +843,7 @@ public class ProbabilityNode {
 		String res = "";
 
 		// root node
-		res += prefix + ":nk=" + Arrays.toString(nk) + "\n";
+		res += prefix + ":nk=" + Arrays.toString(getNks()) + "\n";
 		if (children != null) {
 			for (int c = 0; c < children.length; c++) {
 				res += children[c].printNksRecursively(prefix + " -> " + c);
@@ -249,7 +856,7 @@ public class ProbabilityNode {
 		String res = "";
 
 		// root node
-		res += prefix + ":tk=" + Arrays.toString(tk) + "\n";
+		res += prefix + ":tk=" + Arrays.toString(getTks()) + "\n";
 		if (children != null) {
 			for (int c = 0; c < children.length; c++) {
 				res += children[c].printTksRecursively(prefix + " -> " + c);
@@ -262,7 +869,7 @@ public class ProbabilityNode {
 		String res = "";
 
 		// root node
-		res += prefix + ":tk=" + Arrays.toString(tk) + " :nk=" + Arrays.toString(nk) + " :c=" + this.c + "\n";
+		res += prefix + ":tk=" + Arrays.toString(getTks()) + " :nk=" + Arrays.toString(getNks()) + " :c=" + this.c + "\n";
 		if (children != null) {
 			for (int c = 0; c < children.length; c++) {
 				if (children[c] != null) {
@@ -291,7 +898,7 @@ public class ProbabilityNode {
 		String res = "";
 
 		// root node
-		res += prefix + ":pk=" + Arrays.toString(pkAveraged) + " c=" + this.c + "\n";
+		res += prefix + ":pk=" + Arrays.toString(getAveragedProbabilities()) + " c=" + this.c + "\n";
 		if (children != null) {
 			for (int c = 0; c < children.length; c++) {
 				if (children[c] != null) {
@@ -306,7 +913,7 @@ public class ProbabilityNode {
 		ArrayList<ProbabilityNode> res = new ArrayList<>();
 		if (depth == 0) {
 			res.add(this);
-		} else {
+		} else if (children != null) {
 			for (int c = 0; c < children.length; c++) {
 				if (children[c] != null) {
 					res.addAll(children[c].getAllNodesAtRelativeDepth(depth - 1));
@@ -317,134 +924,330 @@ public class ProbabilityNode {
 	}
 
 	/**
-	 * add a value to the current one of the tk[k]
+	 * Set tk[k] to a new value, updating marginal_tk and the counts of the parent
+	 * (the nk of the parent is the sum of the tks of its children)
 	 * 
 	 * @param k   the index of the value to change in tk
-	 * @param the value to set tk
-	 * @return the non-normalized posterior probability at this point;
-	 *         negative-infinity if value not authorized
+	 * @param val the value to set tk
 	 */
-	protected double setTk(int k, int val) {
+	protected void setTk(int k, int val) {
 		// how much to increment (or decrement tk by)
-		int incVal = val - tk[k];
-		if (incVal < 0) {
-			// if decrement, then have to check that valid for the
-			// parent
-			if (parent != null && incVal < 0 && (parent.nk[k] + incVal) < parent.tk[k]) {
-				// not valid; skip
-				return Double.NEGATIVE_INFINITY;
-			}
+		int incVal = val - getTk(k);
+		if (incVal == 0) {
+			return;
 		}
-
-		tk[k] += incVal;
+		putTk(k, val);
 		marginal_tk += incVal;
-
-		double res = 0.0;
-
-		// partial score difference for current node
-		try {
-			res += tree.logStirling(0.0, nk[k], tk[k]);
-		} catch (CacheExtensionException e) {
-			System.err.println("Cannot extends the cache to querry S(" + nk[k] + ", " + tk[k] + ")");
-			e.printStackTrace();
-			System.exit(1);
-		}
-
-		res += Concentration.logPochhammerSymbol(c, 0.0, marginal_tk);
-
-		// partial score difference for parent
 		if (parent != null) {
 			parent.nk[k] += incVal;
 			parent.marginal_nk += incVal;
-
-			try {
-				res += tree.logStirling(0.0, parent.nk[k], parent.tk[k]);
-			} catch (CacheExtensionException e) {
-				System.err.println("Cannot extends the cache to querry S(" + nk[k] + ", " + tk[k] + ")");
-				e.printStackTrace();
-				System.exit(1);
-			}
-
-			res -= parent.c.logGammaRatioForConcentration(parent.marginal_nk);
 		}
+	}
 
-		return res;
-
+	/**
+	 * Computes the non-normalized log-posterior of tk[k] for all the values in
+	 * [minTk,maxTk], from the current state of the node and of its parent (see
+	 * the static version)
+	 */
+	protected void logPosteriorWindowTk(int k, int minTk, int maxTk, double[] buffer) {
+		logPosteriorWindowTk(tree.getLogStirlingCache(0.0), getNk(k), getTk(k), marginal_tk, c, parent.nk[k],
+				parent.tk[k], parent.marginal_nk, parent.c, minTk, maxTk, buffer);
 	}
 
 	public void sampleTks() {
 		if (parent == null) {
 			// case for root: no sampling, t is either 0 or 1
-			for (int k = 0; k < tk.length; k++) {
+			int nValues = getNValuesCounts();
+			for (int k = 0; k < nValues; k++) {
 				// Wray says this is GEM
-				int t = (nk[k] == 0) ? 0 : 1;
+				int t = (getNk(k) == 0) ? 0 : 1;
 				setTk(k, t);
 			}
 		} else {
-			for (int k = 0; k < tk.length; k++) {
-				if (nk[k] <= 1) {
-					/*
-					 * can't sample anything, constraints say that tk[k] must be nk[k] just have to
-					 * check that tk[k] is different or not to the previous time (in case nk[k] has
-					 * just changed)
-					 */
-					setTk(k, nk[k]);
-				} else {
-					// sample case
-					// starting point
-					int oldTk = tk[k];
-					int valTk = tk[k] - windowForSamplingTk;
-					// maxTk can't be larger than nk[k]
-					int maxTk = Math.min(tk[k] + windowForSamplingTk, nk[k]);
-
-					// Limit maxTk for big dataset
-					if (maxTk > MAX_TK) {
-						maxTk = MAX_TK;
-					}
+			LogStirlingGenerator lgCache = tree.getLogStirlingCache(0.0);
+			int nValues = getNValuesCounts();
+			for (int k = 0; k < nValues; k++) {
+				setTk(k, sampleTk(tree.rng, lgCache, getNk(k), getTk(k), marginal_tk, c, parent.nk[k], parent.tk[k],
+						parent.marginal_nk, parent.c));
+			}
+		}
+	}
 
-					int index = 0;
-					while (valTk < 1) {// move to first allowed position
-						probabilityForWindowTk[index] = Double.NEGATIVE_INFINITY;
-						valTk++;
-						index++;
-					}
-					boolean hasOneValue = false;
-					while (valTk <= maxTk) {// now fill posterior
-						double logProbDifference = setTk(k, valTk);
-						probabilityForWindowTk[index] = logProbDifference;
-						hasOneValue = (hasOneValue || probabilityForWindowTk[index] != Double.NEGATIVE_INFINITY);
-						index++;
-						valTk++;
-					}
-					if (!hasOneValue) {
-						setTk(k, oldTk);
-						continue;
-					}
-					for (; index < probabilityForWindowTk.length; index++) {
-						// finish filling with neg infty
-						probabilityForWindowTk[index] = Double.NEGATIVE_INFINITY;
-					}
+	/**
+	 * Samples the number of tables t of a value of a node (not the root) with n
+	 * customers, from its conditional posterior given the rest of the tree: from
+	 * a window around t (all the values for small nodes), followed by a
+	 * long-range Metropolis step when the window doesn't cover all the allowed
+	 * values. Shared by all the engines, which only differ by how they store the
+	 * counts; the counts of the node and of its parent are passed as they are
+	 * before the sampling.
+	 * 
+	 * @param marginalTk       sum of the tks of the node
+	 * @param c                concentration of the node
+	 * @param parentNk         nk of the parent for the same value
+	 * @param parentTk         tk of the parent for the same value
+	 * @param parentMarginalNk sum of the nks of the parent
+	 * @param parentC          concentration of the parent
+	 * @return the new value of t
+	 */
+	static int sampleTk(RandomGenerator rng, LogStirlingGenerator lgCache, int n, int t, int marginalTk,
+			Concentration c, int parentNk, int parentTk, int parentMarginalNk, Concentration parentC) {
+		if (n <= 1) {
+			/*
+			 * can't sample anything, constraints say that tk[k] must be nk[k] just have to
+			 * check that tk[k] is different or not to the previous time (in case nk[k] has
+			 * just changed)
+			 */
+			return n;
+		}
+		// allowed values: see getLowerTk, and tk <= nk; tk can't go above what the
+		// Stirling cache can provide
+		int lowerTk = getLowerTk(t, parentNk, parentTk);
+		int upperTk = (int) Math.min(n, lgCache.getMaxK());
+		if (upperTk < lowerTk) {
+			return t;
+		}
 
-					// now lognormalize probabilityForWindowTk and exponentiate
-					MathUtils.normalizeInLogDomain(probabilityForWindowTk);
-					MathUtils.exp(probabilityForWindowTk);
+		int window = getWindowForSamplingTk(c.getConcentration(), n);
+		int minTk, maxTk;
+		if (n <= 2 * window + 1) {
+			// small node: exact enumeration of all the possible values
+			minTk = lowerTk;
+			maxTk = upperTk;
+		} else {
+			minTk = Math.max(lowerTk, t - window);
+			maxTk = Math.min(upperTk, t + window);
+		}
 
-					for (int j = 0; j < probabilityForWindowTk.length; j++) {
-						if (Double.isNaN(probabilityForWindowTk[j])) {
-							System.err.println("problem " + Arrays.toString(probabilityForWindowTk));
-						}
-					}
-					// now sampling tk according to probability vector
-					int chosenIndex = MathUtils.sampleFromMultinomial(tree.rng, probabilityForWindowTk);
+		double[] probabilityForWindowTk = getWindowBuffer(maxTk - minTk + 1);
+		logPosteriorWindowTk(lgCache, n, t, marginalTk, c, parentNk, parentTk, parentMarginalNk, parentC, minTk,
+				maxTk, probabilityForWindowTk);
+		int chosenIndex = sampleFromLogProbabilities(rng, probabilityForWindowTk, maxTk - minTk + 1);
+		if (chosenIndex >= 0) {
+			// the counts of the parent follow the chosen tk
+			int delta = minTk + chosenIndex - t;
+			t += delta;
+			marginalTk += delta;
+			parentNk += delta;
+			parentMarginalNk += delta;
+		}
 
-					// assign chosen tk
-					int valueTkChosen = oldTk - windowForSamplingTk + chosenIndex;
-					setTk(k, valueTkChosen);
-				}
+		if (maxTk - minTk < upperTk - lowerTk) {
+			// the window doesn't cover all the values: long-range move
+			t = sampleTkMultiScale(rng, lgCache, n, t, marginalTk, c, parentNk, parentTk, parentMarginalNk, parentC,
+					lowerTk, upperTk, window);
+		}
+		return t;
+	}
+
+	/**
+	 * @return the smallest value allowed for tk: tk >= 1, and the parent can't
+	 *         lose more customers than it has in excess of its tables
+	 */
+	static int getLowerTk(int t, int parentNk, int parentTk) {
+		return Math.max(1, t - (parentNk - parentTk));
+	}
+
+	/**
+	 * @return the number of tables for n customers to start the sampling from:
+	 *         its expected value c(psi(c+n)-psi(c)), at least 1
+	 */
+	static int initialTk(int n, double concentration) {
+		if (n <= 1) {
+			return n;
+		}
+		return (int) Math.max(1,
+				Math.floor(concentration * (Gamma.digamma(concentration + n) - Gamma.digamma(concentration))));
+	}
+
+	/**
+	 * Half-width of the window of values of tk to sample from: a few standard
+	 * deviations of the number of tables for n customers with the given
+	 * concentration, and at least windowForSamplingTk. <br/>
+	 * Var[t] = c(psi(c+n)-psi(c)) + c^2(psi'(c+n)-psi'(c))
+	 */
+	static int getWindowForSamplingTk(double concentration, int n) {
+		if (n <= 2 * windowForSamplingTk + 1) {
+			return windowForSamplingTk;
+		}
+		double variance = concentration * (Gamma.digamma(concentration + n) - Gamma.digamma(concentration))
+				+ concentration * concentration * (Gamma.trigamma(concentration + n) - Gamma.trigamma(concentration));
+		int window = (int) Math.ceil(3.0 * Math.sqrt(Math.max(variance, 0.0)));
+		return Math.min(Math.max(window, windowForSamplingTk), maxWindowForSamplingTk);
+	}
+
+	/**
+	 * Metropolis step for tk with a symmetric proposal whose scale is chosen at
+	 * random among window*4, window*16, ... up to the range of allowed values;
+	 * allows tk to move far from its current value in a single sweep for large
+	 * nodes.
+	 * 
+	 * @return the new value of t
+	 */
+	private static int sampleTkMultiScale(RandomGenerator rng, LogStirlingGenerator lgCache, int n, int t,
+			int marginalTk, Concentration c, int parentNk, int parentTk, int parentMarginalNk, Concentration parentC,
+			int lowerTk, int upperTk, int window) {
+		int nScales = 0;
+		for (long scale = 4L * window; scale / 4 < upperTk - lowerTk; scale *= 4) {
+			nScales++;
+		}
+		if (nScales == 0) {
+			return t;
+		}
+		long scale = 4L * window;
+		for (int s = rng.nextInt(nScales); s > 0; s--) {
+			scale *= 4;
+		}
+		scale = Math.min(scale, upperTk - lowerTk);
+
+		// step uniform in [-scale,-1] U [1,scale]
+		int step = 1 + rng.nextInt((int) scale);
+		int proposedTk = rng.nextBoolean() ? t + step : t - step;
+		if (proposedTk < lowerTk || proposedTk > upperTk) {
+			return t;
+		}
+
+		double[] buffer = getWindowBuffer(1);
+		logPosteriorWindowTk(lgCache, n, t, marginalTk, c, parentNk, parentTk, parentMarginalNk, parentC, proposedTk,
+				proposedTk, buffer);
+		double logProposed = buffer[0];
+		logPosteriorWindowTk(lgCache, n, t, marginalTk, c, parentNk, parentTk, parentMarginalNk, parentC, t, t,
+				buffer);
+		double logCurrent = buffer[0];
+		if (logProposed == Double.NEGATIVE_INFINITY) {
+			return t;
+		}
+		if (logProposed >= logCurrent || rng.nextDouble() < FastMath.exp(logProposed - logCurrent)) {
+			return proposedTk;
+		}
+		return t;
+	}
+
+	/**
+	 * Computes the non-normalized log-posterior of the number of tables t of a
+	 * value of a node for all the values in [minTk,maxTk], from the current
+	 * counts of the node and of its parent (which are not modified). Only the
+	 * terms that depend on t are computed; the Pochhammer symbol of the node is
+	 * updated in closed form as t varies.
+	 * 
+	 * @param n      the number of customers of the value
+	 * @param t      the current number of tables of the value
+	 * @param minTk  first value of t to evaluate
+	 * @param maxTk  last value of t to evaluate (included)
+	 * @param buffer where to store the results; buffer[i] is for t=minTk+i
+	 * @see #sampleTk for the other parameters
+	 */
+	static void logPosteriorWindowTk(LogStirlingGenerator lgCache, int n, int t, int marginalTk, Concentration c,
+			int parentNk, int parentTk, int parentMarginalNk, Concentration parentC, int minTk, int maxTk,
+			double[] buffer) {
+		int length = maxTk - minTk + 1;
+
+		// S(n, t) for t in the window: one row segment of the cache
+		float[] row = getStirlingRowBuffer(length);
+		try {
+			lgCache.queryRow(n, minTk, maxTk, row, 0);
+		} catch (CacheExtensionException e) {
+			System.err.println("Cannot extends the cache to querry S(" + n + ", " + maxTk + ")");
+			System.err.println("Throws as RuntimeException");
+			throw new RuntimeException(e);
+		}
+		for (int i = 0; i < length; i++) {
+			buffer[i] = row[i];
+		}
+
+		// (c)_T with T = marginalTk - t + t', i.e. T * log(c) when d=0
+		double logC = c.getLogConcentration();
+		double logPochhammer = Concentration.logPochhammerSymbol(c, 0.0, marginalTk - t + minTk);
+		for (int i = 0; i < length; i++) {
+			buffer[i] += logPochhammer;
+			logPochhammer += logC;
+		}
+
+		// parent's counts with nk moved by the same delta as t
+		int deltaMin = minTk - t;
+		for (int i = 0; i < length; i++) {
+			int parentNkMoved = parentNk + deltaMin + i;
+			if (parentNkMoved < parentTk) {
+				// not authorized: parent has more tables than customers
+				buffer[i] = Double.NEGATIVE_INFINITY;
+			} else {
+				buffer[i] += logStirling(lgCache, parentNkMoved, parentTk);
+				buffer[i] -= parentC.logGammaRatioForConcentration(parentMarginalNk + deltaMin + i);
 			}
 		}
 	}
 
+	static double logStirling(LogStirlingGenerator lgCache, int n, int k) {
+		try {
+			return lgCache.query(n, k);
+		} catch (CacheExtensionException e) {
+			System.err.println("Cannot extends the cache to querry S(" + n + ", " + k + ")");
+			System.err.println("Throws as RuntimeException");
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Samples an index in [0,length) proportionally to exp(logProbs[i])
+	 * 
+	 * @return the index sampled; -1 if no value is authorized
+	 */
+	static int sampleFromLogProbabilities(RandomGenerator rng, double[] logProbs, int length) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < length; i++) {
+			if (logProbs[i] > max) {
+				max = logProbs[i];
+			}
+		}
+		if (max == Double.NEGATIVE_INFINITY) {
+			return -1;
+		}
+
+		double sum = 0.0;
+		for (int i = 0; i < length; i++) {
+			logProbs[i] = FastMath.exp(logProbs[i] - max);
+			sum += logProbs[i];
+		}
+		if (Double.isNaN(sum)) {
+			System.err.println("problem " + Arrays.toString(Arrays.copyOf(logProbs, length)));
+		}
+
+		double rand = rng.nextDouble() * sum;
+		int chosen = 0;
+		double sumProba = logProbs[chosen];
+		while (rand > sumProba && chosen < length - 1) {
+			chosen++;
+			sumProba += logProbs[chosen];
+		}
+		return chosen;
+	}
+
+	/**
+	 * @return a scratch buffer of at least the given length, local to the
+	 *         current thread
+	 */
+	static double[] getWindowBuffer(int length) {
+		double[] buffer = windowBuffer.get();
+		if (buffer.length < length) {
+			buffer = new double[length];
+			windowBuffer.set(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * @return a scratch buffer for rows of Stirling numbers of at least the given
+	 *         length, local to the current thread
+	 */
+	static float[] getStirlingRowBuffer(int length) {
+		float[] buffer = stirlingRowBuffer.get();
+		if (buffer.length < length) {
+			buffer = new float[length];
+			stirlingRowBuffer.set(buffer);
+		}
+		return buffer;
+	}
+
 	public double getConcentration() {
 		if (c == null) {
 			return 2.0;
@@ -459,7 +1262,7 @@ public class ProbabilityNode {
 				int sumTkChildren = 0;
 				for (int c = 0; c < children.length; c++) {
 					if (children[c] != null) {
-						sumTkChildren += children[c].tk[k];
+						sumTkChildren += children[c].getTk(k);
 					}
 				}
 
@@ -483,7 +1286,6 @@ public class ProbabilityNode {
 	public void clearMemoryAfterSmoothing() {
 		pk = null;
 		tk = null;
-		probabilityForWindowTk = null;
 		if (children != null) {
 			for (int c = 0; c < children.length; c++) {
 				if (children[c] != null) {
@@ -495,7 +1297,7 @@ public class ProbabilityNode {
 
 	public void createSyntheticSubTree(RandomDataGenerator rdg) {
 		if (pk == null) {
-			pk = new double[tk.length];
+			pk = new double[getNValuesCounts()];
 		}
 		// sample some concentration
 		double parentConcentration = (parent == null) ? 2.0 : parent.getConcentration();
@@ -543,9 +1345,10 @@ public class ProbabilityNode {
 	public void convertCountToProbs() {
 		if (isLeaf()) {
 			// if at the leaf, then count to probabilities
-			pkAveraged = new double[nk.length];
-			for (int i = 0; i < nk.length; i++) {
-				pkAveraged[i] = MathUtils.MEsti(nk[i], marginal_nk, nk.length);
+			int nValues = getNValuesCounts();
+			pkAveraged = new double[nValues];
+			for (int i = 0; i < nValues; i++) {
+				pkAveraged[i] = MathUtils.MEsti(getNk(i), marginal_nk, nValues);
 			}
 		} else {
 			// else just call recursively
@@ -560,18 +1363,19 @@ public class ProbabilityNode {
 	}
 
 	public void convertCountToProbsBackOff(boolean m_BackOff) {
-		pkAveraged = new double[nk.length];
-		if (MathUtils.sum(nk) != 0) {
-			for (int i = 0; i < nk.length; i++) {
-				pkAveraged[i] = MathUtils.MEsti(nk[i], marginal_nk, nk.length);
+		int[] counts = getNks();
+		pkAveraged = new double[counts.length];
+		if (MathUtils.sum(counts) != 0) {
+			for (int i = 0; i < counts.length; i++) {
+				pkAveraged[i] = MathUtils.MEsti(counts[i], marginal_nk, counts.length);
 			}
 		} else {
 			if (m_BackOff) {
 				// Here, this.parent is never null because sum(nk) is never 0 for the root
 				pkAveraged = this.parent.pkAveraged;
 			} else {
-				for (int i = 0; i < nk.length; i++) {
-					pkAveraged[i] = (double) 1 / nk.length;
+				for (int i = 0; i < counts.length; i++) {
+					pkAveraged[i] = (double) 1 / counts.length;
 				}
 			}
 		}
@@ -598,9 +1402,24 @@ public class ProbabilityNode {
 	 *      topicmodels.org</a> (Equation 1)
 	 */
 	public void computeProbabilities() {
+		computeLocalProbabilities();
 
+		if (children != null) {
+			for (int c = 0; c < children.length; c++) {
+				if (children[c] != null) {
+					children[c].computeProbabilities();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes the smoothed probabilities of this node only (the parent's must be
+	 * up to date)
+	 */
+	protected void computeLocalProbabilities() {
 		if (pk == null) {
-			pk = new double[nk.length];
+			pk = new double[getNValuesCounts()];
 		}
 		double concentration = getConcentration();
 		double sum = 0.0;
@@ -608,8 +1427,7 @@ public class ProbabilityNode {
 			double parentProb = (this.parent != null) ? this.parent.pk[k] : 1.0 / pk.length;// uniform parent if root
 																							// node
 
-			pk[k] = (nk[k]) / (marginal_nk + concentration)
-					+ (concentration) * parentProb / (marginal_nk + concentration);
+			pk[k] = smoothedProbability(getNk(k), marginal_nk, concentration, parentProb);
 			sum += pk[k];
 		}
 
@@ -617,43 +1435,303 @@ public class ProbabilityNode {
 		for (int k = 0; k < pk.length; k++) {
 			pk[k] /= sum;
 		}
+	}
+
+	/**
+	 * Computes the smoothed probabilities of a node whose counts are at
+	 * nk[nkOffset + k], for the engines that store the counts of their nodes in
+	 * flat arrays (same as computeLocalProbabilities)
+	 *
+	 * @param parentPk the probabilities of the parent, null for the root
+	 */
+	static void computeProbabilities(int[] nk, int nkOffset, int marginalNk, double concentration,
+			double[] parentPk, int parentOffset, double[] pk, int pkOffset, int nValues) {
+		double sum = 0.0;
+		for (int k = 0; k < nValues; k++) {
+			double parentProb = (parentPk == null) ? 1.0 / nValues : parentPk[parentOffset + k];
+			pk[pkOffset + k] = smoothedProbability(nk[nkOffset + k], marginalNk, concentration, parentProb);
+			sum += pk[pkOffset + k];
+		}
+		for (int k = 0; k < nValues; k++) {
+			pk[pkOffset + k] /= sum;
+		}
+	}
+
+	/**
+	 * @return the non-normalized probability of a value seen nk times in a node
+	 *         with marginalNk customers, given its probability in the parent
+	 */
+	static double smoothedProbability(int nk, int marginalNk, double concentration, double parentProb) {
+		return (nk) / (marginalNk + concentration) + (concentration) * parentProb / (marginalNk + concentration);
+	}
+
+	/**
+	 * This method accumulates the pks so that the final result is averaged over
+	 * several successive iterations of the Gibbs sampling process in log space to
+	 * avoid underflow
+	 */
+	protected void recordAndAverageProbabilities() {
+		recordAndAverageLocalProbabilities();
 
 		if (children != null) {
 			for (int c = 0; c < children.length; c++) {
 				if (children[c] != null) {
-					children[c].computeProbabilities();
+					children[c].recordAndAverageProbabilities();
 				}
 			}
 		}
 	}
 
 	/**
-	 * This method accumulates the pks so that the final result is averaged over
-	 * several successive iterations of the Gibbs sampling process in log space to
-	 * avoid underflow
+	 * Accumulates the pks of this node only
 	 */
-	protected void recordAndAverageProbabilities() {
+	protected void recordAndAverageLocalProbabilities() {
 		// in this method, pkAveraged stores the log sum
 		if (this.pkAveraged == null) {
-			pkAveraged = new double[nk.length];
+			pkAveraged = new double[pk.length];
 			nPkAccumulated = 1;
 		}
 
+		if (tree.posteriorVariance && pkM2 == null) {
+			pkM2 = new double[pk.length];
+		}
+		int nBins = tree.nPosteriorHistogramBins;
+		if (nBins > 0 && pkHistogram == null) {
+			pkHistogram = new int[pk.length * nBins];
+		}
+
 		double sum = 0.0;
 		for (int k = 0; k < pkAveraged.length; k++) {
-			pkAveraged[k] += (pk[k] - pkAveraged[k]) / nPkAccumulated;
+			double delta = pk[k] - pkAveraged[k];
+			pkAveraged[k] += delta / nPkAccumulated;
 			sum += pkAveraged[k];
+			if (pkM2 != null) {
+				pkM2[k] += delta * (pk[k] - pkAveraged[k]);
+			}
+			if (pkHistogram != null) {
+				pkHistogram[k * nBins + Math.min(nBins - 1, (int) (pk[k] * nBins))]++;
+			}
 		}
 		// normalize
 		for (int k = 0; k < pk.length; k++) {
 			pkAveraged[k] /= sum;
 		}
 		nPkAccumulated++;
+	}
 
+	/**
+	 * Forgets the pks accumulated in the subtree by previous smoothings
+	 */
+	protected void resetAveragedProbabilities() {
+		pkAveraged = null;
+		pkAveragedFloat = null;
+		pkM2 = null;
+		pkHistogram = null;
+		marginalChild = null;
+		nPkAccumulated = 0;
 		if (children != null) {
 			for (int c = 0; c < children.length; c++) {
 				if (children[c] != null) {
-					children[c].recordAndAverageProbabilities();
+					children[c].resetAveragedProbabilities();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if probabilities have been recorded for this node, whatever
+	 *         their storage
+	 */
+	boolean hasAveragedProbabilities() {
+		return pkAveraged != null || pkAveragedFloat != null;
+	}
+
+	/**
+	 * @return the averaged probabilities as a distribution in double precision,
+	 *         converted from the storage chosen by the tree if needed (null if
+	 *         none have been recorded)
+	 */
+	double[] getAveragedProbabilities() {
+		if (!tree.logSpaceDistributions && !tree.floatDistributions) {
+			return pkAveraged;
+		}
+		if (!hasAveragedProbabilities()) {
+			return null;
+		}
+		double[] res = new double[tree.nValuesConditionedVariable];
+		for (int k = 0; k < res.length; k++) {
+			double value = tree.floatDistributions ? pkAveragedFloat[k] : pkAveraged[k];
+			res[k] = tree.logSpaceDistributions ? Math.exp(value) : value;
+		}
+		return res;
+	}
+
+	/**
+	 * Converts the averaged probabilities of the subtree to their final storage
+	 * and drops the buffers that are only needed for sampling. New arrays are
+	 * created, as nodes that backed off share the array of their parent.
+	 * 
+	 * @param logSpace        store log-probabilities
+	 * @param singlePrecision store floats (pkAveraged is then null)
+	 */
+	protected void finalizeDistributions(boolean logSpace, boolean singlePrecision) {
+		if (pkAveraged != null) {
+			if (singlePrecision) {
+				pkAveragedFloat = new float[pkAveraged.length];
+				for (int k = 0; k < pkAveraged.length; k++) {
+					pkAveragedFloat[k] = (float) (logSpace ? Math.log(pkAveraged[k]) : pkAveraged[k]);
+				}
+				pkAveraged = null;
+			} else if (logSpace) {
+				double[] logs = new double[pkAveraged.length];
+				for (int k = 0; k < pkAveraged.length; k++) {
+					logs[k] = Math.log(pkAveraged[k]);
+				}
+				pkAveraged = logs;
+			}
+		}
+		pk = null;
+		if (children != null) {
+			for (int c = 0; c < children.length; c++) {
+				if (children[c] != null) {
+					children[c].finalizeDistributions(logSpace, singlePrecision);
+				}
+			}
+		}
+		if (marginalChild != null) {
+			marginalChild.finalizeDistributions(logSpace, singlePrecision);
+		}
+	}
+
+	/**
+	 * Creates the marginal children of the subtree, from the leaves up
+	 * 
+	 * @param maxMissing number of missing values that the marginals of a path
+	 *                   can handle (at least 1)
+	 */
+	protected void computeMarginals(int maxMissing) {
+		if (children == null) {
+			// leaves hold the counts of the data
+			nDatapointsBelow = marginal_nk;
+			return;
+		}
+		nDatapointsBelow = 0;
+		ArrayList<ProbabilityNode> present = new ArrayList<>(children.length);
+		for (int c = 0; c < children.length; c++) {
+			if (children[c] != null) {
+				children[c].computeMarginals(maxMissing);
+				nDatapointsBelow += children[c].nDatapointsBelow;
+				present.add(children[c]);
+			}
+		}
+		marginalChild = present.isEmpty() ? null : merge(this, present, maxMissing - 1);
+	}
+
+	/**
+	 * Merges nodes of the same level into a node whose distribution, and those of
+	 * its descendants (and their own marginal children), are the averages of the
+	 * nodes' weighted by their number of datapoints
+	 * 
+	 * @param missingLeft number of further missing values below the merged node
+	 *                    that get marginal children
+	 */
+	private static ProbabilityNode merge(ProbabilityNode parent, ArrayList<ProbabilityNode> nodes,
+			int missingLeft) {
+		ProbabilityNode merged = new ProbabilityNode(parent, nodes.get(0).varNumberForBanchingChildren);
+		// only queried: no counts
+		merged.nk = null;
+		merged.tk = null;
+		merged.counts8 = null;
+		merged.counts16 = null;
+
+		int nChildren = 0;
+		for (ProbabilityNode node : nodes) {
+			merged.nDatapointsBelow += node.nDatapointsBelow;
+			if (node.children != null) {
+				nChildren = Math.max(nChildren, node.children.length);
+			}
+		}
+		double[] probabilities = new double[merged.tree.nValuesConditionedVariable];
+		double sumWeights = 0.0;
+		for (ProbabilityNode node : nodes) {
+			double[] p = node.getAveragedProbabilities();
+			// nodes created after the last smoothing have no probabilities
+			double weight = (merged.nDatapointsBelow == 0) ? 1.0 : node.nDatapointsBelow;
+			if (p == null || weight == 0.0) {
+				continue;
+			}
+			for (int k = 0; k < probabilities.length; k++) {
+				probabilities[k] += weight * p[k];
+			}
+			sumWeights += weight;
+		}
+		if (sumWeights > 0.0) {
+			for (int k = 0; k < probabilities.length; k++) {
+				probabilities[k] /= sumWeights;
+			}
+			merged.storeAveragedProbabilities(probabilities);
+		} else {
+			merged.storeAveragedProbabilities(parent.getAveragedProbabilities());
+		}
+
+		if (nChildren > 0) {
+			merged.children = new ProbabilityNode[nChildren];
+			ArrayList<ProbabilityNode> present = new ArrayList<>(nChildren);
+			ArrayList<ProbabilityNode> sameValue = new ArrayList<>(nodes.size());
+			for (int v = 0; v < nChildren; v++) {
+				sameValue.clear();
+				for (ProbabilityNode node : nodes) {
+					if (node.children != null && v < node.children.length && node.children[v] != null) {
+						sameValue.add(node.children[v]);
+					}
+				}
+				if (!sameValue.isEmpty()) {
+					merged.children[v] = merge(merged, sameValue, missingLeft);
+					present.add(merged.children[v]);
+				}
+			}
+			if (missingLeft > 0) {
+				merged.marginalChild = merge(merged, present, missingLeft - 1);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Stores probabilities in the storage chosen by the tree (see
+	 * ProbabilityTree.finalizeDistributions)
+	 */
+	private void storeAveragedProbabilities(double[] probabilities) {
+		if (probabilities == null) {
+			return;
+		}
+		if (tree.floatDistributions) {
+			pkAveragedFloat = new float[probabilities.length];
+			for (int k = 0; k < probabilities.length; k++) {
+				pkAveragedFloat[k] = (float) (tree.logSpaceDistributions ? Math.log(probabilities[k]) : probabilities[k]);
+			}
+		} else if (tree.logSpaceDistributions) {
+			pkAveraged = new double[probabilities.length];
+			for (int k = 0; k < probabilities.length; k++) {
+				pkAveraged[k] = Math.log(probabilities[k]);
+			}
+		} else {
+			pkAveraged = probabilities;
+		}
+	}
+
+	/**
+	 * Accumulates the pks of the nodes of the subtree that have never been
+	 * recorded (pks must be up to date)
+	 */
+	protected void recordMissingProbabilities() {
+		if (pkAveraged == null) {
+			recordAndAverageLocalProbabilities();
+		}
+		if (children != null) {
+			for (int c = 0; c < children.length; c++) {
+				if (children[c] != null) {
+					children[c].recordMissingProbabilities();
 				}
 			}
 		}
@@ -0,0 +1,213 @@
+package hdp;
+
+import hdp.data.Encoder;
+import hdp.data.ValueDictionary;
+
+/**
+ * Immutable copy of the distributions learned by a ProbabilityTree, to be
+ * queried by any number of threads while the tree is trained again. Queries
+ * back off to the deepest node of the path that exists, end at the "other" leaf
+ * of the pruned branches, and go through the marginal children for missing
+ * values if the tree had computed them, as ProbabilityTree.query does.
+ */
+public final class ProbabilitySnapshot {
+
+	private final Node root;
+	/**
+	 * dictionaries of the variables (target first) if the tree was built from
+	 * strings, copied so that they don't change after the snapshot
+	 */
+	private final ValueDictionary[] dictionaries;
+	/**
+	 * variableOrder[l] is the index of the conditioning variable at level l of
+	 * the tree (see ProbabilityTree.getVariableOrder)
+	 */
+	private final int[] variableOrder;
+
+	/**
+	 * @param tree a smoothed tree
+	 */
+	public ProbabilitySnapshot(ProbabilityTree tree) {
+		if (tree.root == null || !tree.root.hasAveragedProbabilities()) {
+			throw new IllegalArgumentException("The tree has not been smoothed");
+		}
+		this.root = new Node(tree.root, tree.pruningStrategy);
+		this.variableOrder = tree.getVariableOrder();
+		Encoder encoder = tree.encoder;
+		if (encoder != null) {
+			dictionaries = new ValueDictionary[tree.encoderAttributes.length];
+			for (int j = 0; j < dictionaries.length; j++) {
+				dictionaries[j] = new ValueDictionary(encoder.getDictionary(tree.encoderAttributes[j]).getValues());
+			}
+		} else {
+			dictionaries = null;
+		}
+	}
+
+	/**
+	 * Snapshot to be filled with put, parents first, before being published
+	 * 
+	 * @param rootProbabilities            the distribution of the root
+	 * @param nValuesConditioningVariables numbers of values of the conditioning
+	 *                                     variables
+	 */
+	ProbabilitySnapshot(double[] rootProbabilities, int[] nValuesConditioningVariables) {
+		this.root = new Node(rootProbabilities.clone(), nValuesConditioningVariables, 0);
+		this.dictionaries = null;
+		this.variableOrder = new int[nValuesConditioningVariables.length];
+		for (int l = 0; l < variableOrder.length; l++) {
+			variableOrder[l] = l;
+		}
+	}
+
+	/**
+	 * Adds the distribution of a node whose parent has been added
+	 * 
+	 * @param depth                        level of the node (at least 1)
+	 * @param path                         values of the conditioning variables
+	 *                                     down to the node
+	 * @param probabilities                distribution of the node (copied)
+	 * @param nValuesConditioningVariables numbers of values of the conditioning
+	 *                                     variables
+	 */
+	void put(int depth, int[] path, double[] probabilities, int[] nValuesConditioningVariables) {
+		Node parent = root;
+		for (int d = 0; d < depth - 1; d++) {
+			parent = parent.children[path[d]];
+		}
+		parent.children[path[depth - 1]] = new Node(probabilities.clone(), nValuesConditioningVariables, depth);
+	}
+
+	/**
+	 * @param sample a datapoint (without the target variable); negative values
+	 *               are missing (see ProbabilityTree.computeMarginals), values
+	 *               of pruned branches go where the PruningStrategy of the tree
+	 *               sends them
+	 * @return its probability distribution over the target variable (a copy)
+	 */
+	public double[] query(int[] sample) {
+		return findNode(sample).pk.clone();
+	}
+
+	/**
+	 * @param sample a datapoint (without the target variable); values that were
+	 *               not known to the tree are missing
+	 * @return its probability distribution over the target variable (a copy)
+	 */
+	public double[] query(String... sample) {
+		if (dictionaries == null) {
+			throw new IllegalStateException("The tree was not built from strings");
+		}
+		int[] encoded = new int[sample.length];
+		for (int j = 0; j < sample.length; j++) {
+			// +1 because storing the target as well
+			encoded[j] = dictionaries[j + 1].get(sample[j]);
+		}
+		return findNode(encoded).pk.clone();
+	}
+
+	/**
+	 * @param sample values of the conditioning variables in the order of the
+	 *               columns (possibly only the first ones)
+	 * @return the node reached by the sample, backing off to the deepest node of
+	 *         the path that exists
+	 */
+	private Node findNode(int[] sample) {
+		Node node = root;
+		for (int l = 0; l < variableOrder.length; l++) {
+			// the levels of the tree may be in another order than the columns
+			int value = (variableOrder[l] < sample.length) ? sample[variableOrder[l]] : -1;
+			Node child = node.getChild(value);
+			if (child == null) {
+				break;
+			}
+			node = child;
+		}
+		return node;
+	}
+
+	/**
+	 * @return the values of the target, or null if the tree was not built from
+	 *         strings
+	 */
+	public String[] getValuesTarget() {
+		return (dictionaries == null) ? null : dictionaries[0].getValues();
+	}
+
+	private static final class Node {
+		final double[] pk;
+		final Node[] children;
+		/**
+		 * number of values of the branching variable that have a slot in children
+		 * (the "other" leaf of the pruned branches being after them)
+		 */
+		final int nValuesBranching;
+		/**
+		 * the "other" leaf, where the values without a child go with
+		 * PruningStrategy.MERGE; null otherwise
+		 */
+		final Node other;
+		/**
+		 * node standing for any value of the branching variable, where the
+		 * missing values go (see ProbabilityTree.computeMarginals); null if the
+		 * marginals were not computed
+		 */
+		final Node marginal;
+
+		Node(ProbabilityNode node, PruningStrategy pruningStrategy) {
+			// nodes created after the last smoothing have no probabilities: they
+			// back off to their parent
+			double[] probabilities = node.getAveragedProbabilities();
+			pk = (probabilities == node.pkAveraged) ? probabilities.clone() : probabilities;
+			if (node.children == null) {
+				children = null;
+				nValuesBranching = 0;
+				other = null;
+			} else {
+				children = new Node[node.children.length];
+				for (int c = 0; c < children.length; c++) {
+					ProbabilityNode child = node.children[c];
+					if (child != null && child.hasAveragedProbabilities()) {
+						children[c] = new Node(child, pruningStrategy);
+					}
+				}
+				nValuesBranching = node.getNValuesBranching();
+				other = (node.hasOtherChild && pruningStrategy == PruningStrategy.MERGE) ? children[children.length - 1]
+						: null;
+			}
+			ProbabilityNode marginalChild = node.marginalChild;
+			marginal = (marginalChild != null && marginalChild.hasAveragedProbabilities())
+					? new Node(marginalChild, pruningStrategy)
+					: null;
+		}
+
+		Node(double[] pk, int[] nValuesConditioningVariables, int depth) {
+			this.pk = pk;
+			children = (depth < nValuesConditioningVariables.length)
+					? new Node[nValuesConditioningVariables[depth]]
+					: null;
+			nValuesBranching = (children == null) ? 0 : children.length;
+			other = null;
+			marginal = null;
+		}
+
+		/**
+		 * @return the child for a value of the branching variable, the "other"
+		 *         leaf if the value has no child and branches have been pruned
+		 *         (with PruningStrategy.MERGE), the marginal child for a missing
+		 *         value (negative), or null
+		 */
+		Node getChild(int value) {
+			if (value < 0) {
+				return marginal;
+			}
+			if (children == null) {
+				return null;
+			}
+			if (value < nValuesBranching && children[value] != null) {
+				return children[value];
+			}
+			return other;
+		}
+	}
+}
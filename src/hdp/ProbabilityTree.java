@@ -1,15 +1,29 @@
 package hdp;
 
+import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.HashMap;
-
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.math3.distribution.BinomialDistribution;
+import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.random.MersenneTwister;
 import org.apache.commons.math3.random.RandomGenerator;
 import org.apache.commons.math3.special.Gamma;
 import org.apache.commons.math3.util.FastMath;
 
+import hdp.data.CategoricalReader;
+import hdp.data.ColumnarDataset;
+import hdp.data.Encoder;
+import hdp.data.UnknownValuePolicy;
+import hdp.data.ValueDictionary;
 import hdp.logStirling.LogStirlingFactory;
 import hdp.logStirling.LogStirlingGenerator;
 import hdp.logStirling.LogStirlingGenerator.CacheExtensionException;
@@ -26,10 +40,72 @@ public class ProbabilityTree {
 	ProbabilityNode root;
 	ArrayList<Concentration> concentrationsToSample;
 
-	ArrayList<HashMap<String, Integer>> valueToIndex;
-	ArrayList<ArrayList<String>> indexToValue;
+	/**
+	 * Maps the values of the variables to integers; variable j of the tree is
+	 * attribute encoderAttributes[j] of the encoder
+	 */
+	Encoder encoder;
+	int[] encoderAttributes;
+	protected UnknownValuePolicy unknownValuePolicy = UnknownValuePolicy.BACK_OFF;
 
 	protected TyingStrategy concentrationTyingStrategy = TyingStrategy.LEVEL;
+	protected TrainingMode trainingMode = TrainingMode.GIBBS;
+
+	/**
+	 * Stopping criteria for the expected table counts mode: max number of passes
+	 * and relative change of the concentrations
+	 */
+	private int nMaxPassesExpectedTableCounts = 100;
+	private double toleranceExpectedTableCounts = 1e-4;
+
+	/**
+	 * Parameters of the stochastic minibatch mode: number of leaves per
+	 * minibatch, and step size (iter+delay)^-forgetting for the concentrations
+	 */
+	private int minibatchSize = 1000;
+	private double stepSizeDelay = 10.0;
+	private double stepSizeForgetting = 0.7;
+	/** number of minibatches sampled so far; stamps the nodes of a minibatch */
+	private int nMinibatchesSampled = 0;
+
+	/**
+	 * True once the tks have been initialized by smooth(): the nk of an
+	 * intermediate node is then the sum of the tks of its children, and
+	 * observations are added and removed at the leaves, repairing the tks
+	 */
+	private boolean tksInitialized = false;
+	/**
+	 * storage of the averaged distributions chosen by finalizeDistributions:
+	 * log-probabilities, and/or floats in pkAveragedFloat
+	 */
+	boolean logSpaceDistributions = false;
+	boolean floatDistributions = false;
+	/**
+	 * Posterior summaries of pk accumulated with the average, after burn-in:
+	 * variance of each outcome (Welford), and histograms with
+	 * nPosteriorHistogramBins bins over [0,1] (none if 0)
+	 */
+	boolean posteriorVariance = false;
+	int nPosteriorHistogramBins = 0;
+	/**
+	 * True to let addDataset(int[][]) choose the order of the conditioning
+	 * variables in the tree (see VariableOrdering)
+	 */
+	private boolean automaticOrdering = false;
+	/**
+	 * variableOrder[l] is the index of the conditioning variable at level l of
+	 * the tree (in the order of the datapoints); null if they are in the same
+	 * order
+	 */
+	private int[] variableOrder;
+	/**
+	 * Pruning before smoothing: branches with fewer datapoints than
+	 * minCountPerBranch are merged into an "other" leaf, the min count being
+	 * doubled until the tree has at most nodeBudget nodes (0 for no budget)
+	 */
+	private int minCountPerBranch = 0;
+	private int nodeBudget = 0;
+	PruningStrategy pruningStrategy = PruningStrategy.MERGE;
 
 	int nValuesConditionedVariable;
 
@@ -37,12 +113,22 @@ public class ProbabilityTree {
 	protected int nDatapoints;
 	boolean createFullTree = false;
 
+	private static final int MIN_ROWS_PER_THREAD_INGESTION = 100000;
+	/** number of rows read at once from each column of a ColumnarDataset */
+	private static final int COLUMNAR_BLOCK_SIZE = 4096;
+	private int nThreadsIngestion = Runtime.getRuntime().availableProcessors();
+
 	// Constructors
 
 	public ProbabilityTree() {
 		init(-1, null, false, 5000, TyingStrategy.LEVEL, 5, false);
 	}
 
+	/**
+	 * @param createFullTree true to create a node for every combination of values
+	 *                       of the conditioning variables; DenseProbabilityTree
+	 *                       estimates such trees without node objects
+	 */
 	public ProbabilityTree(boolean createFullTree) {
 		init(-1, null, createFullTree, 5000, TyingStrategy.LEVEL, 5, false);
 	}
@@ -96,6 +182,116 @@ public class ProbabilityTree {
 		return nValuesContioningVariables.length;
 	}
 
+	/**
+	 * @return the number of values of the conditioned variable
+	 */
+	public int getNValuesConditionedVariable() {
+		return nValuesConditionedVariable;
+	}
+
+	/**
+	 * @return the numbers of values of the conditioning variables
+	 */
+	public int[] getNValuesConditioningVariables() {
+		if (variableOrder == null) {
+			return nValuesContioningVariables.clone();
+		}
+		int[] res = new int[nValuesContioningVariables.length];
+		for (int l = 0; l < variableOrder.length; l++) {
+			res[variableOrder[l]] = nValuesContioningVariables[l];
+		}
+		return res;
+	}
+
+	/**
+	 * @param automaticOrdering true to let addDataset(int[][]) (with or without
+	 *                          counts) reorder the conditioning variables in the
+	 *                          tree so as to minimise its number of nodes (see
+	 *                          VariableOrdering). The datapoints and queries keep
+	 *                          the order of the columns; a query shorter than the
+	 *                          number of conditioning variables then has its last
+	 *                          variables missing (see computeMarginals).
+	 */
+	public void setAutomaticOrdering(boolean automaticOrdering) {
+		this.automaticOrdering = automaticOrdering;
+	}
+
+	/**
+	 * @return order[l] is the index of the conditioning variable at level l of
+	 *         the tree (identity if the variables have not been reordered)
+	 */
+	public int[] getVariableOrder() {
+		if (variableOrder != null) {
+			return variableOrder.clone();
+		}
+		int[] order = new int[getNXs()];
+		for (int l = 0; l < order.length; l++) {
+			order[l] = l;
+		}
+		return order;
+	}
+
+	/**
+	 * Chooses the order of the variables if automatic, and reorders their
+	 * numbers of values accordingly
+	 */
+	private void chooseVariableOrder(int[][] data) {
+		variableOrder = null;
+		if (!automaticOrdering || nValuesContioningVariables.length < 2) {
+			return;
+		}
+		int[] order = VariableOrdering.minimiseNodes(data, nValuesContioningVariables);
+		int[] nValuesInOrder = new int[order.length];
+		boolean identity = true;
+		for (int l = 0; l < order.length; l++) {
+			nValuesInOrder[l] = nValuesContioningVariables[order[l]];
+			identity &= (order[l] == l);
+		}
+		if (!identity) {
+			variableOrder = order;
+			nValuesContioningVariables = nValuesInOrder;
+		}
+	}
+
+	/**
+	 * @param datapoint values in the order of the columns, the first being for
+	 *                  the conditioned variable
+	 * @param buffer    where to write the values in the order of the tree
+	 * @return the values in the order of the tree (the datapoint itself if the
+	 *         variables have not been reordered)
+	 */
+	private int[] toTreeOrder(int[] datapoint, int[] buffer) {
+		if (variableOrder == null) {
+			return datapoint;
+		}
+		buffer[0] = datapoint[0];
+		for (int l = 0; l < variableOrder.length; l++) {
+			buffer[l + 1] = datapoint[variableOrder[l] + 1];
+		}
+		return buffer;
+	}
+
+	/**
+	 * @param sample values of the conditioning variables in the order of the
+	 *               columns (possibly only the first ones)
+	 * @return the number of levels of the tree to walk for the sample
+	 */
+	private int getNLevelsForSample(int[] sample) {
+		return (variableOrder == null) ? sample.length : variableOrder.length;
+	}
+
+	/**
+	 * @param sample values of the conditioning variables in the order of the
+	 *               columns (possibly only the first ones)
+	 * @param l      level of the tree
+	 * @return the value of the variable of level l, missing (-1) if it is beyond
+	 *         the sample
+	 */
+	private int getValueAtLevel(int[] sample, int l) {
+		int j = (variableOrder == null) ? l : variableOrder[l];
+		return (j < sample.length) ? sample[j] : -1;
+	}
+
 	public double getRisingFact(double x, int n) {
 		return FastMath.exp(MathUtils.logGammaRatio(x, n));
 	}
@@ -104,17 +300,146 @@ public class ProbabilityTree {
 		return Gamma.digamma(d);
 	}
 
+	public double trigamma(double d) {
+		return Gamma.trigamma(d);
+	}
+
 	protected double logScoreTree() {
 		return root.logScoreSubTree();
 	}
 
 	/**
-	 * Runs the Gibbs sampling for the whole tree with given discount and
-	 * concentration parameters
+	 * Estimates the parameters of the whole tree with the training mode of the
+	 * tree (Gibbs sampling by default)
 	 * 
 	 * @return the log likelihood of the optimized tree
 	 */
 	public double smooth() {
+		if (minCountPerBranch > 0 || nodeBudget > 0) {
+			prune();
+		}
+		tieConcentrations(false);
+
+		// setting concentration for root
+		root.c = new Concentration();
+		root.prepareForSamplingTk();
+		tksInitialized = true;
+
+		return train(nIterGibbs, nBurnIn);
+	}
+
+	/**
+	 * Prunes the tree to the min count per branch, then doubles the min count
+	 * until the tree fits in the node budget
+	 */
+	private void prune() {
+		int minCount = minCountPerBranch;
+		root.prune(minCount);
+		while (nodeBudget > 0 && root.countNodes() > nodeBudget && minCount < nDatapoints) {
+			minCount = Math.max(2, 2 * minCount);
+			root.prune(minCount);
+		}
+	}
+
+	/**
+	 * @param minCount branches (children of a node) with fewer datapoints are
+	 *                 merged into a single "other" leaf of their parent when the
+	 *                 tree is smoothed; chains of nodes with a single child are
+	 *                 then cut at their top, which becomes a leaf holding their
+	 *                 data. Queries for pruned values follow the pruning
+	 *                 strategy; new observations of them go to the "other" leaf.
+	 *                 0 for no pruning (default).
+	 */
+	public void setMinCountPerBranch(int minCount) {
+		if (minCount < 0) {
+			throw new IllegalArgumentException("Negative min count " + minCount);
+		}
+		this.minCountPerBranch = minCount;
+	}
+
+	/**
+	 * @param maxNodes max number of nodes of the tree: the tree is pruned when it
+	 *                 is smoothed, doubling the min count per branch until it
+	 *                 fits (see setMinCountPerBranch); 0 for no budget (default)
+	 */
+	public void setNodeBudget(int maxNodes) {
+		if (maxNodes < 0) {
+			throw new IllegalArgumentException("Negative node budget " + maxNodes);
+		}
+		this.nodeBudget = maxNodes;
+	}
+
+	/**
+	 * @param pruningStrategy where the queries for pruned values go
+	 */
+	public void setPruningStrategy(PruningStrategy pruningStrategy) {
+		this.pruningStrategy = pruningStrategy;
+	}
+
+	/**
+	 * @return the number of nodes of the tree
+	 */
+	public int getNNodes() {
+		return root.countNodes();
+	}
+
+	/**
+	 * Estimates again the parameters of a tree that has already been smoothed,
+	 * starting from its current tks and concentrations rather than from scratch;
+	 * meant to be used after a few observations have been added or removed (or
+	 * the tying strategy changed), with fewer iterations than smooth().
+	 * 
+	 * @param nIterations number of iterations of the sampler (ignored by the
+	 *                    expected table counts mode, which runs until
+	 *                    convergence)
+	 * @return the log likelihood of the optimized tree
+	 */
+	public double smoothWarmStart(int nIterations) {
+		ensureLogStirlingCapacity();
+		if (!tksInitialized) {
+			return smooth();
+		}
+
+		// nodes created since the last smoothing get tied too
+		Concentration rootConcentration = root.c;
+		tieConcentrations(true);
+		root.c = rootConcentration;
+
+		return train(nIterations, Math.min(1000, nIterations / 10));
+	}
+
+	/**
+	 * Runs the training mode of the tree from the current tks
+	 */
+	private double train(int nIter, int nBurnIn) {
+		root.resetAveragedProbabilities();
+		logSpaceDistributions = false;
+		floatDistributions = false;
+		switch (trainingMode) {
+		case EXPECTED_TABLE_COUNTS:
+			estimateExpectedTableCounts();
+			break;
+		case STOCHASTIC_MINIBATCH:
+			sampleMinibatches(nIter, nBurnIn);
+			break;
+		case GIBBS:
+		default:
+			sampleGibbs(nIter, nBurnIn);
+			break;
+		}
+
+		double score = logScoreTree();
+		return score;
+	}
+
+	/**
+	 * Creates the concentrations to estimate and ties them to the nodes following
+	 * the tying strategy
+	 * 
+	 * @param keepValues true to start the new concentrations from the values of
+	 *                   the concentrations previously tied to their nodes
+	 */
+	private void tieConcentrations(boolean keepValues) {
 		// Creating and tying concentrations
 		concentrationsToSample = new ArrayList<>();
 		switch (concentrationTyingStrategy) {
@@ -125,8 +450,7 @@ public class ProbabilityTree {
 				for (ProbabilityNode node : nodes) {
 					Concentration c = new Concentration();
 					concentrationsToSample.add(c);
-					node.c = c;
-					c.addNode(node);
+					tie(node, c, keepValues);
 				}
 
 			}
@@ -136,13 +460,16 @@ public class ProbabilityTree {
 				// tying all children of a node
 				ArrayList<ProbabilityNode> nodes = getAllNodesAtDepth(depth);
 				for (ProbabilityNode parent : nodes) {
+					if (parent.children == null) {
+						// leaf cut by pruning
+						continue;
+					}
 					// creating concentration
 					Concentration c = new Concentration();
 					concentrationsToSample.add(c);
 					for (int child = 0; child < parent.children.length; child++) {
 						if (parent.children[child] != null) {
-							parent.children[child].c = c;
-							c.addNode(parent.children[child]);
+							tie(parent.children[child], c, keepValues);
 						}
 					}
 				}
@@ -152,11 +479,14 @@ public class ProbabilityTree {
 			for (int depth = getNXs(); depth >= 0; depth--) {
 				// tying all children of a node
 				ArrayList<ProbabilityNode> nodes = getAllNodesAtDepth(depth);
+				if (nodes.isEmpty()) {
+					// all the branches were cut above by pruning
+					continue;
+				}
 				Concentration c = new Concentration();
 				concentrationsToSample.add(c);
 				for (ProbabilityNode node : nodes) {
-					node.c = c;
-					c.addNode(node);
+					tie(node, c, keepValues);
 				}
 
 			}
@@ -168,8 +498,7 @@ public class ProbabilityTree {
 				// tying all children of a node
 				ArrayList<ProbabilityNode> nodes = getAllNodesAtDepth(depth);
 				for (ProbabilityNode node : nodes) {
-					node.c = c;
-					c.addNode(node);
+					tie(node, c, keepValues);
 				}
 
 			}
@@ -177,13 +506,22 @@ public class ProbabilityTree {
 		default:
 			break;
 		}
+	}
 
-		// setting concentration for root
-		root.c = new Concentration();
-		root.prepareForSamplingTk();
+	private static void tie(ProbabilityNode node, Concentration c, boolean keepValue) {
+		if (keepValue && node.c != null) {
+			c.setConcentration(node.c.getConcentration());
+		}
+		node.c = c;
+		c.addNode(node);
+	}
 
-		// Gibbs sampling of the tks, c
-		for (int iter = 0; iter < nIterGibbs; iter++) {
+	/**
+	 * Runs the Gibbs sampling of the tks and c, averaging the probabilities after
+	 * burn-in
+	 */
+	private void sampleGibbs(int nIter, int nBurnIn) {
+		for (int iter = 0; iter < nIter; iter++) {
 			// sample tks once
 			for (int depth = getNXs(); depth >= 0; depth--) {
 				ArrayList<ProbabilityNode> nodes = getAllNodesAtDepth(depth);
@@ -205,67 +543,116 @@ public class ProbabilityTree {
 			}
 
 		}
-
-		double score = logScoreTree();
-		return score;
 	}
 
-	private ArrayList<ProbabilityNode> getAllNodesAtDepth(int depth) {
-		return root.getAllNodesAtRelativeDepth(depth);
+	/**
+	 * Deterministic alternative to the Gibbs sampling: starting from the current
+	 * tks (their prior expectations c.(psi(c+nk)-psi(c)) after a smoothing from
+	 * scratch, the previous ones after a warm start), alternates between setting
+	 * the tks to the (rounded) expectations of their conditional posteriors over
+	 * the sampling window (bottom-up, see ProbabilityNode.setExpectedTks) and
+	 * setting the concentrations to their fixed-point estimates, until nothing
+	 * changes; the probabilities are then computed once.
+	 */
+	private void estimateExpectedTableCounts() {
+		for (int pass = 0; pass < nMaxPassesExpectedTableCounts; pass++) {
+			boolean changed = root.setExpectedTks();
+
+			double maxRelativeChange = 0.0;
+			for (Concentration c : concentrationsToSample) {
+				double old = c.getConcentration();
+				c.estimate();
+				maxRelativeChange = Math.max(maxRelativeChange, Math.abs(c.getConcentration() - old) / old);
+			}
+
+			if (!changed && maxRelativeChange < toleranceExpectedTableCounts) {
+				break;
+			}
+		}
+		this.recordAndAverageProbabilities();
 	}
 
 	/**
-	 * Add the observational data for the leaves Data is stored in a integer format
-	 * where each number represents a categorical value from 0 to (nValues - 1)
-	 * 
-	 * @param data a dataset; first value is the value for the conditioned variable;
-	 *             other values are for the conditioning variables (in the order
-	 *             given in the constructor)
+	 * Stochastic version of the Gibbs sampling: each iteration samples the tks of
+	 * the paths from a random minibatch of leaves up to the root, moves the
+	 * concentrations of these nodes towards a sample with step size
+	 * (iter+delay)^-forgetting, and (after burn-in) averages the probabilities of
+	 * these nodes only.
 	 */
-	public void addDataset(int[][] data) {
-		if (data == null || data.length == 0) {
-			throw new RuntimeException("Data is empty");
+	private void sampleMinibatches(int nIter, int nBurnIn) {
+		ArrayList<ProbabilityNode> leaves = getLeaves();
+		ArrayList<ArrayList<ProbabilityNode>> touched = new ArrayList<>();
+		for (int depth = 0; depth <= getNXs(); depth++) {
+			touched.add(new ArrayList<>());
 		}
-		int nVariables = data[0].length;
-		int nConditioningVariables = nVariables - 1;
-		int maxValueConditioned = 0;
-		nValuesContioningVariables = new int[nConditioningVariables];
+		LinkedHashMap<Concentration, ArrayList<ProbabilityNode>> touchedPerConcentration = new LinkedHashMap<>();
 
-		for (int i = 0; i < data.length; i++) {
-			if (data[i][0] > maxValueConditioned) {
-				maxValueConditioned = data[i][0];
+		for (int iter = 0; iter < nIter; iter++) {
+			// select the minibatch and its ancestors (each node once)
+			for (ArrayList<ProbabilityNode> nodes : touched) {
+				nodes.clear();
 			}
-			for (int j = 1; j < data[i].length; j++) {
-				if (data[i][j] > nValuesContioningVariables[j - 1]) {
-					nValuesContioningVariables[j - 1] = data[i][j];
+			int stamp = nMinibatchesSampled++;
+			for (int b = 0; b < minibatchSize; b++) {
+				ProbabilityNode node = leaves.get(rng.nextInt(leaves.size()));
+				while (node != null && node.lastMinibatch != stamp) {
+					node.lastMinibatch = stamp;
+					touched.get(node.varNumberForBanchingChildren).add(node);
+					node = node.parent;
 				}
 			}
-		}
-		nValuesConditionedVariable = maxValueConditioned + 1;// indexing from 0
-		for (int j = 0; j < nValuesContioningVariables.length; j++) {
-			nValuesContioningVariables[j]++;
-		}
-		root = new ProbabilityNode(this, 0, createFullTree);
 
-		for (int[] datapoint : data) {
-			root.addObservation(datapoint, 1);
-		}
+			// sample tks once, bottom-up
+			for (int depth = getNXs(); depth >= 0; depth--) {
+				for (ProbabilityNode node : touched.get(depth)) {
+					node.sampleTks();
+				}
+			}
 
-		try {
-			lgCache = LogStirlingFactory.newLogStirlingGenerator(data.length, 0.0);
-		} catch (NoSuchFieldException | IllegalAccessException e) {
-			System.err.println("Log Stirling Cache Exception " + e.getMessage());
-			System.err.println("Throws as RuntimeException");
-			throw new RuntimeException(e);
+			// sample c
+			if ((iter + frequencySamplingC / 2) % frequencySamplingC == 0) {
+				touchedPerConcentration.clear();
+				for (ArrayList<ProbabilityNode> nodes : touched) {
+					for (ProbabilityNode node : nodes) {
+						if (node.parent != null) {
+							touchedPerConcentration.computeIfAbsent(node.c, c -> new ArrayList<>()).add(node);
+						}
+					}
+				}
+				double stepSize = Math.pow(iter + stepSizeDelay, -stepSizeForgetting);
+				for (Map.Entry<Concentration, ArrayList<ProbabilityNode>> entry : touchedPerConcentration.entrySet()) {
+					entry.getKey().sampleStochastic(rng, entry.getValue(), stepSize);
+				}
+			}
+
+			if (iter >= nBurnIn) {
+				// top-down so that the parents' pks are up to date
+				for (ArrayList<ProbabilityNode> nodes : touched) {
+					for (ProbabilityNode node : nodes) {
+						node.computeLocalProbabilities();
+						node.recordAndAverageLocalProbabilities();
+					}
+				}
+			}
 		}
 
-		nDatapoints = data.length;
-		this.smooth();
+		// nodes that were never part of a minibatch
+		root.computeProbabilities();
+		root.recordMissingProbabilities();
 	}
 
-	public void addObservation(int[] datapoint) {
-		root.addObservation(datapoint, 1);
-		nDatapoints++;
+	private ArrayList<ProbabilityNode> getAllNodesAtDepth(int depth) {
+		return root.getAllNodesAtRelativeDepth(depth);
+	}
+
+	/**
+	 * @return the leaves of the tree, including the ones cut above the last level
+	 *         by pruning
+	 */
+	private ArrayList<ProbabilityNode> getLeaves() {
+		ArrayList<ProbabilityNode> leaves = new ArrayList<>();
+		root.collectLeaves(leaves);
+		return leaves;
 	}
 
 	/**
@@ -276,163 +663,1002 @@ public class ProbabilityTree {
 	 *             other values are for the conditioning variables (in the order
 	 *             given in the constructor)
 	 */
-	public void addDataset(String[][] data) {
-		if (valueToIndex != null) {
-			System.out.println("Warning: using existing map of values to index");
-		}
+	public void addDataset(int[][] data) {
 		if (data == null || data.length == 0) {
 			throw new RuntimeException("Data is empty");
 		}
-
 		int nVariables = data[0].length;
 		int nConditioningVariables = nVariables - 1;
-
-		// now creating a mapping from String to integer
-		valueToIndex = new ArrayList<>(nVariables);
-		indexToValue = new ArrayList<>(nVariables);
-		for (int i = 0; i < nVariables; i++) {
-			valueToIndex.add(new HashMap<String, Integer>());
-			indexToValue.add(new ArrayList<String>());
-		}
-
-		for (String[] datapoint : data) {
-			for (int j = 0; j < datapoint.length; j++) {
-				HashMap<String, Integer> map = valueToIndex.get(j);
-				String val = datapoint[j];
-				if (!map.containsKey(val)) {
-					int nValuesForVariable = map.size();
-					map.put(val, nValuesForVariable);
-					indexToValue.get(j).add(val);
+		int nThreads = getNThreadsIngestion(data.length);
+
+		// max value of each variable, computed by slice
+		int[][] maxValues = new int[nThreads][nVariables];
+		runBySlice(data.length, nThreads, (slice, start, end) -> {
+			int[] max = maxValues[slice];
+			for (int i = start; i < end; i++) {
+				for (int j = 0; j < data[i].length; j++) {
+					if (data[i][j] > max[j]) {
+						max[j] = data[i][j];
+					}
 				}
 			}
-		}
-		nValuesConditionedVariable = valueToIndex.get(0).size();
+		});
+		nValuesConditionedVariable = 0;
 		nValuesContioningVariables = new int[nConditioningVariables];
-		for (int j = 0; j < nConditioningVariables; j++) {
-			nValuesContioningVariables[j] = valueToIndex.get(j + 1).size();
+		for (int[] max : maxValues) {
+			nValuesConditionedVariable = Math.max(nValuesConditionedVariable, max[0]);
+			for (int j = 1; j < nVariables; j++) {
+				nValuesContioningVariables[j - 1] = Math.max(nValuesContioningVariables[j - 1], max[j]);
+			}
 		}
-		root = new ProbabilityNode(this, 0, createFullTree);
-
-		int[] datapointInt = new int[nVariables];
-		for (String[] datapoint : data) {
-			for (int j = 0; j < datapoint.length; j++) {
-				HashMap<String, Integer> map = valueToIndex.get(j);
-				datapointInt[j] = map.get(datapoint[j]);
+		nValuesConditionedVariable++;// indexing from 0
+		for (int j = 0; j < nValuesContioningVariables.length; j++) {
+			nValuesContioningVariables[j]++;
+		}
+		chooseVariableOrder(data);
+
+		// each slice is counted in its own tree, then the trees are merged
+		ProbabilityNode[] partialRoots = new ProbabilityNode[nThreads];
+		runBySlice(data.length, nThreads, (slice, start, end) -> {
+			ProbabilityNode partialRoot = new ProbabilityNode(this, 0, createFullTree);
+			int[] buffer = new int[nVariables];
+			for (int i = start; i < end; i++) {
+				partialRoot.addObservation(toTreeOrder(data[i], buffer), 1);
 			}
-			root.addObservation(datapointInt, 1);
+			partialRoots[slice] = partialRoot;
+		});
+		root = partialRoots[0];
+		for (int slice = 1; slice < nThreads; slice++) {
+			root.mergeCounts(partialRoots[slice]);
 		}
 
-		try {
-			lgCache = LogStirlingFactory.newLogStirlingGenerator(data.length, 0.0);
-		} catch (NoSuchFieldException | IllegalAccessException e) {
-			System.err.println("Log Stirling Cache Exception " + e.getMessage());
-			System.err.println("Throws as RuntimeException");
-			throw new RuntimeException(e);
-		}
+		lgCache = newLogStirlingGenerator(data.length, 0.0);
 
 		nDatapoints = data.length;
 		this.smooth();
 	}
 
-	public void smoothTree() {
-		if (lgCache == null)
-			try {
-				lgCache = LogStirlingFactory.newLogStirlingGenerator(nDatapoints, 0.0);
-			} catch (NoSuchFieldException | IllegalAccessException e) {
-				System.err.println("Log Stirling Cache Exception " + e.getMessage());
-				System.err.println("Throws as RuntimeException");
-				throw new RuntimeException(e);
-			}
-		this.smooth();
+	/**
+	 * @return the number of threads to use to ingest nRows
+	 */
+	private int getNThreadsIngestion(int nRows) {
+		return Math.max(1, Math.min(nThreadsIngestion, nRows / MIN_ROWS_PER_THREAD_INGESTION));
 	}
 
-	public void setLogStirlingCache(LogStirlingGenerator cache) {
-		if (lgCache != null) {
-			try {
-				lgCache.close();
-			} catch (Exception e) {
-				System.err.println("Closing Log Stirling Cache Exception " + e.getMessage());
-				System.err.println("Throws as RuntimeException");
-				throw new RuntimeException(e);
-			}
-		}
-		this.lgCache = cache;
+	private interface SliceTask {
+		void run(int slice, int start, int end);
 	}
 
 	/**
-	 * Get the probability estimated by the HDP process
-	 * 
-	 * @param sample a datapoint (without the target variable)
-	 * @return it's probability distribution over the target variable
+	 * Runs a task on nSlices contiguous slices of [0,nRows), each slice in its own
+	 * thread (in the current thread if there is only one slice)
 	 */
-	public double[] query(int[] sample) {
-		ProbabilityNode node = root;
-		for (int n = 0; n < sample.length; n++) {
-			if (node.children[sample[n]] != null) {
-				node = node.children[sample[n]];
-			} else {
-				break;
+	private static void runBySlice(int nRows, int nSlices, SliceTask task) {
+		if (nSlices == 1) {
+			task.run(0, 0, nRows);
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(nSlices);
+		try {
+			ArrayList<Future<?>> futures = new ArrayList<>(nSlices);
+			for (int slice = 0; slice < nSlices; slice++) {
+				final int s = slice;
+				final int start = (int) ((long) nRows * slice / nSlices);
+				final int end = (int) ((long) nRows * (slice + 1) / nSlices);
+				futures.add(executor.submit(() -> task.run(s, start, end)));
+			}
+			for (Future<?> future : futures) {
+				future.get();
 			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		} finally {
+			executor.shutdown();
 		}
-		return node.pkAveraged;
 	}
 
 	/**
-	 * Get the probability estimated by the HDP process
-	 * 
-	 * @param sample a datapoint (without the target variable)
-	 * @return it's probability distribution over the target variable
+	 * @param nThreads max number of threads used by addDataset(int[][]) to count
+	 *                 the data (each thread gets at least 100,000 rows)
 	 */
-	public double[] query(String... sample) {
+	public void setNThreadsIngestion(int nThreads) {
+		this.nThreadsIngestion = nThreads;
+	}
+
+	public void addObservation(int[] datapoint) {
+		addObservation(datapoint, 1L);
+	}
+
+	/**
+	 * Add an observation seen several times (e.g. a row of a pre-aggregated
+	 * table); costs the same as a single observation
+	 * 
+	 * @param datapoint the values, the first being for the conditioned variable
+	 * @param count     number of times the datapoint has been observed
+	 * @throws IllegalArgumentException if the count is negative or if the total
+	 *                                  number of observations would go beyond
+	 *                                  Integer.MAX_VALUE (limit of the counts and
+	 *                                  of the Stirling cache)
+	 */
+	public void addObservation(int[] datapoint, long count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Negative count " + count);
+		}
+		if (nDatapoints + count > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Cannot add " + count + " observations to the " + nDatapoints
+					+ " already there: counts are limited to " + Integer.MAX_VALUE + " observations in total");
+		}
+		if (count == 0) {
+			return;
+		}
+		datapoint = toTreeOrder(datapoint, new int[datapoint.length]);
+		if (tksInitialized) {
+			root.getLeaf(datapoint, 1, true).addObservationToTables(datapoint[0], (int) count);
+		} else {
+			root.addObservation(datapoint, 1, (int) count);
+		}
+		nDatapoints += (int) count;
+	}
+
+	public void removeObservation(int[] datapoint) {
+		removeObservation(datapoint, 1L);
+	}
+
+	/**
+	 * Removes an observation seen several times, e.g. to hold out a fold of the
+	 * data. If the tree has been smoothed, the tks of the path are repaired so
+	 * that the tree can be smoothed again with smoothWarmStart; nodes left
+	 * without data are kept (with zero counts).
+	 * 
+	 * @param datapoint the values, the first being for the conditioned variable
+	 * @param count     number of times the datapoint is removed
+	 * @throws IllegalArgumentException if the count is negative or if the tree
+	 *                                  holds fewer observations of the datapoint
+	 */
+	public void removeObservation(int[] datapoint, long count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Negative count " + count);
+		}
+		datapoint = toTreeOrder(datapoint, new int[datapoint.length]);
+		ProbabilityNode leaf = root.getLeaf(datapoint, 1, false);
+		if (leaf == null || datapoint[0] >= leaf.getNValuesCounts() || leaf.getNk(datapoint[0]) < count) {
+			throw new IllegalArgumentException("Cannot remove " + count + " observations of "
+					+ Arrays.toString(datapoint) + ": not in the tree");
+		}
+		if (count == 0) {
+			return;
+		}
+		if (tksInitialized) {
+			leaf.removeObservationFromTables(datapoint[0], (int) count);
+		} else {
+			root.removeObservation(datapoint, 1, (int) count);
+		}
+		nDatapoints -= (int) count;
+	}
+
+	/**
+	 * Decays the counts of the data by a factor, e.g. to forget old data when
+	 * following a stream. The counts of the HDP are integers, so each observation
+	 * is kept with probability factor (binomial thinning of the count of each
+	 * value at each leaf): the expected counts are multiplied by the factor. If
+	 * the tree has been smoothed, the tks are repaired as in removeObservation.
+	 * 
+	 * @param factor in (0,1]
+	 */
+	public void decayCounts(double factor) {
+		if (!(factor > 0.0 && factor <= 1.0)) {
+			throw new IllegalArgumentException("Invalid decay factor " + factor);
+		}
+		if (factor == 1.0) {
+			return;
+		}
+		for (ProbabilityNode leaf : getLeaves()) {
+			for (int k = 0; k < leaf.getNValuesCounts(); k++) {
+				int n = leaf.getNk(k);
+				if (n == 0) {
+					continue;
+				}
+				int kept = new BinomialDistribution(rng, n, factor).sample();
+				int removed = n - kept;
+				if (removed == 0) {
+					continue;
+				}
+				if (tksInitialized) {
+					leaf.removeObservationFromTables(k, removed);
+				} else {
+					for (ProbabilityNode node = leaf; node != null; node = node.parent) {
+						node.addNk(k, -removed);
+						node.marginal_nk -= removed;
+					}
+				}
+				nDatapoints -= removed;
+			}
+		}
+	}
+
+	/**
+	 * Add an observation with a fractional weight. The counts of the HDP are
+	 * integers (they index Stirling numbers), so the weight is randomly rounded
+	 * to floor(weight) or floor(weight)+1, with expectation equal to the weight.
+	 * 
+	 * @param datapoint the values, the first being for the conditioned variable
+	 * @param weight    weight of the observation (>= 0)
+	 */
+	public void addWeightedObservation(int[] datapoint, double weight) {
+		if (!(weight >= 0.0)) {
+			throw new IllegalArgumentException("Invalid weight " + weight);
+		}
+		long count = (long) Math.floor(weight);
+		if (rng.nextDouble() < weight - count) {
+			count++;
+		}
+		addObservation(datapoint, count);
+	}
+
+	/**
+	 * Add a contingency table: each distinct datapoint with its count
+	 * 
+	 * @param datapoints the distinct datapoints, the first value being for the
+	 *                   conditioned variable
+	 * @param counts     counts[i] is the number of times datapoints[i] has been
+	 *                   observed
+	 */
+	public void addCounts(int[][] datapoints, long[] counts) {
+		if (datapoints.length != counts.length) {
+			throw new IllegalArgumentException(
+					datapoints.length + " datapoints but " + counts.length + " counts");
+		}
+		for (int i = 0; i < datapoints.length; i++) {
+			addObservation(datapoints[i], counts[i]);
+		}
+	}
+
+	/**
+	 * Learns from a pre-aggregated dataset: same as addDataset(int[][]) with
+	 * datapoints[i] repeated counts[i] times, but costs O(distinct datapoints)
+	 * 
+	 * @param datapoints the distinct datapoints; first value is the value for the
+	 *                   conditioned variable; other values are for the
+	 *                   conditioning variables
+	 * @param counts     counts[i] is the number of times datapoints[i] has been
+	 *                   observed
+	 */
+	public void addDataset(int[][] datapoints, long[] counts) {
+		if (datapoints == null || datapoints.length == 0) {
+			throw new RuntimeException("Data is empty");
+		}
+		int nConditioningVariables = datapoints[0].length - 1;
+		nValuesConditionedVariable = 0;
+		nValuesContioningVariables = new int[nConditioningVariables];
+		for (int[] datapoint : datapoints) {
+			nValuesConditionedVariable = Math.max(nValuesConditionedVariable, datapoint[0] + 1);
+			for (int j = 1; j < datapoint.length; j++) {
+				nValuesContioningVariables[j - 1] = Math.max(nValuesContioningVariables[j - 1], datapoint[j] + 1);
+			}
+		}
+		chooseVariableOrder(datapoints);
+		root = new ProbabilityNode(this, 0, createFullTree);
+
+		nDatapoints = 0;
+		addCounts(datapoints, counts);
+
+		lgCache = newLogStirlingGenerator(nDatapoints, 0.0);
+
+		this.smooth();
+	}
+
+	/**
+	 * Add the observational data for the leaves. Values are encoded to integers
+	 * with the encoder of the tree (created if none has been set), whose
+	 * dictionaries grow with the new values.
+	 * 
+	 * @param data a dataset; first value is the value for the conditioned variable;
+	 *             other values are for the conditioning variables (in the order
+	 *             given in the constructor)
+	 */
+	public void addDataset(String[][] data) {
+		if (data == null || data.length == 0) {
+			throw new RuntimeException("Data is empty");
+		}
+
+		int nVariables = data[0].length;
+		if (encoder == null) {
+			setEncoder(new Encoder(nVariables));
+		}
+		initAritiesFromEncoder(nVariables);
+		root = new ProbabilityNode(this, 0, createFullTree);
+
+		int[] datapointInt = new int[nVariables];
+		for (String[] datapoint : data) {
+			for (int j = 0; j < datapoint.length; j++) {
+				datapointInt[j] = encode(j, datapoint[j]);
+			}
+			root.addObservation(datapointInt, 1);
+		}
+		// nodes that were created before some values were discovered
+		root.growToArities();
+
+		lgCache = newLogStirlingGenerator(data.length, 0.0);
+
+		nDatapoints = data.length;
+		this.smooth();
+	}
+
+	/**
+	 * Add the observational data for the leaves, streaming the rows from a reader
+	 * so that the dataset is never held in memory. Values are encoded on the fly:
+	 * the dictionaries start with the declared values of the reader (if any) and
+	 * grow when new values appear, and so do the nodes.
+	 * 
+	 * @param reader a reader giving the rows with the value for the conditioned
+	 *               variable first
+	 * @throws IOException if reading fails
+	 */
+	public void addDataset(CategoricalReader reader) throws IOException {
+		int nVariables = reader.getNVariables();
+		if (encoder == null) {
+			Encoder readerEncoder = new Encoder();
+			int[] attributes = new int[nVariables];
+			for (int j = 0; j < nVariables; j++) {
+				attributes[j] = readerEncoder.addAttribute(reader.getVariableName(j));
+			}
+			setEncoder(readerEncoder, attributes);
+		}
+		for (int j = 0; j < nVariables; j++) {
+			String[] declared = reader.getDeclaredValues(j);
+			if (declared != null) {
+				for (String val : declared) {
+					encoder.getDictionary(encoderAttributes[j]).getOrAdd(val);
+				}
+			}
+		}
+		initAritiesFromEncoder(nVariables);
+		root = new ProbabilityNode(this, 0, createFullTree);
+
+		String[] datapoint = new String[nVariables];
+		int[] datapointInt = new int[nVariables];
+		nDatapoints = 0;
+		while (reader.next(datapoint)) {
+			for (int j = 0; j < nVariables; j++) {
+				datapointInt[j] = encode(j, datapoint[j]);
+			}
+			root.addObservation(datapointInt, 1);
+			nDatapoints++;
+		}
+		if (nDatapoints == 0) {
+			throw new RuntimeException("Data is empty");
+		}
+		// nodes that were created before some values were discovered
+		root.growToArities();
+
+		lgCache = newLogStirlingGenerator(nDatapoints, 0.0);
+
+		this.smooth();
+	}
+
+	/**
+	 * Add the observational data for the leaves from a memory-mapped columnar
+	 * dataset: the columns are read by blocks, so that the dataset is never
+	 * copied on the heap. Rows are counted in parallel as in addDataset(int[][]).
+	 * If the dataset has dictionaries and no encoder has been set, an encoder is
+	 * built from them so that the tree can be queried with strings; if an encoder
+	 * has been set (e.g. shared with other trees), the values of the dataset are
+	 * mapped to its indices, new values being added to its dictionaries.
+	 * 
+	 * @param data a dataset whose column 0 is the conditioned variable, other
+	 *             columns being the conditioning variables (in the order given
+	 *             in the constructor)
+	 */
+	public void addDataset(ColumnarDataset data) {
+		int nRows = data.getNRows();
+		if (nRows == 0) {
+			throw new RuntimeException("Data is empty");
+		}
+		int nVariables = data.getNColumns();
+		// codes[j][v] is the index in the encoder of value v of column j, null if
+		// the values are used as they are
+		int[][] codes = (encoder == null) ? null : encodeDictionaries(data);
+		if (codes != null) {
+			initAritiesFromEncoder(nVariables);
+		} else {
+			nValuesConditionedVariable = data.getArity(0);
+			nValuesContioningVariables = new int[nVariables - 1];
+			for (int j = 1; j < nVariables; j++) {
+				nValuesContioningVariables[j - 1] = data.getArity(j);
+			}
+			variableOrder = null;
+		}
+
+		if (encoder == null && data.getDictionary(0) != null) {
+			Encoder dataEncoder = new Encoder();
+			int[] attributes = new int[nVariables];
+			for (int j = 0; j < nVariables; j++) {
+				attributes[j] = dataEncoder.addAttribute(data.getName(j));
+				String[] dictionary = data.getDictionary(j);
+				if (dictionary != null) {
+					for (String val : dictionary) {
+						dataEncoder.getDictionary(attributes[j]).getOrAdd(val);
+					}
+				}
+			}
+			setEncoder(dataEncoder, attributes);
+		}
+
+		int nThreads = getNThreadsIngestion(nRows);
+		ProbabilityNode[] partialRoots = new ProbabilityNode[nThreads];
+		runBySlice(nRows, nThreads, (slice, start, end) -> {
+			ProbabilityNode partialRoot = new ProbabilityNode(this, 0, createFullTree);
+			int[][] block = new int[nVariables][COLUMNAR_BLOCK_SIZE];
+			int[] datapoint = new int[nVariables];
+			for (int from = start; from < end; from += COLUMNAR_BLOCK_SIZE) {
+				int length = Math.min(COLUMNAR_BLOCK_SIZE, end - from);
+				for (int j = 0; j < nVariables; j++) {
+					data.readColumn(j, from, block[j], length);
+					if (codes != null) {
+						int[] column = block[j], codesColumn = codes[j];
+						for (int i = 0; i < length; i++) {
+							column[i] = codesColumn[column[i]];
+						}
+					}
+				}
+				for (int i = 0; i < length; i++) {
+					for (int j = 0; j < nVariables; j++) {
+						datapoint[j] = block[j][i];
+					}
+					partialRoot.addObservation(datapoint, 1);
+				}
+			}
+			partialRoots[slice] = partialRoot;
+		});
+		root = partialRoots[0];
+		for (int slice = 1; slice < nThreads; slice++) {
+			root.mergeCounts(partialRoots[slice]);
+		}
+
+		lgCache = newLogStirlingGenerator(nRows, 0.0);
+
+		nDatapoints = nRows;
+		this.smooth();
+	}
+
+	/**
+	 * Maps the values of each column of the dataset to the indices of the same
+	 * strings in the encoder of the tree, adding the values it doesn't know
+	 *
+	 * @return codes[j][v] is the index in the encoder of value v of column j
+	 */
+	private int[][] encodeDictionaries(ColumnarDataset data) {
+		int nVariables = data.getNColumns();
+		if (encoderAttributes.length != nVariables) {
+			throw new RuntimeException(
+					"The encoder maps " + encoderAttributes.length + " variables but data has " + nVariables);
+		}
+		int[][] codes = new int[nVariables][];
+		for (int j = 0; j < nVariables; j++) {
+			String[] dictionary = data.getDictionary(j);
+			if (dictionary == null) {
+				throw new IllegalArgumentException(
+						"Column " + data.getName(j) + " has no dictionary to match with the encoder of the tree");
+			}
+			ValueDictionary encoderDictionary = encoder.getDictionary(encoderAttributes[j]);
+			codes[j] = new int[dictionary.length];
+			for (int v = 0; v < dictionary.length; v++) {
+				codes[j][v] = encoderDictionary.getOrAdd(dictionary[v]);
+			}
+		}
+		return codes;
+	}
+
+	/**
+	 * Starts counting observations whose numbers of values are discovered with
+	 * the data (see addObservationGrowingArities); used to count the data of
+	 * several trees in a single pass
+	 * 
+	 * @param nVariables number of variables, the conditioned variable included
+	 */
+	void startCounting(int nVariables) {
+		nValuesConditionedVariable = 1;
+		nValuesContioningVariables = new int[nVariables - 1];
+		Arrays.fill(nValuesContioningVariables, 1);
+		variableOrder = null;
+		root = new ProbabilityNode(this, 0, createFullTree);
+		nDatapoints = 0;
+		tksInitialized = false;
+	}
+
+	/**
+	 * Adds an observation, growing the numbers of values of the variables if
+	 * needed (the nodes are grown by finishCounting)
+	 */
+	void addObservationGrowingArities(int[] datapoint) {
+		if (datapoint[0] >= nValuesConditionedVariable) {
+			nValuesConditionedVariable = datapoint[0] + 1;
+		}
+		for (int j = 1; j < datapoint.length; j++) {
+			if (datapoint[j] >= nValuesContioningVariables[j - 1]) {
+				nValuesContioningVariables[j - 1] = datapoint[j] + 1;
+			}
+		}
+		root.addObservation(datapoint, 1);
+		nDatapoints++;
+	}
+
+	/**
+	 * Grows the nodes created before some values were discovered
+	 */
+	void finishCounting() {
+		if (nDatapoints == 0) {
+			throw new RuntimeException("Data is empty");
+		}
+		root.growToArities();
+	}
+
+	/**
+	 * Sets the encoder used to map the values of the variables of the tree to
+	 * integers; it can be shared with other trees over the same attributes.
+	 * 
+	 * @param encoder    the encoder
+	 * @param attributes attributes[j] is the attribute of the encoder for
+	 *                   variable j of the tree (0 being the conditioned
+	 *                   variable); if empty, variable j is attribute j
+	 */
+	public void setEncoder(Encoder encoder, int... attributes) {
+		if (attributes.length == 0) {
+			attributes = new int[encoder.getNAttributes()];
+			for (int j = 0; j < attributes.length; j++) {
+				attributes[j] = j;
+			}
+		}
+		this.encoder = encoder;
+		this.encoderAttributes = attributes;
+	}
+
+	public Encoder getEncoder() {
+		return encoder;
+	}
+
+	/**
+	 * @param policy what to do with values unknown to the encoder in
+	 *               query(String...): BACK_OFF (default, and for ADD) stops at
+	 *               the last known node; ERROR throws an exception
+	 */
+	public void setUnknownValuePolicy(UnknownValuePolicy policy) {
+		this.unknownValuePolicy = policy;
+	}
+
+	private void initAritiesFromEncoder(int nVariables) {
+		if (encoderAttributes.length != nVariables) {
+			throw new RuntimeException(
+					"The encoder maps " + encoderAttributes.length + " variables but data has " + nVariables);
+		}
+		nValuesConditionedVariable = Math.max(1, encoder.getNValues(encoderAttributes[0]));
+		nValuesContioningVariables = new int[nVariables - 1];
+		for (int j = 1; j < nVariables; j++) {
+			nValuesContioningVariables[j - 1] = Math.max(1, encoder.getNValues(encoderAttributes[j]));
+		}
+		variableOrder = null;
+	}
+
+	/**
+	 * Returns the index of a value of a variable, adding it to the dictionary
+	 * (and growing the number of values of the variable) if not seen yet
+	 */
+	private int encode(int variable, CharSequence val) {
+		int index = encoder.getDictionary(encoderAttributes[variable]).getOrAdd(val);
+		if (variable == 0) {
+			if (index >= nValuesConditionedVariable) {
+				nValuesConditionedVariable = index + 1;
+			}
+		} else if (index >= nValuesContioningVariables[variable - 1]) {
+			nValuesContioningVariables[variable - 1] = index + 1;
+		}
+		return index;
+	}
+
+	public void smoothTree() {
+		ensureLogStirlingCapacity();
+		this.smooth();
+	}
+
+	/**
+	 * Creates the cache of log Stirling numbers, or a larger one if observations
+	 * have been added since it was created; the bound at least doubles, so that
+	 * a tree growing by small batches only rebuilds it a logarithmic number of
+	 * times (the cache is filled on demand, so the bound costs no memory)
+	 */
+	private void ensureLogStirlingCapacity() {
+		if (lgCache != null && lgCache.getMaxN() >= nDatapoints) {
+			return;
+		}
+		double discount = (lgCache == null) ? 0.0 : lgCache.discountP;
+		long maxN = (lgCache == null) ? nDatapoints : Math.max(nDatapoints, 2 * lgCache.getMaxN());
+		setLogStirlingCache(newLogStirlingGenerator(maxN, discount));
+	}
+
+	public void setLogStirlingCache(LogStirlingGenerator cache) {
+		closeLogStirlingCache(lgCache);
+		this.lgCache = cache;
+	}
+
+	/**
+	 * Converts the learned distributions to their final storage, once the tree is
+	 * smoothed: log-probabilities and/or floats (halving the memory of the
+	 * distributions). The buffers only needed for sampling are released. The
+	 * queries return the stored arrays directly when they match the storage
+	 * (queryLog for log-probabilities, queryFloat for floats, queryLogFloat for
+	 * both) and convert otherwise. Smoothing the tree again goes back to
+	 * probabilities in double precision.
+	 * 
+	 * @param logSpace        store log-probabilities
+	 * @param singlePrecision store floats
+	 */
+	public void finalizeDistributions(boolean logSpace, boolean singlePrecision) {
+		if (root == null || !root.hasAveragedProbabilities()) {
+			throw new IllegalStateException("The tree has not been smoothed");
+		}
+		if (logSpaceDistributions || floatDistributions) {
+			if (logSpace == logSpaceDistributions && singlePrecision == floatDistributions) {
+				return;
+			}
+			throw new IllegalStateException("The distributions have already been finalised with other options");
+		}
+		root.finalizeDistributions(logSpace, singlePrecision);
+		logSpaceDistributions = logSpace;
+		floatDistributions = singlePrecision;
+	}
+
+	/**
+	 * Precomputes for every node the marginal of its subtree over the values of
+	 * its branching variable, so that the queries accept missing values
+	 * (negative) at any position and return the distribution averaged over the
+	 * values of the missing variables, weighted by their number of datapoints,
+	 * for about the cost of a complete query. Each combination of missing
+	 * variables gets its own merged copy of the paths below, so memory grows up
+	 * to 2^depth times the number of nodes; see computeMarginals(int) to bound
+	 * it. The marginals are dropped when the tree is smoothed again; without
+	 * them, missing values back off to the current node.
+	 */
+	public void computeMarginals() {
+		computeMarginals(getNXs());
+	}
+
+	/**
+	 * Precomputes the marginals for the queries with at most maxMissing missing
+	 * values (see computeMarginals()); a query with more missing values backs off
+	 * to the node reached at the first one beyond maxMissing. With maxMissing
+	 * missing values out of depth, memory grows by at most the number of
+	 * combinations of up to maxMissing levels times the number of nodes (depth
+	 * times for 1).
+	 * 
+	 * @param maxMissing number of missing values handled by a query, at least 1
+	 */
+	public void computeMarginals(int maxMissing) {
+		if (maxMissing < 1) {
+			throw new IllegalArgumentException("Invalid number of missing values " + maxMissing);
+		}
+		if (root == null || !root.hasAveragedProbabilities()) {
+			throw new IllegalStateException("The tree has not been smoothed");
+		}
+		root.computeMarginals(maxMissing);
+	}
+
+	/**
+	 * @return true if queryLog returns the stored distributions directly
+	 */
+	public boolean isLogSpace() {
+		return logSpaceDistributions;
+	}
+
+	/**
+	 * @return true if queryFloat or queryLogFloat return the stored
+	 *         distributions directly
+	 */
+	public boolean isSinglePrecision() {
+		return floatDistributions;
+	}
+
+	/**
+	 * @param posteriorVariance true to accumulate the variance of the pks
+	 *                          recorded after burn-in (one double per outcome and
+	 *                          node); taken into account at the next smoothing
+	 */
+	public void setPosteriorVariance(boolean posteriorVariance) {
+		this.posteriorVariance = posteriorVariance;
+	}
+
+	/**
+	 * @param nBins number of bins over [0,1] of the histograms of the pks
+	 *              recorded after burn-in (one int per bin, outcome and node),
+	 *              used for the credible intervals; 0 for none. Taken into account
+	 *              at the next smoothing
+	 */
+	public void setPosteriorHistogramBins(int nBins) {
+		if (nBins < 0) {
+			throw new IllegalArgumentException("The number of bins must be positive");
+		}
+		this.nPosteriorHistogramBins = nBins;
+	}
+
+	/**
+	 * @param sample a datapoint (without the target variable)
+	 * @return the posterior variance of each probability of its distribution over
+	 *         the target variable (0 if fewer than 2 samples were recorded, as in
+	 *         the expected table counts mode)
+	 */
+	public double[] queryVariance(int[] sample) {
+		ProbabilityNode node = findNode(sample);
+		if (node.pkM2 == null) {
+			throw new IllegalStateException("The posterior variance was not tracked");
+		}
+		int nSamples = node.nPkAccumulated - 1;
+		double[] variance = new double[node.pkM2.length];
+		if (nSamples > 1) {
+			for (int k = 0; k < variance.length; k++) {
+				variance[k] = node.pkM2[k] / (nSamples - 1);
+			}
+		}
+		return variance;
+	}
+
+	/**
+	 * Credible interval of each probability of the distribution, from the
+	 * posterior histograms if kept, or else from the posterior variance (normal
+	 * approximation, clipped to [0,1])
+	 * 
+	 * @param sample a datapoint (without the target variable)
+	 * @param mass   probability mass of the interval, e.g. 0.95
+	 * @return {mean, lower bounds, upper bounds}, each over the target variable
+	 */
+	public double[][] queryInterval(int[] sample, double mass) {
+		if (mass <= 0.0 || mass >= 1.0) {
+			throw new IllegalArgumentException("The mass of the interval must be in (0,1)");
+		}
+		ProbabilityNode node = findNode(sample);
+		double[] mean = node.getAveragedProbabilities();
+		double[] lower = new double[mean.length];
+		double[] upper = new double[mean.length];
+		if (node.pkHistogram != null) {
+			int nBins = node.pkHistogram.length / mean.length;
+			for (int k = 0; k < mean.length; k++) {
+				lower[k] = histogramQuantile(node.pkHistogram, k * nBins, nBins, (1.0 - mass) / 2.0);
+				upper[k] = histogramQuantile(node.pkHistogram, k * nBins, nBins, (1.0 + mass) / 2.0);
+			}
+		} else if (node.pkM2 != null) {
+			double z = new NormalDistribution().inverseCumulativeProbability((1.0 + mass) / 2.0);
+			double[] variance = queryVariance(sample);
+			for (int k = 0; k < mean.length; k++) {
+				double halfWidth = z * Math.sqrt(variance[k]);
+				lower[k] = Math.max(0.0, mean[k] - halfWidth);
+				upper[k] = Math.min(1.0, mean[k] + halfWidth);
+			}
+		} else {
+			throw new IllegalStateException("Neither the posterior variance nor the histograms were tracked");
+		}
+		return new double[][] { mean, lower, upper };
+	}
+
+	/**
+	 * Quantile of a histogram over [0,1], interpolated linearly within the bin
+	 */
+	private static double histogramQuantile(int[] histogram, int from, int nBins, double quantile) {
+		long total = 0;
+		for (int b = 0; b < nBins; b++) {
+			total += histogram[from + b];
+		}
+		double target = quantile * total;
+		double cumulated = 0.0;
+		for (int b = 0; b < nBins; b++) {
+			int count = histogram[from + b];
+			if (count > 0 && cumulated + count >= target) {
+				return (b + (target - cumulated) / count) / nBins;
+			}
+			cumulated += count;
+		}
+		return 1.0;
+	}
+
+	/**
+	 * @return the node reached by the sample, backing off to the deepest node of
+	 *         the path that exists
+	 */
+	private ProbabilityNode findNode(int[] sample) {
 		ProbabilityNode node = root;
-		for (int j = 0; j < sample.length; j++) {
-			// +1 because storing the target as well
-			int index = valueToIndex.get(j + 1).get(sample[j]);
-			if (node.children[index] != null) {
-				node = node.children[index];
+		int nLevels = getNLevelsForSample(sample);
+		for (int l = 0; l < nLevels; l++) {
+			// the levels of the tree may be in another order than the columns
+			int value = getValueAtLevel(sample, l);
+			ProbabilityNode next = null;
+			if (value < 0) {
+				// missing values marginalise over the values of the variable, or back off
+				// to the current node if the marginals have not been computed
+				next = node.marginalChild;
 			} else {
+				next = getChildForQuery(node, value);
+			}
+			if (next == null) {
 				break;
 			}
+			node = next;
 		}
-		return node.pkAveraged;
+		return node;
+	}
+
+	/**
+	 * @return the child of the node for a (known) value, following the pruning
+	 *         strategy for the values of pruned branches, or null
+	 */
+	private ProbabilityNode getChildForQuery(ProbabilityNode node, int value) {
+		if (pruningStrategy == PruningStrategy.MERGE) {
+			// values of pruned branches go to the "other" leaf
+			return node.getChild(value);
+		}
+		return (node.children != null && value < node.getNValuesBranching()) ? node.children[value] : null;
+	}
+
+	/**
+	 * Get the probability estimated by the HDP process
+	 * 
+	 * @param sample a datapoint (without the target variable)
+	 * @return it's probability distribution over the target variable
+	 */
+	public double[] query(int[] sample) {
+		return findNode(sample).getAveragedProbabilities();
+	}
+
+	/**
+	 * @param sample a datapoint (without the target variable)
+	 * @return the log of its probability distribution over the target variable;
+	 *         no conversion if the distributions were finalised in log-space
+	 */
+	public double[] queryLog(int[] sample) {
+		ProbabilityNode node = findNode(sample);
+		if (!node.hasAveragedProbabilities()) {
+			return null;
+		}
+		if (logSpaceDistributions && !floatDistributions) {
+			return node.pkAveraged;
+		}
+		double[] res = new double[nValuesConditionedVariable];
+		for (int k = 0; k < res.length; k++) {
+			double value = floatDistributions ? node.pkAveragedFloat[k] : node.pkAveraged[k];
+			res[k] = logSpaceDistributions ? value : Math.log(value);
+		}
+		return res;
+	}
+
+	/**
+	 * @param sample a datapoint (without the target variable)
+	 * @return its probability distribution over the target variable in single
+	 *         precision; no conversion if the distributions were finalised in
+	 *         float
+	 */
+	public float[] queryFloat(int[] sample) {
+		ProbabilityNode node = findNode(sample);
+		if (!node.hasAveragedProbabilities()) {
+			return null;
+		}
+		if (floatDistributions && !logSpaceDistributions) {
+			return node.pkAveragedFloat;
+		}
+		float[] res = new float[nValuesConditionedVariable];
+		for (int k = 0; k < res.length; k++) {
+			double value = floatDistributions ? node.pkAveragedFloat[k] : node.pkAveraged[k];
+			res[k] = (float) (logSpaceDistributions ? Math.exp(value) : value);
+		}
+		return res;
+	}
+
+	/**
+	 * @param sample a datapoint (without the target variable)
+	 * @return the log of its probability distribution over the target variable in
+	 *         single precision; no conversion if the distributions were finalised
+	 *         in log-space and float
+	 */
+	public float[] queryLogFloat(int[] sample) {
+		ProbabilityNode node = findNode(sample);
+		if (!node.hasAveragedProbabilities()) {
+			return null;
+		}
+		if (floatDistributions && logSpaceDistributions) {
+			return node.pkAveragedFloat;
+		}
+		float[] res = new float[nValuesConditionedVariable];
+		for (int k = 0; k < res.length; k++) {
+			double value = floatDistributions ? node.pkAveragedFloat[k] : node.pkAveraged[k];
+			res[k] = (float) (logSpaceDistributions ? value : Math.log(value));
+		}
+		return res;
+	}
+
+	/**
+	 * Get the probability estimated by the HDP process
+	 * 
+	 * @param sample a datapoint (without the target variable)
+	 * @return it's probability distribution over the target variable
+	 */
+	public double[] query(String... sample) {
+		UnknownValuePolicy policy = (unknownValuePolicy == UnknownValuePolicy.ERROR) ? UnknownValuePolicy.ERROR
+				: UnknownValuePolicy.BACK_OFF;
+		int[] encoded = new int[sample.length];
+		for (int j = 0; j < sample.length; j++) {
+			// +1 because storing the target as well; unknown values are missing
+			encoded[j] = encoder.encode(encoderAttributes[j + 1], sample[j], policy);
+		}
+		return findNode(encoded).getAveragedProbabilities();
 	}
 
 	public int[] queryMestimation(int[] sample) {
 		ProbabilityNode node = root;
-		for (int n = 0; n < sample.length; n++) {
-			if (node.children[sample[n]] != null) {
-				node = node.children[sample[n]];
-			} else {
+		int nLevels = getNLevelsForSample(sample);
+		for (int l = 0; l < nLevels; l++) {
+			int value = getValueAtLevel(sample, l);
+			ProbabilityNode next = (value < 0) ? null : getChildForQuery(node, value);
+			if (next == null) {
 				break;
 			}
+			node = next;
 		}
-		return node.nk;
+		return node.getNks();
 	}
 
 	protected double logStirling(double a, int n, int m) throws CacheExtensionException {
+		checkLogStirlingDiscount(a);
+		double res = lgCache.query(n, m);
+		return res;
+
+	}
+
+	/**
+	 * @return the cache of log Stirling numbers, for the discount a
+	 */
+	LogStirlingGenerator getLogStirlingCache(double a) {
+		checkLogStirlingDiscount(a);
+		return lgCache;
+	}
+
+	/**
+	 * @return the largest m for which log S(n,m) can be provided by the cache
+	 */
+	protected long getMaxTkLogStirling() {
+		return lgCache.getMaxK();
+	}
 
+	private void checkLogStirlingDiscount(double a) {
 		if (a != lgCache.discountP) {
+			// Do not forget to close to free resources!
+			closeLogStirlingCache(lgCache);
+			lgCache = newLogStirlingGenerator(nDatapoints, a);
+		}
+	}
+
+	/**
+	 * Creates a cache of log Stirling numbers (same for all the engines)
+	 *
+	 * @param maxN the largest n that will be queried
+	 */
+	static LogStirlingGenerator newLogStirlingGenerator(long maxN, double discount) {
+		try {
+			return LogStirlingFactory.newLogStirlingGenerator(maxN, discount);
+		} catch (NoSuchFieldException | IllegalAccessException e) {
+			System.err.println("Log Stirling Cache Exception " + e.getMessage());
+			System.err.println("Throws as RuntimeException");
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Closes a cache of log Stirling numbers, if any
+	 */
+	static void closeLogStirlingCache(LogStirlingGenerator cache) {
+		if (cache != null) {
 			try {
-				// Do not forget to close to free resources!
-				lgCache.close();
+				cache.close();
 			} catch (Exception e) {
 				System.err.println("Closing Log Stirling Cache Exception " + e.getMessage());
 				System.err.println("Throws as RuntimeException");
 				throw new RuntimeException(e);
 			}
-
-			try {
-				lgCache = LogStirlingFactory.newLogStirlingGenerator(nDatapoints, a);
-			} catch (NoSuchFieldException | IllegalAccessException e) {
-				System.err.println("Log Stirling Cache Exception " + e.getMessage());
-				System.err.println("Throws as RuntimeException");
-				throw new RuntimeException(e);
-			}
 		}
-
-		double res = lgCache.query(n, m);
-		return res;
-
 	}
 
 	public String printNks() {
@@ -488,18 +1714,63 @@ public class ProbabilityTree {
 			// now choosing y given values of xs
 			double rand = srg.nextDouble();
 			int chosenValue = 0;
-			double sumProba = node.pk[chosenValue];
+			// pk is freed when the distributions are finalised
+			double[] pk = (node.pk != null) ? node.pk : node.getAveragedProbabilities();
+			double sumProba = pk[chosenValue];
 			while (rand > sumProba) {
 				chosenValue++;
-				assert (chosenValue < node.pk.length);
-				sumProba += node.pk[chosenValue];
+				assert (chosenValue < pk.length);
+				sumProba += pk[chosenValue];
 			}
 			data[i][0] = chosenValue;
+			if (variableOrder != null) {
+				int[] columnOrder = new int[data[i].length];
+				columnOrder[0] = chosenValue;
+				for (int l = 0; l < variableOrder.length; l++) {
+					columnOrder[variableOrder[l] + 1] = data[i][l + 1];
+				}
+				data[i] = columnOrder;
+			}
 		}
 
 		return data;
 	}
 
+	public void setTrainingMode(TrainingMode trainingMode) {
+		this.trainingMode = trainingMode;
+	}
+
+	public TrainingMode getTrainingMode() {
+		return trainingMode;
+	}
+
+	/**
+	 * @param nMaxPasses max number of passes for the expected table counts mode
+	 * @param tolerance  the passes stop when no tk changes and concentrations
+	 *                   move by less than this (relative)
+	 */
+	public void setExpectedTableCountsConvergence(int nMaxPasses, double tolerance) {
+		this.nMaxPassesExpectedTableCounts = nMaxPasses;
+		this.toleranceExpectedTableCounts = tolerance;
+	}
+
+	/**
+	 * @param minibatchSize number of leaves sampled at each iteration of the
+	 *                      stochastic minibatch mode
+	 */
+	public void setMinibatchSize(int minibatchSize) {
+		this.minibatchSize = minibatchSize;
+	}
+
+	/**
+	 * @param delay      delay of the step size (iter+delay)^-forgetting
+	 * @param forgetting forgetting rate in (0.5,1]
+	 */
+	public void setStepSize(double delay, double forgetting) {
+		this.stepSizeDelay = delay;
+		this.stepSizeForgetting = forgetting;
+	}
+
 	public void setConcentrationTyingStrategy(TyingStrategy tyingStrategy) {
 		this.concentrationTyingStrategy = tyingStrategy;
 	}
@@ -519,7 +1790,7 @@ public class ProbabilityTree {
 	public String[] getValuesTarget() {
 		String[] values = new String[nValuesConditionedVariable];
 		for (int j = 0; j < values.length; j++) {
-			values[j] = indexToValue.get(0).get(j);
+			values[j] = encoder.decode(encoderAttributes[0], j);
 		}
 		return values;
 	}
@@ -0,0 +1,18 @@
+package hdp;
+
+/**
+ * Where the queries go for a value of a variable whose branch has been pruned
+ * (see ProbabilityTree.setMinCountPerBranch); in both cases, the data of the
+ * pruned branches is kept in a single "other" leaf below their parent
+ */
+public enum PruningStrategy {
+	/**
+	 * The query ends at the "other" leaf, whose distribution is estimated from the
+	 * data of all the pruned branches (default)
+	 */
+	MERGE,
+	/**
+	 * The query backs off to the parent, as for a value never seen below it
+	 */
+	BACK_OFF
+}
@@ -0,0 +1,104 @@
+package hdp;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Serves the distributions of a ProbabilityTree while it is retrained: queries
+ * read an immutable ProbabilitySnapshot through a volatile reference, and
+ * retraining runs on a background thread that swaps in the snapshot of the new
+ * tree when it is done. Readers never block and never see a tree being
+ * smoothed.
+ *
+ * For instance, with counts coming from a ConcurrentCountTree:
+ *
+ * <pre>
+ * serving.retrain(() -&gt; {
+ * 	ProbabilityTree tree = counts.snapshot();
+ * 	tree.smoothTree();
+ * 	return tree;
+ * });
+ * </pre>
+ */
+public class ServingProbabilityTree implements AutoCloseable {
+
+	private volatile ProbabilitySnapshot published;
+
+	/**
+	 * single thread, so that retrainings are published in the order they were
+	 * submitted
+	 */
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "hdp-retraining");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public ServingProbabilityTree() {
+	}
+
+	/**
+	 * @param tree a smoothed tree to serve first
+	 */
+	public ServingProbabilityTree(ProbabilityTree tree) {
+		publish(tree);
+	}
+
+	/**
+	 * Snapshots a smoothed tree and serves it from now on
+	 */
+	public void publish(ProbabilityTree tree) {
+		published = new ProbabilitySnapshot(tree);
+	}
+
+	/**
+	 * Trains a tree in the background and serves it once done; queries are
+	 * answered by the current snapshot in the meantime
+	 *
+	 * @param training returns the smoothed tree to serve
+	 * @return the snapshot once published
+	 */
+	public Future<ProbabilitySnapshot> retrain(Callable<ProbabilityTree> training) {
+		return executor.submit(() -> {
+			ProbabilitySnapshot snapshot = new ProbabilitySnapshot(training.call());
+			published = snapshot;
+			return snapshot;
+		});
+	}
+
+	/**
+	 * @return the snapshot currently served
+	 * @throws IllegalStateException if no tree has been published yet
+	 */
+	public ProbabilitySnapshot getSnapshot() {
+		ProbabilitySnapshot snapshot = published;
+		if (snapshot == null) {
+			throw new IllegalStateException("No tree has been published yet");
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @see ProbabilitySnapshot#query(int[])
+	 */
+	public double[] query(int[] sample) {
+		return getSnapshot().query(sample);
+	}
+
+	/**
+	 * @see ProbabilitySnapshot#query(String...)
+	 */
+	public double[] query(String... sample) {
+		return getSnapshot().query(sample);
+	}
+
+	/**
+	 * Stops the background thread (the retraining in progress is finished)
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+}
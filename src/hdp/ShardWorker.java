@@ -0,0 +1,168 @@
+package hdp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+import org.apache.commons.math3.random.MersenneTwister;
+
+import hdp.data.ColumnarDataset;
+
+/**
+ * Worker process of a sharded training (see ShardedTrainer): it owns the
+ * subtrees of a range of values of the first conditioning variable, held by an
+ * OutOfCoreProbabilityTree, and samples them locally; the counts of the root
+ * and the concentrations are synchronized with the coordinator at each
+ * iteration.
+ *
+ * Usage: java hdp.ShardWorker host port
+ */
+public class ShardWorker {
+
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	private ShardWorker(Socket socket) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	public static void main(String... args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: java hdp.ShardWorker host port");
+			System.exit(1);
+		}
+		try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+			new ShardWorker(socket).run();
+		}
+	}
+
+	private void run() throws IOException {
+		if (in.readInt() != ShardedTrainer.MAGIC) {
+			throw new IOException("Not a sharded training coordinator");
+		}
+		int shard = in.readInt();
+		Path dataset = Paths.get(in.readUTF());
+		Path directory = Paths.get(in.readUTF());
+		int nIterations = in.readInt();
+		int frequencySamplingC = in.readInt();
+		TyingStrategy tying = TyingStrategy.valueOf(in.readUTF());
+		int fromValue = in.readInt();
+		int toValue = in.readInt();
+
+		Files.createDirectories(directory);
+		try (ColumnarDataset data = ColumnarDataset.open(dataset)) {
+			int nValuesTarget = data.getArity(0);
+			int[] nValuesConditioning = new int[data.getNColumns() - 1];
+			for (int j = 0; j < nValuesConditioning.length; j++) {
+				nValuesConditioning[j] = data.getArity(j + 1);
+			}
+			try (OutOfCoreProbabilityTree tree = new OutOfCoreProbabilityTree(nValuesTarget, nValuesConditioning,
+					directory, nIterations, tying)) {
+				tree.setFrequencySamplingC(frequencySamplingC);
+				tree.rng = new MersenneTwister(3071980 + shard);
+				tree.addRows(readShard(data, fromValue, toValue));
+				// the counts of the root can reach the size of the whole dataset
+				tree.setLogStirlingCache(ProbabilityTree.newLogStirlingGenerator(data.getNRows(), 0.0));
+				train(tree, nValuesConditioning.length);
+			}
+		}
+	}
+
+	/**
+	 * @return the rows whose value of the first conditioning variable is in
+	 *         [fromValue,toValue)
+	 */
+	private static int[][] readShard(ColumnarDataset data, int fromValue, int toValue) {
+		int nColumns = data.getNColumns();
+		int blockSize = 1 << 16;
+		int[][] block = new int[nColumns][blockSize];
+		ArrayList<int[]> rows = new ArrayList<>();
+		for (int start = 0; start < data.getNRows(); start += blockSize) {
+			int length = Math.min(blockSize, data.getNRows() - start);
+			data.readColumn(1, start, block[1], length);
+			for (int j = 0; j < nColumns; j++) {
+				if (j != 1) {
+					data.readColumn(j, start, block[j], length);
+				}
+			}
+			for (int i = 0; i < length; i++) {
+				if (block[1][i] >= fromValue && block[1][i] < toValue) {
+					int[] row = new int[nColumns];
+					for (int j = 0; j < nColumns; j++) {
+						row[j] = block[j][i];
+					}
+					rows.add(row);
+				}
+			}
+		}
+		return rows.toArray(new int[rows.size()][]);
+	}
+
+	/**
+	 * Runs the iterations of the sampler in lockstep with the coordinator, then
+	 * sends the distributions of the shard
+	 */
+	private void train(OutOfCoreProbabilityTree tree, int nXs) throws IOException {
+		int nValuesTarget = tree.getNValuesConditionedVariable();
+		tree.prepareSmoothing();
+		synchronizeRoot(tree, nValuesTarget);
+		for (int iter = 0; iter < tree.getNIterations(); iter++) {
+			tree.sampleTksBelowRoot();
+			synchronizeRoot(tree, nValuesTarget);
+
+			if (tree.isConcentrationIteration(iter)) {
+				for (int d = nXs; d >= 1; d--) {
+					double[] statistics = new double[2];
+					tree.addConcentrationStatistics(d, statistics);
+					out.writeDouble(statistics[0]);
+					out.writeDouble(statistics[1]);
+				}
+				out.flush();
+				for (int d = nXs; d >= 1; d--) {
+					tree.setConcentration(d, in.readDouble());
+				}
+			}
+
+			if (iter >= tree.getNBurnIn()) {
+				tree.computeProbabilities();
+				tree.recordAndAverageProbabilities();
+			}
+		}
+
+		tree.visitDistributions((depth, path, probabilities) -> {
+			out.writeInt(depth);
+			for (int d = 0; d < depth; d++) {
+				out.writeInt(path[d]);
+			}
+			for (double p : probabilities) {
+				out.writeDouble(p);
+			}
+		});
+		out.writeInt(-1);
+		out.flush();
+	}
+
+	/**
+	 * Sends the tables of the children of the root of the shard, and sets the
+	 * counts of the root to the totals over the shards
+	 */
+	private void synchronizeRoot(OutOfCoreProbabilityTree tree, int nValuesTarget) throws IOException {
+		for (int t : tree.getRootChildrenTables()) {
+			out.writeInt(t);
+		}
+		out.flush();
+		int[] counts = new int[nValuesTarget];
+		for (int k = 0; k < nValuesTarget; k++) {
+			counts[k] = in.readInt();
+		}
+		tree.setRootCounts(counts);
+	}
+}
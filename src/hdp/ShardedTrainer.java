@@ -0,0 +1,326 @@
+package hdp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
+
+import hdp.data.ColumnarDataset;
+
+/**
+ * Trains a tree over a ColumnarDataset (target in column 0, conditioning
+ * variables in the next columns, from the root to the leaves) with several
+ * worker processes (ShardWorker), possibly on other machines. The subtrees of
+ * the children of the root only interact through the counts of the root and
+ * the concentrations, so:
+ * <ul>
+ * <li>each worker owns a contiguous range of values of the first conditioning
+ * variable, and samples the tks of its subtrees with an
+ * OutOfCoreProbabilityTree;</li>
+ * <li>at each iteration, the coordinator sums the tables of the children of
+ * the root over the workers and sends the totals back, which become the counts
+ * of the root of every worker;</li>
+ * <li>when the concentrations are sampled, it sums the sufficient statistics
+ * of each level (sum of log(1/q) and of the marginal tks) over the workers,
+ * samples the concentrations and sends them back;</li>
+ * <li>it finally collects the averaged probabilities of the nodes of the
+ * workers into a ProbabilitySnapshot.</li>
+ * </ul>
+ * The children of the root of a worker see the counts of the other shards as
+ * of the previous synchronization, so the sampler is an approximation of the
+ * sequential one.
+ */
+public class ShardedTrainer {
+
+	static final int MAGIC = 0x48445053;
+
+	private int nShards = 2;
+	private int m_Iterations = 5000;
+	private int frequencySamplingC = 5;
+	private TyingStrategy m_Tying = TyingStrategy.LEVEL;
+	private boolean launchLocalWorkers = true;
+	private int port = 0;
+	private int acceptTimeout = 60000;
+	protected RandomGenerator rng = new MersenneTwister(3071980);
+
+	/**
+	 * @param nShards number of workers (at most the number of values of the
+	 *                first conditioning variable that have data)
+	 */
+	public void setNShards(int nShards) {
+		if (nShards < 1) {
+			throw new IllegalArgumentException("At least one shard is needed");
+		}
+		this.nShards = nShards;
+	}
+
+	public void setIterations(int m_Iterations) {
+		this.m_Iterations = m_Iterations;
+	}
+
+	public void setFrequencySamplingC(int frequencySamplingC) {
+		this.frequencySamplingC = frequencySamplingC;
+	}
+
+	/**
+	 * @param m_Tying LEVEL or SINGLE, as for OutOfCoreProbabilityTree
+	 */
+	public void setTying(TyingStrategy m_Tying) {
+		if (m_Tying != TyingStrategy.LEVEL && m_Tying != TyingStrategy.SINGLE) {
+			throw new IllegalArgumentException("Sharded training supports the LEVEL and SINGLE tyings, not " + m_Tying);
+		}
+		this.m_Tying = m_Tying;
+	}
+
+	/**
+	 * @param launchLocalWorkers true (default) to start the workers as processes
+	 *                           of this host; false to wait for workers started
+	 *                           elsewhere with "java hdp.ShardWorker host port"
+	 * @param port               port to listen to (0 for any free port when the
+	 *                           workers are local)
+	 */
+	public void setWorkers(boolean launchLocalWorkers, int port) {
+		this.launchLocalWorkers = launchLocalWorkers;
+		this.port = port;
+	}
+
+	/**
+	 * @param acceptTimeout milliseconds to wait for each worker to connect
+	 */
+	public void setAcceptTimeout(int acceptTimeout) {
+		this.acceptTimeout = acceptTimeout;
+	}
+
+	/**
+	 * @param dataset       a ColumnarDataset, readable by the workers at the same
+	 *                      path
+	 * @param workDirectory where the workers create the files of their leaves
+	 *                      (one sub-directory per shard)
+	 * @return the distributions learned by the workers
+	 * @throws IOException if the dataset cannot be read or a worker fails
+	 */
+	public ProbabilitySnapshot train(Path dataset, Path workDirectory) throws IOException {
+		dataset = dataset.toAbsolutePath();
+		workDirectory = workDirectory.toAbsolutePath();
+		int nValuesTarget;
+		int[] nValuesConditioning;
+		int[] ranges;
+		try (ColumnarDataset data = ColumnarDataset.open(dataset)) {
+			if (data.getNColumns() < 2) {
+				throw new IllegalArgumentException("Sharded training needs at least one conditioning variable");
+			}
+			nValuesTarget = data.getArity(0);
+			nValuesConditioning = new int[data.getNColumns() - 1];
+			for (int j = 0; j < nValuesConditioning.length; j++) {
+				nValuesConditioning[j] = data.getArity(j + 1);
+			}
+			ranges = balanceRanges(data);
+		}
+		int nWorkers = ranges.length - 1;
+		int nXs = nValuesConditioning.length;
+		Files.createDirectories(workDirectory);
+
+		ArrayList<Process> processes = new ArrayList<>();
+		Worker[] workers = new Worker[nWorkers];
+		InetAddress address = launchLocalWorkers ? InetAddress.getLoopbackAddress() : null;
+		try (ServerSocket server = new ServerSocket(port, nWorkers, address)) {
+			server.setSoTimeout(acceptTimeout);
+			if (launchLocalWorkers) {
+				String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+				for (int s = 0; s < nWorkers; s++) {
+					processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+							ShardWorker.class.getName(), "localhost", Integer.toString(server.getLocalPort()))
+							.inheritIO().start());
+				}
+			} else {
+				System.out.println("Waiting for " + nWorkers + " workers on port " + server.getLocalPort());
+			}
+			for (int s = 0; s < nWorkers; s++) {
+				workers[s] = new Worker(server.accept());
+				DataOutputStream out = workers[s].out;
+				out.writeInt(MAGIC);
+				out.writeInt(s);
+				out.writeUTF(dataset.toString());
+				out.writeUTF(workDirectory.resolve("shard" + s).toString());
+				out.writeInt(m_Iterations);
+				out.writeInt(frequencySamplingC);
+				out.writeUTF(m_Tying.name());
+				out.writeInt(ranges[s]);
+				out.writeInt(ranges[s + 1]);
+				out.flush();
+			}
+
+			// the concentrations are created in the order of OutOfCoreProbabilityTree
+			Concentration[] concentrations = new Concentration[nXs + 1];
+			for (int d = nXs; d >= 1; d--) {
+				concentrations[d] = (m_Tying == TyingStrategy.SINGLE && d < nXs) ? concentrations[nXs]
+						: new Concentration();
+			}
+
+			synchronizeRoot(workers, nValuesTarget);
+			for (int iter = 0; iter < m_Iterations; iter++) {
+				synchronizeRoot(workers, nValuesTarget);
+				if ((iter + frequencySamplingC / 2) % frequencySamplingC == 0) {
+					synchronizeConcentrations(workers, concentrations, nXs);
+				}
+			}
+
+			ProbabilitySnapshot snapshot = null;
+			double[] probabilities = new double[nValuesTarget];
+			int[] path = new int[nXs];
+			for (int s = 0; s < nWorkers; s++) {
+				DataInputStream in = workers[s].in;
+				for (int depth = in.readInt(); depth >= 0; depth = in.readInt()) {
+					for (int d = 0; d < depth; d++) {
+						path[d] = in.readInt();
+					}
+					for (int k = 0; k < nValuesTarget; k++) {
+						probabilities[k] = in.readDouble();
+					}
+					if (depth > 0) {
+						snapshot.put(depth, path, probabilities, nValuesConditioning);
+					} else if (snapshot == null) {
+						// the roots of the workers only differ by the sampling of their tks
+						snapshot = new ProbabilitySnapshot(probabilities, nValuesConditioning);
+					}
+				}
+			}
+			for (Process process : processes) {
+				if (process.waitFor() != 0) {
+					throw new IOException("A worker exited with status " + process.exitValue());
+				}
+			}
+			return snapshot;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the workers", e);
+		} finally {
+			for (Worker worker : workers) {
+				if (worker != null) {
+					worker.socket.close();
+				}
+			}
+			for (Process process : processes) {
+				process.destroy();
+			}
+		}
+	}
+
+	/**
+	 * Splits the values of the first conditioning variable into contiguous
+	 * ranges with about the same number of rows, skipping the values without
+	 * rows
+	 *
+	 * @return the bounds of the ranges: shard s owns [res[s],res[s+1])
+	 */
+	private int[] balanceRanges(ColumnarDataset data) {
+		int nValues = data.getArity(1);
+		long[] counts = new long[nValues];
+		int[] buffer = new int[1 << 16];
+		for (int start = 0; start < data.getNRows(); start += buffer.length) {
+			int length = Math.min(buffer.length, data.getNRows() - start);
+			data.readColumn(1, start, buffer, length);
+			for (int i = 0; i < length; i++) {
+				counts[buffer[i]]++;
+			}
+		}
+		int nNonEmpty = 0;
+		for (long count : counts) {
+			if (count > 0) {
+				nNonEmpty++;
+			}
+		}
+		if (nNonEmpty == 0) {
+			throw new IllegalArgumentException("The dataset is empty");
+		}
+		int nWorkers = Math.min(nShards, nNonEmpty);
+		int[] bounds = new int[nWorkers + 1];
+		long cumulated = 0;
+		int s = 1;
+		int nNonEmptySeen = 0;
+		for (int v = 0; v < nValues && s < nWorkers; v++) {
+			if (counts[v] == 0) {
+				continue;
+			}
+			cumulated += counts[v];
+			nNonEmptySeen++;
+			// close the shard when it has its share, keeping a value for each next one
+			if (cumulated * nWorkers >= (long) s * data.getNRows() || nNonEmpty - nNonEmptySeen == nWorkers - s) {
+				bounds[s++] = v + 1;
+			}
+		}
+		bounds[nWorkers] = nValues;
+		return bounds;
+	}
+
+	/**
+	 * Sums the tables of the children of the root over the workers, and sends
+	 * the totals back
+	 */
+	private static void synchronizeRoot(Worker[] workers, int nValuesTarget) throws IOException {
+		int[] totals = new int[nValuesTarget];
+		for (Worker worker : workers) {
+			for (int k = 0; k < nValuesTarget; k++) {
+				totals[k] += worker.in.readInt();
+			}
+		}
+		for (Worker worker : workers) {
+			for (int k = 0; k < nValuesTarget; k++) {
+				worker.out.writeInt(totals[k]);
+			}
+			worker.out.flush();
+		}
+	}
+
+	/**
+	 * Sums the sufficient statistics of the concentrations over the workers,
+	 * samples them and sends them back
+	 */
+	private void synchronizeConcentrations(Worker[] workers, Concentration[] concentrations, int nXs)
+			throws IOException {
+		double[][] statistics = new double[nXs + 1][2];
+		for (Worker worker : workers) {
+			for (int d = nXs; d >= 1; d--) {
+				// all the levels share a single concentration with SINGLE
+				int level = (m_Tying == TyingStrategy.SINGLE) ? nXs : d;
+				statistics[level][0] += worker.in.readDouble();
+				statistics[level][1] += worker.in.readDouble();
+			}
+		}
+		for (int d = nXs; d >= 1; d--) {
+			if (m_Tying == TyingStrategy.LEVEL || d == nXs) {
+				Concentration c = concentrations[d];
+				c.setConcentration(c.sampleFromSufficientStatistics(rng, statistics[d][0], statistics[d][1]));
+			}
+		}
+		for (Worker worker : workers) {
+			for (int d = nXs; d >= 1; d--) {
+				worker.out.writeDouble(concentrations[d].getConcentration());
+			}
+			worker.out.flush();
+		}
+	}
+
+	private static final class Worker {
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+
+		Worker(Socket socket) throws IOException {
+			this.socket = socket;
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+	}
+}
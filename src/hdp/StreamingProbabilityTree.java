@@ -0,0 +1,205 @@
+package hdp;
+
+/**
+ * Follows a stream of data arriving by batches with a ProbabilityTree: old data
+ * is forgotten with a sliding window (over the last observations, or over a
+ * period of time) or an exponential decay of the counts, and after each batch
+ * the tree is smoothed again from its current state with a few iterations
+ * only, so that the cost of a batch does not grow with the stream.
+ *
+ * A window and a decay cannot be combined: the decay thins the counts at
+ * random, so the observations of the window would no longer be the ones held
+ * by the counts when they expire.
+ *
+ * The numbers of values of the variables must be given to the tree at
+ * construction, e.g. new ProbabilityTree(nValuesY, nValuesXs, false).
+ */
+public class StreamingProbabilityTree {
+
+	private final ProbabilityTree tree;
+
+	private int maxObservations = Integer.MAX_VALUE;
+	private long windowDuration = Long.MAX_VALUE;
+	private double decayFactor = 1.0;
+	private int nIterationsPerBatch = 100;
+
+	/**
+	 * Observations of the window, oldest first, in a ring buffer (only kept when
+	 * a window is set)
+	 */
+	private int[][] window = new int[16][];
+	private long[] windowTimes = new long[16];
+	private int windowStart = 0;
+	private int windowSize = 0;
+
+	private boolean smoothed = false;
+
+	/**
+	 * @param tree an empty tree, created with the numbers of values of its
+	 *             variables
+	 */
+	public StreamingProbabilityTree(ProbabilityTree tree) {
+		if (tree.root == null) {
+			throw new IllegalArgumentException("The tree must be created with the numbers of values of its variables");
+		}
+		this.tree = tree;
+	}
+
+	/**
+	 * Only keeps the last observations
+	 *
+	 * @param maxObservations size of the window
+	 * @throws IllegalStateException if a decay has been set
+	 */
+	public void setCountWindow(int maxObservations) {
+		if (maxObservations <= 0) {
+			throw new IllegalArgumentException("Invalid window size " + maxObservations);
+		}
+		checkNoDecay();
+		this.maxObservations = maxObservations;
+	}
+
+	/**
+	 * Only keeps the observations whose time is within duration of the time of
+	 * the last observation (times are given with the batches)
+	 *
+	 * @param duration length of the window, in the unit of the times
+	 * @throws IllegalStateException if a decay has been set
+	 */
+	public void setTimeWindow(long duration) {
+		if (duration <= 0) {
+			throw new IllegalArgumentException("Invalid window duration " + duration);
+		}
+		checkNoDecay();
+		this.windowDuration = duration;
+	}
+
+	/**
+	 * Multiplies the counts by a factor before each batch (see
+	 * ProbabilityTree.decayCounts), so that an observation seen n batches ago
+	 * weighs factor^n
+	 *
+	 * @param factor in (0,1]; 1 for no decay
+	 * @throws IllegalStateException if a window has been set
+	 */
+	public void setDecay(double factor) {
+		if (!(factor > 0.0 && factor <= 1.0)) {
+			throw new IllegalArgumentException("Invalid decay factor " + factor);
+		}
+		if (factor < 1.0 && isWindowed()) {
+			throw new IllegalStateException("A decay cannot be combined with a window");
+		}
+		this.decayFactor = factor;
+	}
+
+	private void checkNoDecay() {
+		if (decayFactor < 1.0) {
+			throw new IllegalStateException("A window cannot be combined with a decay");
+		}
+	}
+
+	private boolean isWindowed() {
+		return maxObservations != Integer.MAX_VALUE || windowDuration != Long.MAX_VALUE;
+	}
+
+	/**
+	 * @param nIterations number of iterations of the sampler after each batch
+	 *                    (but the first, which is smoothed from scratch)
+	 */
+	public void setNIterationsPerBatch(int nIterations) {
+		this.nIterationsPerBatch = nIterations;
+	}
+
+	/**
+	 * Adds a batch of observations without times (only for count windows and
+	 * decay)
+	 *
+	 * @param batch the observations, the first value being for the conditioned
+	 *              variable
+	 */
+	public void addBatch(int[][] batch) {
+		if (windowDuration != Long.MAX_VALUE) {
+			throw new IllegalStateException("A time window needs the times of the observations");
+		}
+		addBatch(batch, null);
+	}
+
+	/**
+	 * Adds a batch of observations, expires the ones that left the window and
+	 * smoothes the tree
+	 *
+	 * @param batch the observations, the first value being for the conditioned
+	 *              variable
+	 * @param times times of the observations, non decreasing along the stream
+	 */
+	public void addBatch(int[][] batch, long[] times) {
+		if (decayFactor < 1.0) {
+			tree.decayCounts(decayFactor);
+		}
+		boolean windowed = isWindowed();
+		for (int i = 0; i < batch.length; i++) {
+			tree.addObservation(batch[i]);
+			if (windowed) {
+				push(batch[i].clone(), (times == null) ? 0L : times[i]);
+			}
+		}
+		if (windowed && windowSize > 0) {
+			long lastTime = windowTimes[(windowStart + windowSize - 1) % window.length];
+			while (windowSize > maxObservations || lastTime - windowTimes[windowStart] >= windowDuration) {
+				expireOldest();
+			}
+		}
+
+		if (smoothed) {
+			tree.smoothWarmStart(nIterationsPerBatch);
+		} else {
+			tree.smoothTree();
+			smoothed = true;
+		}
+	}
+
+	private void push(int[] datapoint, long time) {
+		if (windowSize == window.length) {
+			// unrolls the ring in a larger buffer
+			int[][] newWindow = new int[2 * window.length][];
+			long[] newTimes = new long[2 * window.length];
+			for (int i = 0; i < windowSize; i++) {
+				newWindow[i] = window[(windowStart + i) % window.length];
+				newTimes[i] = windowTimes[(windowStart + i) % window.length];
+			}
+			window = newWindow;
+			windowTimes = newTimes;
+			windowStart = 0;
+		}
+		int end = (windowStart + windowSize) % window.length;
+		window[end] = datapoint;
+		windowTimes[end] = time;
+		windowSize++;
+	}
+
+	private void expireOldest() {
+		int[] datapoint = window[windowStart];
+		window[windowStart] = null;
+		windowStart = (windowStart + 1) % window.length;
+		windowSize--;
+		tree.removeObservation(datapoint);
+	}
+
+	/**
+	 * @return the number of observations in the window
+	 */
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public ProbabilityTree getTree() {
+		return tree;
+	}
+
+	/**
+	 * @see ProbabilityTree#query(int[])
+	 */
+	public double[] query(int[] sample) {
+		return tree.query(sample);
+	}
+}
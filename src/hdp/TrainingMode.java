@@ -0,0 +1,28 @@
+package hdp;
+
+/**
+ * Represents the different ways of estimating the parameters of the tree once
+ * the data has been added
+ * 
+ * @author Francois Petitjean
+ */
+public enum TrainingMode {
+	/**
+	 * Collapsed Gibbs sampling of the tks and concentrations, averaging the
+	 * probabilities after burn-in (default)
+	 */
+	GIBBS,
+	/**
+	 * No sampling: tks are set to their expected values given the rest of the
+	 * tree, and concentrations to their fixed-point estimates given the tks,
+	 * until convergence. Probabilities are computed once at the end.
+	 */
+	EXPECTED_TABLE_COUNTS,
+	/**
+	 * Each iteration only samples the tks of the paths to a random minibatch of
+	 * leaves, moves the concentrations towards their samples with a decaying step
+	 * size, and averages the probabilities of the touched nodes. The cost of an
+	 * iteration doesn't depend on the size of the dataset.
+	 */
+	STOCHASTIC_MINIBATCH
+}
@@ -0,0 +1,104 @@
+package hdp;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the order of the conditioning variables of a tree (from the root to
+ * the leaves) so as to keep the tree small: the number of nodes at a level is
+ * the number of distinct prefixes of the datapoints observed down to that
+ * level, so variables with many values, or that do not co-occur much with the
+ * variables above, are better placed deep in the tree.
+ *
+ * The order is built greedily: at each level, the variable that adds the
+ * fewest nodes to the level is chosen (ties go to the fewest values, then to
+ * the original order). The distinct prefixes are counted exactly, on a sample
+ * of the datapoints for large datasets.
+ */
+public final class VariableOrdering {
+
+	/**
+	 * max number of datapoints on which the prefixes are counted
+	 */
+	static final int MAX_ROWS = 100000;
+
+	private VariableOrdering() {
+	}
+
+	/**
+	 * @param data                         datapoints, the first value being for
+	 *                                     the conditioned variable
+	 * @param nValuesConditioningVariables numbers of values of the conditioning
+	 *                                     variables
+	 * @return order[l] is the (0-based) index of the conditioning variable at
+	 *         level l of the tree
+	 */
+	public static int[] minimiseNodes(int[][] data, int[] nValuesConditioningVariables) {
+		int nXs = nValuesConditioningVariables.length;
+		int nRows = Math.min(data.length, MAX_ROWS);
+		// evenly spaced rows, so that sorted data is sampled fairly
+		int[][] rows = new int[nRows][];
+		for (int i = 0; i < nRows; i++) {
+			rows[i] = data[(int) ((long) i * data.length / nRows)];
+		}
+
+		int[] order = new int[nXs];
+		boolean[] chosen = new boolean[nXs];
+		// dense identifiers of the prefixes of the rows over the levels chosen so far
+		int[] prefixes = new int[nRows];
+		long[] keys = new long[nRows];
+		for (int level = 0; level < nXs; level++) {
+			int best = -1;
+			int bestNodes = Integer.MAX_VALUE;
+			for (int x = 0; x < nXs; x++) {
+				if (chosen[x]) {
+					continue;
+				}
+				int nNodes = countDistinct(rows, prefixes, x, nValuesConditioningVariables[x], keys);
+				if (nNodes < bestNodes || (nNodes == bestNodes
+						&& nValuesConditioningVariables[x] < nValuesConditioningVariables[best])) {
+					best = x;
+					bestNodes = nNodes;
+				}
+			}
+			order[level] = best;
+			chosen[best] = true;
+			renumber(rows, prefixes, best, nValuesConditioningVariables[best], keys);
+		}
+		return order;
+	}
+
+	/**
+	 * @return the number of distinct (prefix, value of x) in the rows; keys is
+	 *         left sorted
+	 */
+	private static int countDistinct(int[][] rows, int[] prefixes, int x, int nValues, long[] keys) {
+		for (int i = 0; i < rows.length; i++) {
+			// +1 because the first value is the conditioned variable
+			keys[i] = (long) prefixes[i] * nValues + rows[i][x + 1];
+		}
+		Arrays.sort(keys);
+		int nDistinct = (keys.length == 0) ? 0 : 1;
+		for (int i = 1; i < keys.length; i++) {
+			if (keys[i] != keys[i - 1]) {
+				nDistinct++;
+			}
+		}
+		return nDistinct;
+	}
+
+	/**
+	 * Extends the prefixes of the rows with x and renumbers them densely
+	 */
+	private static void renumber(int[][] rows, int[] prefixes, int x, int nValues, long[] keys) {
+		countDistinct(rows, prefixes, x, nValues, keys);
+		int nDistinct = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (i == 0 || keys[i] != keys[i - 1]) {
+				keys[nDistinct++] = keys[i];
+			}
+		}
+		for (int i = 0; i < rows.length; i++) {
+			prefixes[i] = Arrays.binarySearch(keys, 0, nDistinct, (long) prefixes[i] * nValues + rows[i][x + 1]);
+		}
+	}
+}
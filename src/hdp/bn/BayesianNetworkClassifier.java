@@ -0,0 +1,277 @@
+package hdp.bn;
+
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import hdp.BatchTrainer;
+import hdp.ProbabilityTree;
+
+/**
+ * Bayesian network classifier whose conditional distributions are estimated
+ * with ProbabilityTrees: the class Y is a parent of every attribute X_a, which
+ * can have other attributes as parents (given by the structure learned by the
+ * subclass). All the trees are trained at once with a BatchTrainer.
+ *
+ * After training, the distributions are stored as dense tables of
+ * log-probabilities, so that scoring is a sum of table lookups per attribute
+ * and class, with no allocation per prediction; batches of rows are scored in
+ * parallel.
+ *
+ * Rows have the same layout as for training: column 0 is the class (ignored
+ * when predicting), columns 1..nAttributes are the attributes. Values that were
+ * not seen in training and missing values (negative) are ignored: the
+ * attribute does not contribute, nor do the attributes that have it as a
+ * parent.
+ */
+public abstract class BayesianNetworkClassifier {
+
+	/**
+	 * rows scored by a task when scoring in parallel
+	 */
+	private static final int ROWS_PER_TASK = 1024;
+
+	private Supplier<ProbabilityTree> treeFactory = ProbabilityTree::new;
+	private int nThreadsTraining = Runtime.getRuntime().availableProcessors();
+
+	int nValuesClass;
+	/**
+	 * number of values of each column (column 0 is the class)
+	 */
+	int[] arities;
+	/**
+	 * parents[a] are the columns of the parents of column a (1 <= a <=
+	 * nAttributes) other than the class
+	 */
+	int[][] parents;
+
+	double[] logPrior;
+	/**
+	 * logTables[a][(y * nParentConfigurations[a] + parentConfiguration) *
+	 * arities[a] + x] = log p(X_a = x | y, parents)
+	 */
+	double[][] logTables;
+	/**
+	 * size of the block of logTables[a] for one value of the class
+	 */
+	int[] blockSizes;
+
+	/**
+	 * Learns the parents of each attribute (other than the class)
+	 *
+	 * @param data    the training data
+	 * @param arities number of values of each column
+	 * @return parents[a] for each column a (parents[0] is ignored)
+	 */
+	protected abstract int[][] learnStructure(int[][] data, int[] arities);
+
+	/**
+	 * @param treeFactory creates the (empty) trees with their parameters
+	 */
+	public void setTreeFactory(Supplier<ProbabilityTree> treeFactory) {
+		this.treeFactory = treeFactory;
+	}
+
+	/**
+	 * @param nThreads max number of trees smoothed at the same time
+	 */
+	public void setNThreadsTraining(int nThreads) {
+		this.nThreadsTraining = nThreads;
+	}
+
+	/**
+	 * Learns the structure and the parameters of the classifier
+	 *
+	 * @param data rows of values indexed from 0, the class in column 0
+	 */
+	public void train(int[][] data) {
+		if (data == null || data.length == 0) {
+			throw new RuntimeException("Data is empty");
+		}
+		int nColumns = data[0].length;
+		arities = new int[nColumns];
+		for (int[] row : data) {
+			for (int j = 0; j < nColumns; j++) {
+				if (row[j] >= arities[j]) {
+					arities[j] = row[j] + 1;
+				}
+			}
+		}
+		nValuesClass = arities[0];
+		parents = learnStructure(data, arities);
+
+		// p(y) and p(x_a | y, parents) for each attribute
+		BatchTrainer trainer = new BatchTrainer();
+		trainer.setTreeFactory(treeFactory);
+		trainer.setNThreads(nThreadsTraining);
+		trainer.addTree(0);
+		for (int a = 1; a < nColumns; a++) {
+			int[] treeParents = new int[parents[a].length + 1];
+			treeParents[0] = 0;
+			System.arraycopy(parents[a], 0, treeParents, 1, parents[a].length);
+			trainer.addTree(a, treeParents);
+		}
+		ProbabilityTree[] trees = trainer.train(data);
+
+		trees[0].finalizeDistributions(true, false);
+		logPrior = trees[0].queryLog(new int[0]).clone();
+		logTables = new double[nColumns][];
+		blockSizes = new int[nColumns];
+		for (int a = 1; a < nColumns; a++) {
+			logTables[a] = buildLogTable(trees[a], a);
+		}
+	}
+
+	/**
+	 * Queries the tree of an attribute for every configuration of its parents
+	 */
+	private double[] buildLogTable(ProbabilityTree tree, int a) {
+		tree.finalizeDistributions(true, false);
+		int nParentConfigurations = 1;
+		for (int p : parents[a]) {
+			nParentConfigurations *= arities[p];
+		}
+		blockSizes[a] = nParentConfigurations * arities[a];
+		double[] table = new double[nValuesClass * blockSizes[a]];
+
+		// configurations (y, parents) in mixed radix, the class being the most
+		// significant digit
+		int[] sample = new int[parents[a].length + 1];
+		int nConfigurations = nValuesClass * nParentConfigurations;
+		for (int configuration = 0; configuration < nConfigurations; configuration++) {
+			System.arraycopy(tree.queryLog(sample), 0, table, configuration * arities[a], arities[a]);
+			// next configuration
+			for (int j = sample.length - 1; j >= 0; j--) {
+				int arity = (j == 0) ? nValuesClass : arities[parents[a][j - 1]];
+				if (++sample[j] < arity) {
+					break;
+				}
+				sample[j] = 0;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Computes log p(y, x) (up to a constant) for each class value
+	 *
+	 * @param row the values of the attributes (column 0 is ignored); negative
+	 *            values are missing
+	 * @param out where to store the log-probabilities; length nValuesClass
+	 */
+	public void logJoint(int[] row, double[] out) {
+		System.arraycopy(logPrior, 0, out, 0, nValuesClass);
+		for (int a = 1; a < logTables.length; a++) {
+			int x = row[a];
+			if (x < 0 || x >= arities[a]) {
+				continue;
+			}
+			int configuration = 0;
+			int[] parentsA = parents[a];
+			boolean known = true;
+			for (int p = 0; p < parentsA.length; p++) {
+				int v = row[parentsA[p]];
+				if (v < 0 || v >= arities[parentsA[p]]) {
+					known = false;
+					break;
+				}
+				configuration = configuration * arities[parentsA[p]] + v;
+			}
+			if (!known) {
+				continue;
+			}
+			double[] table = logTables[a];
+			int blockSize = blockSizes[a];
+			int index = configuration * arities[a] + x;
+			for (int y = 0; y < nValuesClass; y++, index += blockSize) {
+				out[y] += table[index];
+			}
+		}
+	}
+
+	/**
+	 * Computes p(y | x) for each row, in parallel
+	 *
+	 * @param rows the rows to score (column 0 is ignored)
+	 * @param out  out[i] receives the distribution of the class for rows[i];
+	 *             each of length nValuesClass
+	 */
+	public void predictProbabilities(int[][] rows, double[][] out) {
+		forEachRow(rows.length, (from, to) -> {
+			for (int i = from; i < to; i++) {
+				double[] probs = out[i];
+				logJoint(rows[i], probs);
+				normalizeLogs(probs);
+			}
+		});
+	}
+
+	/**
+	 * Predicts the most probable class of each row, in parallel
+	 *
+	 * @param rows the rows to score (column 0 is ignored)
+	 * @param out  out[i] receives the class predicted for rows[i]
+	 */
+	public void predict(int[][] rows, int[] out) {
+		forEachRow(rows.length, (from, to) -> {
+			double[] logJoint = new double[nValuesClass];
+			for (int i = from; i < to; i++) {
+				logJoint(rows[i], logJoint);
+				int best = 0;
+				for (int y = 1; y < nValuesClass; y++) {
+					if (logJoint[y] > logJoint[best]) {
+						best = y;
+					}
+				}
+				out[i] = best;
+			}
+		});
+	}
+
+	public int getNValuesClass() {
+		return nValuesClass;
+	}
+
+	/**
+	 * @return the parents of each attribute other than the class (the array at
+	 *         index 0 is empty)
+	 */
+	public int[][] getParents() {
+		int[][] copy = new int[parents.length][];
+		for (int a = 0; a < parents.length; a++) {
+			copy[a] = parents[a].clone();
+		}
+		return copy;
+	}
+
+	/**
+	 * Turns log-probabilities (up to a constant) into probabilities in place
+	 */
+	private static void normalizeLogs(double[] logs) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (double l : logs) {
+			max = Math.max(max, l);
+		}
+		double sum = 0.0;
+		for (int y = 0; y < logs.length; y++) {
+			logs[y] = Math.exp(logs[y] - max);
+			sum += logs[y];
+		}
+		for (int y = 0; y < logs.length; y++) {
+			logs[y] /= sum;
+		}
+	}
+
+	private interface RowRangeTask {
+		void run(int from, int to);
+	}
+
+	private static void forEachRow(int nRows, RowRangeTask task) {
+		int nTasks = (nRows + ROWS_PER_TASK - 1) / ROWS_PER_TASK;
+		if (nTasks <= 1) {
+			task.run(0, nRows);
+			return;
+		}
+		IntStream.range(0, nTasks).parallel()
+				.forEach(t -> task.run(t * ROWS_PER_TASK, Math.min(nRows, (t + 1) * ROWS_PER_TASK)));
+	}
+}
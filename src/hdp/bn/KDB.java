@@ -0,0 +1,109 @@
+package hdp.bn;
+
+import java.util.Arrays;
+
+/**
+ * k-dependence Bayesian classifier (Sahami, 1996): the attributes are ranked by
+ * mutual information with the class, and each attribute gets as parents (on
+ * top of the class) the k attributes ranked before it with the highest
+ * conditional mutual information with it given the class. The parents are
+ * ordered by decreasing conditional mutual information, the first one being
+ * at the top of the tree.
+ */
+public class KDB extends BayesianNetworkClassifier {
+
+	private final int k;
+
+	/**
+	 * @param k max number of parents of an attribute, the class excluded
+	 */
+	public KDB(int k) {
+		this.k = k;
+	}
+
+	@Override
+	protected int[][] learnStructure(int[][] data, int[] arities) {
+		int nColumns = arities.length;
+		int nY = arities[0];
+		double n = data.length;
+
+		// counts of (x_a, y) and (x_a, x_b, y) for a < b, in one pass
+		long[] countsY = new long[nY];
+		long[][] countsXY = new long[nColumns][];
+		long[][][] countsXXY = new long[nColumns][nColumns][];
+		for (int a = 1; a < nColumns; a++) {
+			countsXY[a] = new long[arities[a] * nY];
+			for (int b = a + 1; b < nColumns; b++) {
+				countsXXY[a][b] = new long[arities[a] * arities[b] * nY];
+			}
+		}
+		for (int[] row : data) {
+			int y = row[0];
+			countsY[y]++;
+			for (int a = 1; a < nColumns; a++) {
+				countsXY[a][row[a] * nY + y]++;
+				for (int b = a + 1; b < nColumns; b++) {
+					countsXXY[a][b][(row[a] * arities[b] + row[b]) * nY + y]++;
+				}
+			}
+		}
+
+		// I(X_a;Y)
+		double[] mi = new double[nColumns];
+		for (int a = 1; a < nColumns; a++) {
+			for (int x = 0; x < arities[a]; x++) {
+				long countX = 0;
+				for (int y = 0; y < nY; y++) {
+					countX += countsXY[a][x * nY + y];
+				}
+				for (int y = 0; y < nY; y++) {
+					long c = countsXY[a][x * nY + y];
+					if (c > 0) {
+						mi[a] += c / n * Math.log(c * n / ((double) countX * countsY[y]));
+					}
+				}
+			}
+		}
+
+		// I(X_a;X_b|Y), symmetric
+		double[][] cmi = new double[nColumns][nColumns];
+		for (int a = 1; a < nColumns; a++) {
+			for (int b = a + 1; b < nColumns; b++) {
+				double sum = 0.0;
+				for (int xa = 0; xa < arities[a]; xa++) {
+					for (int xb = 0; xb < arities[b]; xb++) {
+						for (int y = 0; y < nY; y++) {
+							long c = countsXXY[a][b][(xa * arities[b] + xb) * nY + y];
+							if (c > 0) {
+								sum += c / n * Math.log((double) c * countsY[y]
+										/ ((double) countsXY[a][xa * nY + y] * countsXY[b][xb * nY + y]));
+							}
+						}
+					}
+				}
+				cmi[a][b] = sum;
+				cmi[b][a] = sum;
+			}
+		}
+
+		Integer[] ranking = new Integer[nColumns - 1];
+		for (int a = 1; a < nColumns; a++) {
+			ranking[a - 1] = a;
+		}
+		Arrays.sort(ranking, (a, b) -> Double.compare(mi[b], mi[a]));
+
+		int[][] parents = new int[nColumns][];
+		parents[0] = new int[0];
+		for (int r = 0; r < ranking.length; r++) {
+			int a = ranking[r];
+			Integer[] candidates = Arrays.copyOfRange(ranking, 0, r);
+			Arrays.sort(candidates, (b, c) -> Double.compare(cmi[a][c], cmi[a][b]));
+			int nParents = Math.min(k, candidates.length);
+			parents[a] = new int[nParents];
+			for (int p = 0; p < nParents; p++) {
+				parents[a][p] = candidates[p];
+			}
+		}
+		return parents;
+	}
+}
@@ -0,0 +1,16 @@
+package hdp.bn;
+
+/**
+ * Naive Bayes: the class is the only parent of every attribute
+ */
+public class NaiveBayes extends BayesianNetworkClassifier {
+
+	@Override
+	protected int[][] learnStructure(int[][] data, int[] arities) {
+		int[][] parents = new int[arities.length][];
+		for (int a = 0; a < arities.length; a++) {
+			parents[a] = new int[0];
+		}
+		return parents;
+	}
+}
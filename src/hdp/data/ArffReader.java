@@ -0,0 +1,209 @@
+package hdp.data;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * Streaming reader for ARFF files (dense format). The values of nominal
+ * attributes are taken from the header; other attributes are read as
+ * categorical values whose set is discovered while reading. Missing values
+ * ('?') are read as the value "?".
+ */
+public class ArffReader implements CategoricalReader {
+
+	private final BufferedReader reader;
+	private final int targetColumn;
+	private final String[] names;
+	private final String[][] declaredValues;
+
+	private final ArrayList<String> fields = new ArrayList<>();
+	private final StringBuilder field = new StringBuilder();
+	private long lineNumber;
+
+	/**
+	 * @param file         the file to read
+	 * @param targetColumn index of the attribute of the target variable; -1 for
+	 *                     the last attribute (usual class attribute)
+	 * @throws IOException if the header can't be read
+	 */
+	public ArffReader(Path file, int targetColumn) throws IOException {
+		this.reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+
+		ArrayList<String> attributeNames = new ArrayList<>();
+		ArrayList<String[]> attributeValues = new ArrayList<>();
+		String line;
+		while ((line = nextLine()) != null) {
+			String lower = line.toLowerCase();
+			if (lower.startsWith("@attribute")) {
+				parseAttribute(line.substring("@attribute".length()).trim(), attributeNames, attributeValues);
+			} else if (lower.startsWith("@data")) {
+				break;
+			} else if (!lower.startsWith("@relation")) {
+				reader.close();
+				throw new IOException("Line " + lineNumber + ": unexpected line in header: " + line);
+			}
+		}
+		if (line == null || attributeNames.isEmpty()) {
+			reader.close();
+			throw new IOException("No @data section or no attribute in " + file);
+		}
+
+		int nVariables = attributeNames.size();
+		this.targetColumn = (targetColumn < 0) ? nVariables - 1 : targetColumn;
+		if (this.targetColumn >= nVariables) {
+			reader.close();
+			throw new IOException("Target attribute " + targetColumn + " but only " + nVariables + " attributes");
+		}
+		names = new String[nVariables];
+		declaredValues = new String[nVariables][];
+		for (int j = 0; j < nVariables; j++) {
+			names[toRowIndex(j)] = attributeNames.get(j);
+			declaredValues[toRowIndex(j)] = attributeValues.get(j);
+		}
+	}
+
+	/**
+	 * Reads an ARFF file with the class as last attribute
+	 */
+	public ArffReader(Path file) throws IOException {
+		this(file, -1);
+	}
+
+	@Override
+	public int getNVariables() {
+		return names.length;
+	}
+
+	@Override
+	public String getVariableName(int variable) {
+		return names[variable];
+	}
+
+	@Override
+	public String[] getDeclaredValues(int variable) {
+		return declaredValues[variable];
+	}
+
+	@Override
+	public boolean next(String[] row) throws IOException {
+		String line = nextLine();
+		if (line == null) {
+			return false;
+		}
+		if (line.charAt(0) == '{') {
+			throw new IOException("Line " + lineNumber + ": sparse ARFF format is not supported");
+		}
+		split(line);
+		if (fields.size() != names.length) {
+			throw new IOException(
+					"Line " + lineNumber + ": " + fields.size() + " values found, " + names.length + " expected");
+		}
+		for (int j = 0; j < names.length; j++) {
+			row[toRowIndex(j)] = fields.get(j);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the next line that is not empty nor a comment, trimmed; null at the
+	 *         end of the file
+	 */
+	private String nextLine() throws IOException {
+		String line;
+		do {
+			line = reader.readLine();
+			lineNumber++;
+			if (line != null) {
+				line = line.trim();
+			}
+		} while (line != null && (line.isEmpty() || line.charAt(0) == '%'));
+		return line;
+	}
+
+	/**
+	 * Parses "name type" where type is either {v1,v2,...} or a keyword
+	 */
+	private void parseAttribute(String definition, ArrayList<String> attributeNames,
+			ArrayList<String[]> attributeValues) throws IOException {
+		String name;
+		String type;
+		char first = definition.charAt(0);
+		if (first == '\'' || first == '"') {
+			int end = definition.indexOf(first, 1);
+			if (end < 0) {
+				throw new IOException("Line " + lineNumber + ": unterminated attribute name");
+			}
+			name = definition.substring(1, end);
+			type = definition.substring(end + 1).trim();
+		} else {
+			int end = 0;
+			while (end < definition.length() && !Character.isWhitespace(definition.charAt(end))
+					&& definition.charAt(end) != '{') {
+				end++;
+			}
+			name = definition.substring(0, end);
+			type = definition.substring(end).trim();
+		}
+
+		attributeNames.add(name);
+		if (type.startsWith("{")) {
+			int end = type.lastIndexOf('}');
+			if (end < 0) {
+				throw new IOException("Line " + lineNumber + ": unterminated nominal values");
+			}
+			split(type.substring(1, end));
+			attributeValues.add(fields.toArray(new String[0]));
+		} else {
+			attributeValues.add(null);
+		}
+	}
+
+	/**
+	 * @return the index in the row (target first) of attribute j of the file
+	 */
+	private int toRowIndex(int j) {
+		if (j == targetColumn) {
+			return 0;
+		}
+		return (j < targetColumn) ? j + 1 : j;
+	}
+
+	private void split(String line) throws IOException {
+		fields.clear();
+		field.setLength(0);
+		char quote = 0;
+		for (int i = 0; i < line.length(); i++) {
+			char ch = line.charAt(i);
+			if (quote != 0) {
+				if (ch == '\\' && i + 1 < line.length()) {
+					field.append(line.charAt(++i));
+				} else if (ch == quote) {
+					quote = 0;
+				} else {
+					field.append(ch);
+				}
+			} else if (ch == ',') {
+				fields.add(field.toString().trim());
+				field.setLength(0);
+			} else if ((ch == '\'' || ch == '"') && field.toString().trim().isEmpty()) {
+				field.setLength(0);
+				quote = ch;
+			} else {
+				field.append(ch);
+			}
+		}
+		if (quote != 0) {
+			throw new IOException("Line " + lineNumber + ": unterminated quote");
+		}
+		fields.add(field.toString().trim());
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
@@ -0,0 +1,42 @@
+package hdp.data;
+
+import java.io.IOException;
+
+/**
+ * Reads a categorical dataset row by row, without loading it in memory. Rows
+ * are given with the target variable first, followed by the conditioning
+ * variables.
+ */
+public interface CategoricalReader extends AutoCloseable {
+
+	/**
+	 * @return the number of variables in each row (target included)
+	 */
+	public int getNVariables();
+
+	/**
+	 * @param variable index of the variable; 0 is the target
+	 * @return the names of the variable
+	 */
+	public String getVariableName(int variable);
+
+	/**
+	 * @param variable index of the variable; 0 is the target
+	 * @return the values declared for the variable (e.g. in an ARFF header), or
+	 *         null if they are only known by reading the data
+	 */
+	public String[] getDeclaredValues(int variable);
+
+	/**
+	 * Reads the next row
+	 * 
+	 * @param row where to store the values of the row, target first; its length
+	 *            is getNVariables()
+	 * @return false if there is no more row to read
+	 * @throws IOException
+	 */
+	public boolean next(String[] row) throws IOException;
+
+	@Override
+	public void close() throws IOException;
+}
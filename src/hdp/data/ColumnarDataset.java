@@ -0,0 +1,347 @@
+package hdp.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Categorical dataset stored column by column in a binary file, and read
+ * through memory mapping so that it is never copied on the heap; datasets
+ * larger than the memory can be used.
+ *
+ * The file starts with a header giving the number of rows and, for each
+ * column, its name, its number of values, the width of its cells and
+ * optionally the dictionary of its values. The columns follow, one after the
+ * other; a cell is stored on 1, 2 or 4 bytes (unsigned) depending on the
+ * number of values of the column. Column 0 is the target variable.
+ */
+public class ColumnarDataset implements AutoCloseable {
+
+	private static final int MAGIC = 0x48445043; // "HDPC"
+	private static final int VERSION = 1;
+
+	/**
+	 * Maximum number of bytes mapped at once (a MappedByteBuffer is indexed by
+	 * int)
+	 */
+	private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+	private final FileChannel channel;
+	private final int nRows;
+	private final String[] names;
+	private final int[] arities;
+	private final int[] widths;
+	private final String[][] dictionaries;
+
+	/**
+	 * columns[j][c] maps the rows [c*rowsPerChunk[j], (c+1)*rowsPerChunk[j]) of
+	 * column j
+	 */
+	private final ByteBuffer[][] columns;
+	private final int[] rowsPerChunk;
+
+	private ColumnarDataset(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+		if (in.readInt() != MAGIC) {
+			channel.close();
+			throw new IOException("Not a columnar dataset: " + file);
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			channel.close();
+			throw new IOException("Unsupported version " + version + " of columnar dataset " + file);
+		}
+		nRows = in.readInt();
+		int nColumns = in.readInt();
+		long dataStart = in.readLong();
+		names = new String[nColumns];
+		arities = new int[nColumns];
+		widths = new int[nColumns];
+		dictionaries = new String[nColumns][];
+		for (int j = 0; j < nColumns; j++) {
+			names[j] = in.readUTF();
+			arities[j] = in.readInt();
+			widths[j] = in.readByte();
+			int nValues = in.readInt();
+			if (nValues > 0) {
+				dictionaries[j] = new String[nValues];
+				for (int v = 0; v < nValues; v++) {
+					dictionaries[j][v] = in.readUTF();
+				}
+			}
+		}
+
+		columns = new ByteBuffer[nColumns][];
+		rowsPerChunk = new int[nColumns];
+		long offset = dataStart;
+		for (int j = 0; j < nColumns; j++) {
+			rowsPerChunk[j] = (int) (MAX_CHUNK_BYTES / widths[j]);
+			int nChunks = (nRows + rowsPerChunk[j] - 1) / rowsPerChunk[j];
+			columns[j] = new ByteBuffer[nChunks];
+			for (int c = 0; c < nChunks; c++) {
+				int rows = Math.min(rowsPerChunk[j], nRows - c * rowsPerChunk[j]);
+				long size = (long) rows * widths[j];
+				columns[j][c] = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+				offset += size;
+			}
+		}
+	}
+
+	/**
+	 * Opens a dataset written by one of the write methods
+	 */
+	public static ColumnarDataset open(Path file) throws IOException {
+		return new ColumnarDataset(file);
+	}
+
+	public int getNRows() {
+		return nRows;
+	}
+
+	public int getNColumns() {
+		return arities.length;
+	}
+
+	public String getName(int column) {
+		return names[column];
+	}
+
+	/**
+	 * @return the number of values of the column; the cells are in [0,arity)
+	 */
+	public int getArity(int column) {
+		return arities[column];
+	}
+
+	/**
+	 * @return the values of the column, or null if the file has no dictionary
+	 *         for it
+	 */
+	public String[] getDictionary(int column) {
+		return dictionaries[column];
+	}
+
+	/**
+	 * Reads consecutive cells of a column
+	 *
+	 * @param column  the column
+	 * @param fromRow the first row to read
+	 * @param buffer  where to store the cells
+	 * @param length  the number of rows to read
+	 */
+	public void readColumn(int column, int fromRow, int[] buffer, int length) {
+		int width = widths[column];
+		int done = 0;
+		while (done < length) {
+			int row = fromRow + done;
+			int chunk = row / rowsPerChunk[column];
+			int rowInChunk = row - chunk * rowsPerChunk[column];
+			int n = Math.min(length - done, rowsPerChunk[column] - rowInChunk);
+			// absolute gets: the buffers can be read by several threads
+			ByteBuffer buf = columns[column][chunk];
+			int pos = rowInChunk * width;
+			switch (width) {
+			case 1:
+				for (int i = 0; i < n; i++) {
+					buffer[done + i] = buf.get(pos + i) & 0xFF;
+				}
+				break;
+			case 2:
+				for (int i = 0; i < n; i++) {
+					buffer[done + i] = buf.getShort(pos + 2 * i) & 0xFFFF;
+				}
+				break;
+			default:
+				for (int i = 0; i < n; i++) {
+					buffer[done + i] = buf.getInt(pos + 4 * i);
+				}
+			}
+			done += n;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Writes an integer dataset; the number of values of each column is the
+	 * maximum value + 1
+	 *
+	 * @param file where to write
+	 * @param data rows with the target first
+	 */
+	public static void write(Path file, int[][] data) throws IOException {
+		if (data == null || data.length == 0) {
+			throw new IOException("Data is empty");
+		}
+		int nColumns = data[0].length;
+		int[] arities = new int[nColumns];
+		String[] names = new String[nColumns];
+		for (int j = 0; j < nColumns; j++) {
+			names[j] = "x" + j;
+		}
+		for (int[] row : data) {
+			for (int j = 0; j < nColumns; j++) {
+				arities[j] = Math.max(arities[j], row[j] + 1);
+			}
+		}
+		String[][] dictionaries = new String[nColumns][];
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+			writeHeader(out, data.length, names, arities, dictionaries);
+			for (int j = 0; j < nColumns; j++) {
+				int width = width(arities[j]);
+				for (int[] row : data) {
+					writeCell(out, row[j], width);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Converts a dataset read as text: the values are encoded with their
+	 * dictionaries, which are stored in the header. Each column is first spilled
+	 * to a temporary file next to the target, since the width of the cells is
+	 * only known at the end; the dataset is never held in memory.
+	 *
+	 * @param file   where to write
+	 * @param reader the rows, target first
+	 */
+	public static void write(Path file, CategoricalReader reader) throws IOException {
+		int nColumns = reader.getNVariables();
+		Encoder encoder = new Encoder();
+		String[] names = new String[nColumns];
+		for (int j = 0; j < nColumns; j++) {
+			names[j] = reader.getVariableName(j);
+			encoder.addAttribute(names[j]);
+			String[] declared = reader.getDeclaredValues(j);
+			if (declared != null) {
+				for (String val : declared) {
+					encoder.getDictionary(j).getOrAdd(val);
+				}
+			}
+		}
+
+		Path dir = file.toAbsolutePath().getParent();
+		Path[] spills = new Path[nColumns];
+		DataOutputStream[] spillOut = new DataOutputStream[nColumns];
+		int nRows = 0;
+		try {
+			for (int j = 0; j < nColumns; j++) {
+				spills[j] = Files.createTempFile(dir, "hdpc", ".col");
+				spillOut[j] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spills[j]), 1 << 16));
+			}
+			String[] row = new String[nColumns];
+			while (reader.next(row)) {
+				if (nRows == Integer.MAX_VALUE) {
+					throw new IOException("More than " + Integer.MAX_VALUE + " rows");
+				}
+				for (int j = 0; j < nColumns; j++) {
+					spillOut[j].writeInt(encoder.getDictionary(j).getOrAdd(row[j]));
+				}
+				nRows++;
+			}
+			for (DataOutputStream out : spillOut) {
+				out.close();
+			}
+
+			int[] arities = new int[nColumns];
+			String[][] dictionaries = new String[nColumns][];
+			for (int j = 0; j < nColumns; j++) {
+				arities[j] = encoder.getNValues(j);
+				dictionaries[j] = encoder.getDictionary(j).getValues();
+			}
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+				writeHeader(out, nRows, names, arities, dictionaries);
+				for (int j = 0; j < nColumns; j++) {
+					int width = width(arities[j]);
+					try (DataInputStream in = new DataInputStream(
+							new BufferedInputStream(Files.newInputStream(spills[j]), 1 << 16))) {
+						for (int i = 0; i < nRows; i++) {
+							writeCell(out, in.readInt(), width);
+						}
+					}
+				}
+			}
+		} finally {
+			for (int j = 0; j < nColumns; j++) {
+				if (spillOut[j] != null) {
+					spillOut[j].close();
+				}
+				if (spills[j] != null) {
+					Files.deleteIfExists(spills[j]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes needed to store the values of a column with
+	 *         this number of values
+	 */
+	static int width(int arity) {
+		if (arity <= (1 << 8)) {
+			return 1;
+		} else if (arity <= (1 << 16)) {
+			return 2;
+		} else {
+			return 4;
+		}
+	}
+
+	private static void writeCell(DataOutputStream out, int value, int width) throws IOException {
+		switch (width) {
+		case 1:
+			out.writeByte(value);
+			break;
+		case 2:
+			out.writeShort(value);
+			break;
+		default:
+			out.writeInt(value);
+		}
+	}
+
+	private static void writeHeader(DataOutputStream out, int nRows, String[] names, int[] arities,
+			String[][] dictionaries) throws IOException {
+		// the header is built first to know where the columns start
+		ByteArrayOutputStream columnsHeader = new ByteArrayOutputStream();
+		DataOutputStream h = new DataOutputStream(columnsHeader);
+		for (int j = 0; j < names.length; j++) {
+			h.writeUTF(names[j]);
+			h.writeInt(arities[j]);
+			h.writeByte(width(arities[j]));
+			if (dictionaries[j] == null) {
+				h.writeInt(0);
+			} else {
+				h.writeInt(dictionaries[j].length);
+				for (String val : dictionaries[j]) {
+					h.writeUTF(val);
+				}
+			}
+		}
+		h.flush();
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(nRows);
+		out.writeInt(names.length);
+		long dataStart = 4 * 4 + 8 + columnsHeader.size();
+		out.writeLong(dataStart);
+		columnsHeader.writeTo(out);
+	}
+}
@@ -0,0 +1,166 @@
+package hdp.data;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * Streaming reader for delimited text files (CSV, TSV, ...). Fields can be
+ * quoted with double quotes (a double quote is escaped by doubling it);
+ * unquoted fields are trimmed.
+ */
+public class CsvReader implements CategoricalReader {
+
+	private final BufferedReader reader;
+	private final char separator;
+	private final int targetColumn;
+	private final int nVariables;
+	private final String[] names;
+
+	private final ArrayList<String> fields = new ArrayList<>();
+	private final StringBuilder field = new StringBuilder();
+	private long lineNumber;
+	private String pendingLine;
+
+	/**
+	 * @param file         the file to read
+	 * @param separator    separator between fields
+	 * @param hasHeader    true if the first line gives the names of the columns
+	 * @param targetColumn index of the column of the target variable; -1 for the
+	 *                     last column
+	 * @throws IOException
+	 */
+	public CsvReader(Path file, char separator, boolean hasHeader, int targetColumn) throws IOException {
+		this.reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+		this.separator = separator;
+
+		// the first line gives the number of columns
+		String line = reader.readLine();
+		lineNumber = 1;
+		if (line == null) {
+			reader.close();
+			throw new IOException("Empty file " + file);
+		}
+		split(line);
+		this.nVariables = fields.size();
+		this.targetColumn = (targetColumn < 0) ? nVariables - 1 : targetColumn;
+		if (this.targetColumn >= nVariables) {
+			reader.close();
+			throw new IOException("Target column " + targetColumn + " but only " + nVariables + " columns");
+		}
+		this.names = new String[nVariables];
+		for (int j = 0; j < nVariables; j++) {
+			names[toRowIndex(j)] = hasHeader ? fields.get(j) : ("x" + j);
+		}
+		if (!hasHeader) {
+			// first line is data: keep it for the first call to next
+			pendingLine = line;
+		}
+	}
+
+	/**
+	 * Reads a comma-separated file with a header and the target in the last
+	 * column
+	 */
+	public CsvReader(Path file) throws IOException {
+		this(file, ',', true, -1);
+	}
+
+	@Override
+	public int getNVariables() {
+		return nVariables;
+	}
+
+	@Override
+	public String getVariableName(int variable) {
+		return names[variable];
+	}
+
+	@Override
+	public String[] getDeclaredValues(int variable) {
+		return null;
+	}
+
+	@Override
+	public boolean next(String[] row) throws IOException {
+		String line;
+		if (pendingLine != null) {
+			line = pendingLine;
+			pendingLine = null;
+		} else {
+			do {
+				line = reader.readLine();
+				lineNumber++;
+			} while (line != null && line.trim().isEmpty());
+		}
+		if (line == null) {
+			return false;
+		}
+		split(line);
+		if (fields.size() != nVariables) {
+			throw new IOException(
+					"Line " + lineNumber + ": " + fields.size() + " fields found, " + nVariables + " expected");
+		}
+		for (int j = 0; j < nVariables; j++) {
+			row[toRowIndex(j)] = fields.get(j);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the index in the row (target first) of column j of the file
+	 */
+	private int toRowIndex(int j) {
+		if (j == targetColumn) {
+			return 0;
+		}
+		return (j < targetColumn) ? j + 1 : j;
+	}
+
+	private void split(String line) throws IOException {
+		fields.clear();
+		field.setLength(0);
+		boolean quoted = false, wasQuoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char ch = line.charAt(i);
+			if (quoted) {
+				if (ch == '"') {
+					if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+						field.append('"');
+						i++;
+					} else {
+						quoted = false;
+					}
+				} else {
+					field.append(ch);
+				}
+			} else if (ch == separator) {
+				addField(wasQuoted);
+				wasQuoted = false;
+			} else if (ch == '"' && field.toString().trim().isEmpty()) {
+				field.setLength(0);
+				quoted = true;
+				wasQuoted = true;
+			} else {
+				field.append(ch);
+			}
+		}
+		if (quoted) {
+			throw new IOException("Line " + lineNumber + ": unterminated quote");
+		}
+		addField(wasQuoted);
+	}
+
+	private void addField(boolean wasQuoted) {
+		fields.add(wasQuoted ? field.toString() : field.toString().trim());
+		field.setLength(0);
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
@@ -0,0 +1,106 @@
+package hdp.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Encodes the values of categorical attributes to indices, with one
+ * ValueDictionary per attribute. An encoder can be shared by several trees
+ * built over the same attributes (each tree maps its variables to attributes
+ * of the encoder), so that each attribute is encoded only once.
+ * <p>
+ * Not thread-safe when values are added.
+ */
+public class Encoder {
+
+	/**
+	 * Index returned for values that are not in a dictionary
+	 */
+	public static final int UNKNOWN = -1;
+
+	private final ArrayList<String> names = new ArrayList<>();
+	private final HashMap<String, Integer> attributeIndex = new HashMap<>();
+	private final ArrayList<ValueDictionary> dictionaries = new ArrayList<>();
+
+	public Encoder() {
+	}
+
+	/**
+	 * Creates an encoder with attributes named "0", "1", ...
+	 */
+	public Encoder(int nAttributes) {
+		for (int a = 0; a < nAttributes; a++) {
+			addAttribute(Integer.toString(a));
+		}
+	}
+
+	/**
+	 * Adds an attribute (or returns the existing one with the same name)
+	 * 
+	 * @return the index of the attribute
+	 */
+	public int addAttribute(String name) {
+		Integer index = attributeIndex.get(name);
+		if (index == null) {
+			index = names.size();
+			names.add(name);
+			attributeIndex.put(name, index);
+			dictionaries.add(new ValueDictionary());
+		}
+		return index;
+	}
+
+	/**
+	 * @return the index of the attribute; UNKNOWN if there is no attribute with
+	 *         that name
+	 */
+	public int getAttributeIndex(String name) {
+		Integer index = attributeIndex.get(name);
+		return (index == null) ? UNKNOWN : index;
+	}
+
+	public String getAttributeName(int attribute) {
+		return names.get(attribute);
+	}
+
+	public int getNAttributes() {
+		return names.size();
+	}
+
+	public ValueDictionary getDictionary(int attribute) {
+		return dictionaries.get(attribute);
+	}
+
+	/**
+	 * @return the number of values of the attribute known so far
+	 */
+	public int getNValues(int attribute) {
+		return dictionaries.get(attribute).size();
+	}
+
+	/**
+	 * Encodes a value of an attribute
+	 * 
+	 * @param policy what to do if the value is not in the dictionary
+	 * @return the index of the value, or UNKNOWN (BACK_OFF policy)
+	 * @throws IllegalArgumentException for an unknown value with the ERROR policy
+	 */
+	public int encode(int attribute, CharSequence value, UnknownValuePolicy policy) {
+		ValueDictionary dictionary = dictionaries.get(attribute);
+		if (policy == UnknownValuePolicy.ADD) {
+			return dictionary.getOrAdd(value);
+		}
+		int index = dictionary.get(value);
+		if (index == UNKNOWN && policy == UnknownValuePolicy.ERROR) {
+			throw new IllegalArgumentException("Unknown value '" + value + "' for attribute " + names.get(attribute));
+		}
+		return index;
+	}
+
+	/**
+	 * @return the value at the given index for the attribute
+	 */
+	public String decode(int attribute, int index) {
+		return dictionaries.get(attribute).getValue(index);
+	}
+}
@@ -0,0 +1,21 @@
+package hdp.data;
+
+/**
+ * What to do when encoding a value that is not in the dictionary of its
+ * variable
+ */
+public enum UnknownValuePolicy {
+	/**
+	 * The value is added to the dictionary (training)
+	 */
+	ADD,
+	/**
+	 * The value is encoded as Encoder.UNKNOWN; queries back off to the last
+	 * node known on the path
+	 */
+	BACK_OFF,
+	/**
+	 * An IllegalArgumentException is thrown
+	 */
+	ERROR
+}
@@ -0,0 +1,279 @@
+package hdp.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Dictionary of the values of a categorical variable: maps each value to its
+ * index (in order of insertion, from 0) with an open-addressing hash table of
+ * primitive ints, so that lookups don't box. Keys can be looked up as any
+ * CharSequence (e.g. a reused StringBuilder), with a pre-computed hash, or as
+ * UTF-8 bytes in a buffer, without creating a String.
+ */
+public class ValueDictionary {
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int EMPTY = -1;
+
+	/**
+	 * values by index, and their hashes
+	 */
+	private String[] values;
+	private int[] hashes;
+	private int size;
+
+	/**
+	 * open-addressing table (linear probing) of indices; EMPTY if free. Its
+	 * length is a power of 2, kept at least twice the size.
+	 */
+	private int[] table;
+	private int mask;
+
+	public ValueDictionary() {
+		values = new String[INITIAL_CAPACITY];
+		hashes = new int[INITIAL_CAPACITY];
+		table = new int[2 * INITIAL_CAPACITY];
+		Arrays.fill(table, EMPTY);
+		mask = table.length - 1;
+	}
+
+	public ValueDictionary(String... values) {
+		this();
+		for (String value : values) {
+			getOrAdd(value);
+		}
+	}
+
+	/**
+	 * @return the number of values
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the value at the given index
+	 */
+	public String getValue(int index) {
+		return values[index];
+	}
+
+	/**
+	 * @return all the values, by index
+	 */
+	public String[] getValues() {
+		return Arrays.copyOf(values, size);
+	}
+
+	/**
+	 * Hash of a sequence of characters, equal to String.hashCode()
+	 */
+	public static int hash(CharSequence key) {
+		if (key instanceof String) {
+			return key.hashCode();
+		}
+		int h = 0;
+		for (int i = 0; i < key.length(); i++) {
+			h = 31 * h + key.charAt(i);
+		}
+		return h;
+	}
+
+	/**
+	 * @return the index of the value; Encoder.UNKNOWN if absent
+	 */
+	public int get(CharSequence key) {
+		return get(key, hash(key));
+	}
+
+	/**
+	 * @param hash hash(key), computed once by the caller
+	 * @return the index of the value; Encoder.UNKNOWN if absent
+	 */
+	public int get(CharSequence key, int hash) {
+		for (int slot = spread(hash) & mask;; slot = (slot + 1) & mask) {
+			int index = table[slot];
+			if (index == EMPTY) {
+				return Encoder.UNKNOWN;
+			}
+			if (hashes[index] == hash && contentEquals(values[index], key)) {
+				return index;
+			}
+		}
+	}
+
+	/**
+	 * Looks up a value given as UTF-8 bytes, without decoding it to a String
+	 * 
+	 * @return the index of the value; Encoder.UNKNOWN if absent
+	 */
+	public int get(byte[] bytes, int offset, int length) {
+		int hash = hashUtf8(bytes, offset, length);
+		for (int slot = spread(hash) & mask;; slot = (slot + 1) & mask) {
+			int index = table[slot];
+			if (index == EMPTY) {
+				return Encoder.UNKNOWN;
+			}
+			if (hashes[index] == hash && equalsUtf8(values[index], bytes, offset, length)) {
+				return index;
+			}
+		}
+	}
+
+	/**
+	 * @return the index of the value, which is added if absent
+	 */
+	public int getOrAdd(CharSequence key) {
+		int hash = hash(key);
+		int index = get(key, hash);
+		if (index == Encoder.UNKNOWN) {
+			index = add(key.toString(), hash);
+		}
+		return index;
+	}
+
+	/**
+	 * @return the index of the value given as UTF-8 bytes, which is added if
+	 *         absent
+	 */
+	public int getOrAdd(byte[] bytes, int offset, int length) {
+		int index = get(bytes, offset, length);
+		if (index == Encoder.UNKNOWN) {
+			String key = new String(bytes, offset, length, StandardCharsets.UTF_8);
+			index = add(key, key.hashCode());
+		}
+		return index;
+	}
+
+	private int add(String key, int hash) {
+		if (size == values.length) {
+			values = Arrays.copyOf(values, 2 * size);
+			hashes = Arrays.copyOf(hashes, 2 * size);
+		}
+		int index = size++;
+		values[index] = key;
+		hashes[index] = hash;
+		if (2 * size > table.length) {
+			rehash(2 * table.length);
+		} else {
+			insert(index);
+		}
+		return index;
+	}
+
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		Arrays.fill(table, EMPTY);
+		mask = capacity - 1;
+		for (int index = 0; index < size; index++) {
+			insert(index);
+		}
+	}
+
+	private void insert(int index) {
+		int slot = spread(hashes[index]) & mask;
+		while (table[slot] != EMPTY) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = index;
+	}
+
+	/**
+	 * Mixes the bits of the hash so that close hashes don't cluster
+	 */
+	private static int spread(int hash) {
+		int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean contentEquals(String value, CharSequence key) {
+		if (value.length() != key.length()) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) != key.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Hash of the characters (UTF-16 units) encoded by UTF-8 bytes, equal to the
+	 * String.hashCode() of the decoded String (for valid UTF-8)
+	 */
+	static int hashUtf8(byte[] bytes, int offset, int length) {
+		int h = 0;
+		int end = offset + length;
+		for (int i = offset; i < end;) {
+			int b = bytes[i] & 0xFF;
+			int codePoint;
+			if (b < 0x80) {
+				codePoint = b;
+				i++;
+			} else if (b < 0xE0 && i + 1 < end) {
+				codePoint = ((b & 0x1F) << 6) | (bytes[i + 1] & 0x3F);
+				i += 2;
+			} else if (b < 0xF0 && i + 2 < end) {
+				codePoint = ((b & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6) | (bytes[i + 2] & 0x3F);
+				i += 3;
+			} else if (i + 3 < end) {
+				codePoint = ((b & 0x07) << 18) | ((bytes[i + 1] & 0x3F) << 12) | ((bytes[i + 2] & 0x3F) << 6)
+						| (bytes[i + 3] & 0x3F);
+				i += 4;
+			} else {
+				// truncated sequence: hashed as is, won't match any valid value
+				codePoint = b;
+				i++;
+			}
+			if (codePoint >= 0x10000) {
+				h = 31 * h + Character.highSurrogate(codePoint);
+				h = 31 * h + Character.lowSurrogate(codePoint);
+			} else {
+				h = 31 * h + codePoint;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Compares a String with UTF-8 bytes without decoding the bytes
+	 */
+	static boolean equalsUtf8(String value, byte[] bytes, int offset, int length) {
+		int end = offset + length;
+		int c = 0;
+		for (int i = offset; i < end;) {
+			int b = bytes[i] & 0xFF;
+			int codePoint;
+			if (b < 0x80) {
+				codePoint = b;
+				i++;
+			} else if (b < 0xE0 && i + 1 < end) {
+				codePoint = ((b & 0x1F) << 6) | (bytes[i + 1] & 0x3F);
+				i += 2;
+			} else if (b < 0xF0 && i + 2 < end) {
+				codePoint = ((b & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6) | (bytes[i + 2] & 0x3F);
+				i += 3;
+			} else if (i + 3 < end) {
+				codePoint = ((b & 0x07) << 18) | ((bytes[i + 1] & 0x3F) << 12) | ((bytes[i + 2] & 0x3F) << 6)
+						| (bytes[i + 3] & 0x3F);
+				i += 4;
+			} else {
+				return false;
+			}
+			if (codePoint >= 0x10000) {
+				if (c + 1 >= value.length() || value.charAt(c) != Character.highSurrogate(codePoint)
+						|| value.charAt(c + 1) != Character.lowSurrogate(codePoint)) {
+					return false;
+				}
+				c += 2;
+			} else {
+				if (c >= value.length() || value.charAt(c) != codePoint) {
+					return false;
+				}
+				c++;
+			}
+		}
+		return c == value.length();
+	}
+}
@@ -150,6 +150,16 @@ public class LogStirlingGenerator implements AutoCloseable {
 		 * @return The value stored at (n,k).
 		 */
 		public float get(long n, long k);
+
+		/** Read the values stored in the cache from (n,k0) to (n,k1) (included) into a buffer.
+		 *  Base indices are (1,1). Behaviour is unspecified if out of bound.
+		 * @param n Read the row at the given 'n' coordinate. Index starts at 1.
+		 * @param k0 First 'k' coordinate to read. Index starts at 1.
+		 * @param k1 Last 'k' coordinate to read (included).
+		 * @param buffer Where to write the values: S(n,k) is written at offset+(k-k0).
+		 * @param offset Index in the buffer for the value at (n,k0).
+		 */
+		public void getRow(long n, long k0, long k1, float[] buffer, int offset);
 		
 		/** Extends the cache over the k dimension, specifying the desired new maximal index (i.e. 'k' is an index).
 		 *  The cache does not have to fulfil the request: the returned value gives us the actual maximal index
@@ -418,33 +428,7 @@ public class LogStirlingGenerator implements AutoCloseable {
 		if (n == k) { return 0;	}
 		else if (k == 0 || n < k) {	return Float.NEGATIVE_INFINITY;	}
 		else {
-			// Check the bounds and extends if needed.
-			// Extends k first: gives us the opportunity to add "longer row" with extends_n, which is more efficient.
-
-			// Check k dimension. Cap to K (if K != 0) while trying to grow by extension steps
-			if (k > boundingK) {
-				long nk = (long)k+1000; //Long.max((long)(boundingK*EXTENDS_RATIO), k);
-				if (K != 0 && nk > K) {	nk = K; }
-				nk = extends_k(nk);
-				if (k > nk) {
-					String msg = "Cannnot extends the cache to query k = " + k + ". Cache extended up to + " + nk + ".";
-					throw new CacheExtensionException(msg);
-				}
-				boundingK = nk;
-				// assert (boundingRow.length() == boundingK);
-			}
-
-			// Check n dimension. Cap to N while trying to grow by extension steps.
-			if (n > boundingN) {
-				long nn = Long.min(N, (long)(n*EXTENDS_RATIO)); //Long.max((long)(boundingN * EXTENDS_RATIO), n));
-				nn = extends_n(nn);
-				if (n > nn) {
-					String msg = "Cannnot extends the cache to query n = " + n + ". Cache extended up to + " + nn + ".";
-					throw new CacheExtensionException(msg);
-				}
-				boundingN = nn;
-				// assert (boundingCol.length() == boundingN);
-			}
+			ensureCapacity(n, k);
 
 			// Get the result.
 			return cache.get(n, k);
@@ -453,6 +437,82 @@ public class LogStirlingGenerator implements AutoCloseable {
 
 	
 	
+	/** Get the maximal N that can be queried.
+	 * @return The maximal N index (included).
+	 */
+	public long getMaxN() {
+		return N;
+	}
+
+	/** Get the maximal K that can be queried, i.e. K (if set) capped by N.
+	 * @return The maximal K index (included).
+	 */
+	public long getMaxK() {
+		return (K != 0) ? Long.min(K, N) : N;
+	}
+
+	/** Read a row segment of log generalized Stirling numbers S(n,k0) to S(n,k1) (included) into a buffer.
+	 *  The bounds are checked, and the cache extended, once for the whole segment.
+	 *  Special cases follow 'query': S(n,n) = 0, and S(n,k) = NEGATIVE INFINITY for k == 0 or k > n.
+	 * @param n The n in S(n,k)
+	 * @param k0 The first k to read
+	 * @param k1 The last k to read (included)
+	 * @param buffer Where to write the values: S(n,k) is written at offset+(k-k0).
+	 * @param offset Index in the buffer for S(n,k0).
+	 * @throws CacheExtensionException If the cache extension can not fulfil a size of (n, k1).
+	 */
+	public void queryRow(long n, long k0, long k1, float[] buffer, int offset) throws CacheExtensionException {
+		// Range of the segment actually stored in the cache: 1 <= k < n
+		long first = Long.max(k0, 1);
+		long last = Long.min(k1, n - 1);
+
+		for (long k = k0; k < first && k <= k1; ++k) {
+			buffer[offset + (int) (k - k0)] = Float.NEGATIVE_INFINITY;
+		}
+		if (first <= last) {
+			ensureCapacity(n, last);
+			cache.getRow(n, first, last, buffer, offset + (int) (first - k0));
+		}
+		for (long k = Long.max(first, last + 1); k <= k1; ++k) {
+			buffer[offset + (int) (k - k0)] = (k == n) ? 0 : Float.NEGATIVE_INFINITY;
+		}
+	}
+
+	/** Check the bounds and extends the cache if needed so that S(n,k) is available.
+	 * @throws CacheExtensionException If the cache extension can not fulfil a size of (n, k).
+	 */
+	private void ensureCapacity(long n, long k) throws CacheExtensionException {
+		// Check the bounds and extends if needed.
+		// Extends k first: gives us the opportunity to add "longer row" with extends_n, which is more efficient.
+
+		// Check k dimension. Cap to K (if K != 0) while trying to grow by extension steps
+		if (k > boundingK) {
+			long nk = (long)k+1000; //Long.max((long)(boundingK*EXTENDS_RATIO), k);
+			if (K != 0 && nk > K) {	nk = K; }
+			nk = extends_k(nk);
+			if (k > nk) {
+				String msg = "Cannnot extends the cache to query k = " + k + ". Cache extended up to + " + nk + ".";
+				throw new CacheExtensionException(msg);
+			}
+			boundingK = nk;
+			// assert (boundingRow.length() == boundingK);
+		}
+
+		// Check n dimension. Cap to N while trying to grow by extension steps.
+		if (n > boundingN) {
+			long nn = Long.min(N, (long)(n*EXTENDS_RATIO)); //Long.max((long)(boundingN * EXTENDS_RATIO), n));
+			nn = extends_n(nn);
+			if (n > nn) {
+				String msg = "Cannnot extends the cache to query n = " + n + ". Cache extended up to + " + nn + ".";
+				throw new CacheExtensionException(msg);
+			}
+			boundingN = nn;
+			// assert (boundingCol.length() == boundingN);
+		}
+	}
+
+	
+	
 	// --- --- --- --- --- --- --- --- --- --- --- ---
 	// AutoCloseable interface
 	// --- --- --- --- --- --- --- --- --- --- --- ---
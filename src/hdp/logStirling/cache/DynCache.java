@@ -77,6 +77,35 @@ public class DynCache implements LogStirlingGenerator.MainCache {
 		}
 	}
 
+	/**
+	 * Read a row segment from the main cache. Base indices are (1,1).
+	 * Rows are contiguous in both caches: copy by block (whole row in the triangular cache, chunk by chunk
+	 * in the dynamic one).
+	 */
+	public void getRow(long n_, long k0_, long k1_, float[] buffer, int offset) {
+		int n = (int)(n_ -1);
+		long k0 = k0_-1;
+		int length = (int)(k1_ - k0_ + 1);
+
+		if(n<N1) {
+			// First triangular cache
+			System.arraycopy(cache1, (n * (n + 1) / 2) + ((int)k0), buffer, offset, length);
+		} else {
+			// Second dynamic cache
+			ArrayList<float[]> row = cache2.get(n-N1);
+			int k1 = (int)(k0/CHUNK_SIZE);
+			int k2 = (int)(k0 - ((long)CHUNK_SIZE*k1) );
+			while(length>0) {
+				int toCopy = Integer.min(length, CHUNK_SIZE-k2);
+				System.arraycopy(row.get(k1), k2, buffer, offset, toCopy);
+				offset += toCopy;
+				length -= toCopy;
+				k1++;
+				k2 = 0;
+			}
+		}
+	}
+
 	/**
 	 * Extension over k requested. Base index is 1.
 	 * Return the actual extension top bound, inclusive
@@ -108,6 +108,18 @@ public class FixedCache implements LogStirlingGenerator.MainCache {
 		return CACHE.get(get_index(n - 1, k - 1));
 	}
 
+	/**
+	 * Read a row segment from the main cache. Base indices are (1,1).
+	 * Rows are contiguous in both sub arrays: the index is computed once for the segment.
+	 */
+	public void getRow(long n, long k0, long k1, float[] buffer, int offset) {
+		long base = get_index(n - 1, k0 - 1);
+		int length = (int)(k1 - k0 + 1);
+		for (int i = 0; i < length; ++i) {
+			buffer[offset + i] = CACHE.get(base + i);
+		}
+	}
+
 	/**
 	 * Extension over k requested. Base index is 1.
 	 * The size of this cache is fixed from the start.
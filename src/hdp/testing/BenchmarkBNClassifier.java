@@ -0,0 +1,99 @@
+package hdp.testing;
+
+import org.apache.commons.math3.random.RandomDataGenerator;
+
+import hdp.ProbabilityTree;
+import hdp.TyingStrategy;
+import hdp.bn.BayesianNetworkClassifier;
+import hdp.bn.KDB;
+import hdp.bn.NaiveBayes;
+
+public class BenchmarkBNClassifier {
+
+	public static void main(String... args) {
+		int nTrain = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		int nTest = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+		int nAttributes = 10;
+		int nValuesY = 3;
+		int nValuesX = 4;
+
+		// synthetic data: each attribute depends on the class and on the previous
+		// attribute
+		RandomDataGenerator rdg = new RandomDataGenerator();
+		rdg.reSeed(3071980);
+		double[][][][] cpts = new double[nAttributes][nValuesY][nValuesX][nValuesX];
+		for (int a = 0; a < nAttributes; a++) {
+			for (int y = 0; y < nValuesY; y++) {
+				for (int previous = 0; previous < nValuesX; previous++) {
+					double sum = 0.0;
+					for (int x = 0; x < nValuesX; x++) {
+						cpts[a][y][previous][x] = rdg.nextGamma(0.5, 1.0);// Dirichlet
+						sum += cpts[a][y][previous][x];
+					}
+					for (int x = 0; x < nValuesX; x++) {
+						cpts[a][y][previous][x] /= sum;
+					}
+				}
+			}
+		}
+		int[][] train = sample(rdg, cpts, nTrain, nValuesY);
+		int[][] test = sample(rdg, cpts, nTest, nValuesY);
+
+		BayesianNetworkClassifier[] classifiers = { new NaiveBayes(), new KDB(1), new KDB(2) };
+		String[] names = { "NB", "KDB-1", "KDB-2" };
+		int[] predictions = new int[nTest];
+		double[][] probabilities = new double[nTest][nValuesY];
+		for (int c = 0; c < classifiers.length; c++) {
+			BayesianNetworkClassifier classifier = classifiers[c];
+			classifier.setTreeFactory(() -> new ProbabilityTree(500, TyingStrategy.LEVEL));
+
+			long start = System.nanoTime();
+			classifier.train(train);
+			double trainingTime = (System.nanoTime() - start) / 1e9;
+
+			// first run to warm up the JIT
+			classifier.predict(test, predictions);
+			start = System.nanoTime();
+			classifier.predict(test, predictions);
+			double predictTime = (System.nanoTime() - start) / 1e9;
+			start = System.nanoTime();
+			classifier.predictProbabilities(test, probabilities);
+			double probabilitiesTime = (System.nanoTime() - start) / 1e9;
+
+			int nCorrect = 0;
+			double logLoss = 0.0;
+			for (int i = 0; i < nTest; i++) {
+				if (predictions[i] == test[i][0]) {
+					nCorrect++;
+				}
+				logLoss -= Math.log(probabilities[i][test[i][0]]);
+			}
+			System.out.println(names[c] + "\ttraining=" + String.format("%.2f", trainingTime) + "s\taccuracy="
+					+ String.format("%.4f", (double) nCorrect / nTest) + "\tlog-loss="
+					+ String.format("%.4f", logLoss / nTest) + "\tpredict="
+					+ String.format("%.0f", nTest / predictTime) + " rows/s\tprobabilities="
+					+ String.format("%.0f", nTest / probabilitiesTime) + " rows/s");
+		}
+	}
+
+	private static int[][] sample(RandomDataGenerator rdg, double[][][][] cpts, int n, int nValuesY) {
+		int nAttributes = cpts.length;
+		int[][] data = new int[n][nAttributes + 1];
+		for (int i = 0; i < n; i++) {
+			int y = rdg.nextInt(0, nValuesY - 1);
+			data[i][0] = y;
+			int previous = 0;
+			for (int a = 0; a < nAttributes; a++) {
+				double[] p = cpts[a][y][previous];
+				double u = rdg.nextUniform(0.0, 1.0);
+				int x = 0;
+				while (x < p.length - 1 && (u -= p[x]) > 0) {
+					x++;
+				}
+				data[i][a + 1] = x;
+				previous = x;
+			}
+		}
+		return data;
+	}
+}
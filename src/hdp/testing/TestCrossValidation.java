@@ -0,0 +1,62 @@
+package hdp.testing;
+
+import org.apache.commons.math3.random.RandomDataGenerator;
+
+import hdp.CrossValidation;
+import hdp.ProbabilityTree;
+import hdp.TyingStrategy;
+
+public class TestCrossValidation {
+
+	public static void main(String... args) {
+		int nDataPoints = 20000;
+		int nValuesY = 3;
+		int[] arities = new int[] { 10, 5 };
+		int nFolds = 10;
+
+		// generating synthetic data from a random cpt p(y|x1,x2)
+		RandomDataGenerator rdg = new RandomDataGenerator();
+		rdg.reSeed(3071980);
+		double[][][] cptY = new double[arities[0]][arities[1]][nValuesY];
+		for (int x1 = 0; x1 < arities[0]; x1++) {
+			for (int x2 = 0; x2 < arities[1]; x2++) {
+				double sumPk = 0.0;
+				for (int y = 0; y < nValuesY; y++) {
+					cptY[x1][x2][y] = rdg.nextGamma(0.5, 1.0);// Dirichlet
+					sumPk += cptY[x1][x2][y];
+				}
+				for (int y = 0; y < nValuesY; y++) {
+					cptY[x1][x2][y] /= sumPk;
+				}
+			}
+		}
+		int[][] data = new int[nDataPoints][3];
+		for (int i = 0; i < nDataPoints; i++) {
+			int x1 = rdg.nextInt(0, arities[0] - 1);
+			int x2 = rdg.nextInt(0, arities[1] - 1);
+			double u = rdg.nextUniform(0.0, 1.0);
+			int y = 0;
+			while (y < nValuesY - 1 && (u -= cptY[x1][x2][y]) > 0) {
+				y++;
+			}
+			data[i][0] = y;
+			data[i][1] = x1;
+			data[i][2] = x2;
+		}
+
+		// the tree is built once; each fold is removed and added back
+		ProbabilityTree hdp = new ProbabilityTree(1000, TyingStrategy.LEVEL);
+		hdp.addDataset(data);
+		CrossValidation cv = new CrossValidation(data, nFolds, 3071980);
+		cv.setNIterationsWarmStart(200);
+
+		for (TyingStrategy tying : TyingStrategy.values()) {
+			hdp.setConcentrationTyingStrategy(tying);
+			long start = System.currentTimeMillis();
+			double logLoss = cv.logLoss(hdp);
+			long time = System.currentTimeMillis() - start;
+			System.out.println(tying + "\tlog-loss=" + logLoss + "\t(" + time + "ms for " + nFolds + " folds)");
+		}
+	}
+
+}
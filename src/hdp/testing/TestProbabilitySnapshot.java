@@ -0,0 +1,93 @@
+package hdp.testing;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.random.RandomDataGenerator;
+
+import hdp.ProbabilitySnapshot;
+import hdp.ProbabilityTree;
+import hdp.PruningStrategy;
+import hdp.TyingStrategy;
+
+/**
+ * Checks that a ProbabilitySnapshot answers the queries as the tree it was
+ * taken from, for a tree whose conditioning variables have been reordered (with
+ * and without marginals for the missing values) and for a pruned tree
+ */
+public class TestProbabilitySnapshot {
+
+	public static void main(String... args) {
+		int nDataPoints = 5000;
+		int nValuesY = 2;
+		// the variable with few values goes to the top of the tree
+		int[] arities = new int[] { 20, 2 };
+
+		RandomDataGenerator rdg = new RandomDataGenerator();
+		rdg.reSeed(3071980);
+		int[][] data = new int[nDataPoints][3];
+		for (int i = 0; i < nDataPoints; i++) {
+			int x1 = rdg.nextInt(0, arities[0] - 1);
+			int x2 = rdg.nextInt(0, arities[1] - 1);
+			double pY0 = (x2 == 0) ? 0.5 : 0.1 + 0.04 * x1;
+			data[i][0] = (rdg.nextUniform(0.0, 1.0) < pY0) ? 0 : 1;
+			data[i][1] = x1;
+			data[i][2] = x2;
+		}
+
+		ProbabilityTree tree = new ProbabilityTree(500, TyingStrategy.LEVEL);
+		tree.setAutomaticOrdering(true);
+		tree.addDataset(data);
+		System.out.println("variable order " + Arrays.toString(tree.getVariableOrder()));
+		int nMismatches = checkAll(tree, arities);
+		tree.computeMarginals();
+		System.out.println("with marginals");
+		nMismatches += checkAll(tree, arities);
+
+		// the values of x1 but the first ones are rare: their branches are pruned
+		for (int[] datapoint : data) {
+			if (datapoint[1] >= 5 && rdg.nextUniform(0.0, 1.0) < 0.9) {
+				datapoint[1] = rdg.nextInt(0, 4);
+			}
+		}
+		tree = new ProbabilityTree(500, TyingStrategy.LEVEL);
+		tree.setMinCountPerBranch(50);
+		tree.addDataset(data);
+		for (PruningStrategy pruningStrategy : PruningStrategy.values()) {
+			tree.setPruningStrategy(pruningStrategy);
+			System.out.println("pruned tree, " + pruningStrategy);
+			nMismatches += checkAll(tree, arities);
+		}
+
+		if (nMismatches > 0) {
+			throw new IllegalStateException(nMismatches + " queries differ between the snapshot and the tree");
+		}
+		System.out.println("snapshot and tree agree");
+	}
+
+	/**
+	 * @return the number of queries, complete or not, for which a snapshot of
+	 *         the tree differs from the tree
+	 */
+	private static int checkAll(ProbabilityTree tree, int[] arities) {
+		ProbabilitySnapshot snapshot = new ProbabilitySnapshot(tree);
+		int nMismatches = 0;
+		for (int x1 = -1; x1 <= arities[0]; x1++) {
+			for (int x2 = -1; x2 <= arities[1]; x2++) {
+				nMismatches += check(tree, snapshot, new int[] { x1, x2 });
+			}
+			nMismatches += check(tree, snapshot, new int[] { x1 });
+		}
+		return nMismatches;
+	}
+
+	private static int check(ProbabilityTree tree, ProbabilitySnapshot snapshot, int[] sample) {
+		double[] expected = tree.query(sample);
+		double[] actual = snapshot.query(sample);
+		if (Arrays.equals(expected, actual)) {
+			return 0;
+		}
+		System.out.println(Arrays.toString(sample) + "\ttree=" + Arrays.toString(expected) + "\tsnapshot="
+				+ Arrays.toString(actual));
+		return 1;
+	}
+}
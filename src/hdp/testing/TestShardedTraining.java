@@ -0,0 +1,97 @@
+package hdp.testing;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.math3.random.RandomDataGenerator;
+
+import hdp.OutOfCoreProbabilityTree;
+import hdp.ProbabilitySnapshot;
+import hdp.ShardedTrainer;
+import hdp.TyingStrategy;
+import hdp.data.ColumnarDataset;
+
+/**
+ * Trains the same tree with local worker processes and in a single process,
+ * and compares their log-loss on a test set
+ */
+public class TestShardedTraining {
+
+	public static void main(String... args) throws IOException {
+		int nDataPoints = 100000;
+		int nTest = 20000;
+		int nValuesY = 3;
+		int[] arities = new int[] { 20, 10, 5 };
+		int nIterations = 500;
+		int nShards = 3;
+
+		// generating synthetic data from a random cpt p(y|x1,x2,x3)
+		RandomDataGenerator rdg = new RandomDataGenerator();
+		rdg.reSeed(3071980);
+		double[][][][] cptY = new double[arities[0]][arities[1]][arities[2]][];
+		for (int x1 = 0; x1 < arities[0]; x1++) {
+			for (int x2 = 0; x2 < arities[1]; x2++) {
+				for (int x3 = 0; x3 < arities[2]; x3++) {
+					double[] pk = new double[nValuesY];
+					double sumPk = 0.0;
+					for (int y = 0; y < nValuesY; y++) {
+						pk[y] = rdg.nextGamma(0.5, 1.0);// Dirichlet
+						sumPk += pk[y];
+					}
+					for (int y = 0; y < nValuesY; y++) {
+						pk[y] /= sumPk;
+					}
+					cptY[x1][x2][x3] = pk;
+				}
+			}
+		}
+		int[][] data = new int[nDataPoints + nTest][4];
+		for (int i = 0; i < data.length; i++) {
+			int x1 = rdg.nextInt(0, arities[0] - 1);
+			int x2 = rdg.nextInt(0, arities[1] - 1);
+			int x3 = rdg.nextInt(0, arities[2] - 1);
+			double u = rdg.nextUniform(0.0, 1.0);
+			int y = 0;
+			while (y < nValuesY - 1 && (u -= cptY[x1][x2][x3][y]) > 0) {
+				y++;
+			}
+			data[i][0] = y;
+			data[i][1] = x1;
+			data[i][2] = x2;
+			data[i][3] = x3;
+		}
+		int[][] train = new int[nDataPoints][];
+		System.arraycopy(data, 0, train, 0, nDataPoints);
+
+		Path directory = Files.createTempDirectory("sharded");
+		Path dataset = directory.resolve("train.col");
+		ColumnarDataset.write(dataset, train);
+
+		long start = System.currentTimeMillis();
+		ShardedTrainer trainer = new ShardedTrainer();
+		trainer.setNShards(nShards);
+		trainer.setIterations(nIterations);
+		trainer.setTying(TyingStrategy.LEVEL);
+		ProbabilitySnapshot sharded = trainer.train(dataset, directory);
+		long timeSharded = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+		double logLossSingle = 0.0;
+		try (OutOfCoreProbabilityTree single = new OutOfCoreProbabilityTree(nValuesY, arities,
+				Files.createDirectories(directory.resolve("single")), nIterations, TyingStrategy.LEVEL)) {
+			single.addDataset(train);
+			long timeSingle = System.currentTimeMillis() - start;
+
+			double logLossSharded = 0.0;
+			for (int i = nDataPoints; i < data.length; i++) {
+				int[] x = new int[] { data[i][1], data[i][2], data[i][3] };
+				logLossSharded -= Math.log(sharded.query(x)[data[i][0]]);
+				logLossSingle -= Math.log(single.query(x)[data[i][0]]);
+			}
+			System.out.println("sharded (" + nShards + " processes)\tlog-loss=" + logLossSharded / nTest + "\t("
+					+ timeSharded + "ms)");
+			System.out.println("single process\tlog-loss=" + logLossSingle / nTest + "\t(" + timeSingle + "ms)");
+		}
+	}
+}